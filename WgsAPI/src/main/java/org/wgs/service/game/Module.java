@@ -90,6 +90,12 @@ public class Module extends WampModule
     {
         return WGS_MODULE_NAME + "." + topicName;
     }
+    
+    private WampTopic getTopic(String topicName)
+    {
+        // idle topics may have been evicted by the broker
+        return WampBroker.createTopic(getWampApplication(), getFQtopicURI(topicName), null);
+    }
 
 
     @Override
@@ -118,7 +124,7 @@ public class Module extends WampModule
     }
 
     
-    @WampRegisterProcedure(name="register")
+    @WampRegisterProcedure(name="register", bulkhead="db")
     public WampDict registerUser(WampSocket socket, WampDict data) throws Exception
     {
         String login = data.getText("user");
@@ -145,7 +151,7 @@ public class Module extends WampModule
     }
     
     
-    @WampRegisterProcedure(name="get_user_info")
+    @WampRegisterProcedure(name="get_user_info", bulkhead="db")
     public WampDict getUserInfo(WampSocket socket, WampDict data) throws Exception
     {
         Client client = clients.get(socket.getWampSessionId());
@@ -179,7 +185,7 @@ public class Module extends WampModule
         
     }
     
-    @WampRegisterProcedure(name="set_user_push_channel")
+    @WampRegisterProcedure(name="set_user_push_channel", bulkhead="db")
     public void setUserPushChannel(WampSocket socket, String appClientName, String notificationChannel)
     {
         Client client = clients.get(socket.getWampSessionId());
@@ -190,7 +196,7 @@ public class Module extends WampModule
     }
 
         
-    @WampRegisterProcedure(name="list_apps")
+    @WampRegisterProcedure(name="list_apps", cacheTtl=60000L, cacheScope="global", cacheInvalidationTopics={"apps_event"})
     public WampDict listApps() throws Exception
     {
         // TODO: Filter by domain
@@ -216,7 +222,7 @@ public class Module extends WampModule
     }
     
 
-    @WampRegisterProcedure(name="new_app")
+    @WampRegisterProcedure(name="new_app", bulkhead="db")
     public WampDict newApp(WampSocket socket, WampDict data) throws Exception
     {
         // TODO: check it doesn't exists
@@ -278,7 +284,7 @@ public class Module extends WampModule
     }
         
     
-    @WampRegisterProcedure(name="delete_app")
+    @WampRegisterProcedure(name="delete_app", bulkhead="db")
     public WampDict deleteApp(WampSocket socket, WampDict param) throws Exception
     {
         // TODO: check user is administrator of app
@@ -323,13 +329,13 @@ public class Module extends WampModule
     {
         WampDict event = app.toWampObject();
         event.put("cmd", cmd);
-        socket.publishEvent(WampBroker.getTopic(getFQtopicURI("apps_event")), null, event, excludeMe, false);
+        socket.publishEvent(getTopic("apps_event"), null, event, excludeMe, false);
         return event;
     }
 
     
-    @WampRegisterProcedure(name="open_group")
-    public synchronized WampDict openGroup(WampSocket socket, String appId, String gid, WampDict options) throws Exception
+    @WampRegisterProcedure(name="open_group", bulkhead="db", orderBy="gid:1,app:0")
+    public WampDict openGroup(WampSocket socket, String appId, String gid, WampDict options) throws Exception
     {
         Group   g = null;
         boolean valid   = false;
@@ -348,7 +354,8 @@ public class Module extends WampModule
         Client client = clients.get(socket.getWampSessionId());
         
         if(gid != null) {
-            g = manager.find(Group.class, gid);
+            // the row lock serializes the seat assignment with the automatch joins (ordered by application) until the commit
+            g = manager.find(Group.class, gid, LockModeType.PESSIMISTIC_WRITE);
 
             if(g != null) {
                 logger.log(Level.INFO, "open_group: group found: " + gid);
@@ -639,7 +646,7 @@ public class Module extends WampModule
                     event.put("gid", g.getGid());
                     event.put("valid", true);
 
-                    socket.publishEvent(WampBroker.getTopic(getFQtopicURI("group_event."+g.getGid())), null, event, true, false);  // exclude Me
+                    socket.publishEvent(getTopic("group_event."+g.getGid()), null, event, true, false);  // exclude Me
                 }
 
             }
@@ -670,7 +677,7 @@ public class Module extends WampModule
             event.put("type", "user");
             event.put("valid", valid);
                     
-            socket.publishEvent(WampBroker.getTopic(getFQtopicURI("group_event."+g.getGid())), null, event, true, false);  // exclude Me
+            socket.publishEvent(getTopic("group_event."+g.getGid()), null, event, true, false);  // exclude Me
         }
         
         
@@ -681,7 +688,7 @@ public class Module extends WampModule
     }
     
 
-    @WampRegisterProcedure(name="update_group")
+    @WampRegisterProcedure(name="update_group", bulkhead="db", orderBy="gid:0.gid")
     public WampDict updateGroup(WampSocket socket, WampDict node) throws Exception
     {
         // TODO: change group properties (state, observable, etc)
@@ -765,7 +772,7 @@ public class Module extends WampModule
         response.put("valid", valid);
 
         if(broadcastAppInfo)    broadcastAppEventInfo(socket, g, "group_updated");
-        if(broadcastGroupInfo)  socket.publishEvent(WampBroker.getTopic(getFQtopicURI("group_event."+g.getGid())), null, response, excludeMe, false);  // exclude Me
+        if(broadcastGroupInfo)  socket.publishEvent(getTopic("group_event."+g.getGid()), null, response, excludeMe, false);  // exclude Me
         
         manager.getTransaction().commit();        
         manager.close();
@@ -773,7 +780,7 @@ public class Module extends WampModule
     }
     
     
-    @WampRegisterProcedure(name="list_members")
+    @WampRegisterProcedure(name="list_members", bulkhead="db")
     public WampList getMembers(String gid, int team) throws Exception 
     {
         Group g = Storage.findEntity(Group.class, gid);
@@ -801,7 +808,7 @@ public class Module extends WampModule
     }
     
     
-    @WampRegisterProcedure(name="update_member")
+    @WampRegisterProcedure(name="update_member", bulkhead="db", orderBy="gid:0.gid")
     public WampDict updateMember(WampSocket socket, WampDict data) throws Exception
     {
             boolean valid = false;
@@ -920,7 +927,7 @@ public class Module extends WampModule
             if(valid) {
                 //response.putAll(g.toJSON());
                 broadcastAppEventInfo(socket, g, "group_updated");
-                socket.publishEvent(WampBroker.getTopic(getFQtopicURI("group_event."+g.getGid())), null, response, false, false);
+                socket.publishEvent(getTopic("group_event."+g.getGid()), null, response, false, false);
             }  
             
             manager.getTransaction().commit();
@@ -930,16 +937,16 @@ public class Module extends WampModule
     }
     
 
-    @WampRegisterProcedure(name="send_group_message")
+    @WampRegisterProcedure(name="send_group_message", priority="interactive")
     public void sendGroupMessage(WampSocket socket, String gid, WampObject data) throws Exception
     {
         WampDict event = new WampDict();
         event.put("cmd", "group_message");
         event.put("message", data);
-        socket.publishEvent(WampBroker.getTopic(getFQtopicURI("group_event."+gid)), null, event, false, true); // don't exclude Me
+        socket.publishEvent(getTopic("group_event."+gid), null, event, false, true); // don't exclude Me
     }
     
-    @WampRegisterProcedure(name="send_team_message")
+    @WampRegisterProcedure(name="send_team_message", bulkhead="db", priority="interactive")
     public void sendTeamMessage(WampSocket socket, String gid, WampObject data) throws Exception
     {
         Group g = Storage.findEntity(Group.class, gid);
@@ -977,13 +984,13 @@ public class Module extends WampModule
                     WampPublishOptions options = new WampPublishOptions();
                     options.setEligibleSessionIds(eligibleSet);
                     options.setDiscloseMe(true);
-                    socket.publishEvent(WampBroker.getTopic(getFQtopicURI("group_event."+g.getGid())), null, event, false, true);
+                    socket.publishEvent(getTopic("group_event."+g.getGid()), null, event, false, true);
                 }
             }
         }
     }
     
-    @WampRegisterProcedure(name="exit_group")
+    @WampRegisterProcedure(name="exit_group", bulkhead="db", orderBy="gid:0")
     public WampDict exitGroup(WampSocket socket, String gid) throws Exception
     {
             Client client = clients.get(socket.getWampSessionId());
@@ -1029,15 +1036,17 @@ public class Module extends WampModule
                 }
                 response.put("members", membersArray);
 
-                socket.publishEvent(WampBroker.getTopic(getFQtopicURI("group_event."+gid)), null, response, true, false); // exclude Me
+                socket.publishEvent(getTopic("group_event."+gid), null, response, true, false); // exclude Me
 
                 client.removeGroup(g);
                 
                 String topicName = getFQtopicURI("group_event." + g.getGid());
 
                 WampTopic topic = WampBroker.getTopic(topicName);
-                for(WampSubscription subscription : topic.getSubscriptions()) {
-                    subscription.removeSocket(socket.getWampSessionId());
+                if(topic != null) {
+                    for(WampSubscription subscription : topic.getSubscriptions()) {
+                        subscription.removeSocket(socket.getWampSessionId());
+                    }
                 }
                 
                 broadcastAppEventInfo(socket, g, "group_updated"); 
@@ -1051,7 +1060,7 @@ public class Module extends WampModule
     }
     
     
-    @WampRegisterProcedure(name="delete_finished_groups")
+    @WampRegisterProcedure(name="delete_finished_groups", bulkhead="db", priority="batch")
     public void deleteFinishedGroups(WampSocket socket) throws Exception
     {   
         EntityManager manager = Storage.getEntityManager();
@@ -1142,13 +1151,13 @@ public class Module extends WampModule
         WampPublishOptions options = new WampPublishOptions();
         options.setEligibleSessionIds(eligible);
         options.setExcludedSessionIds(null);
-        WampBroker.publishEvent(socket.getRealm(), WampProtocol.newGlobalScopeId(), WampBroker.getTopic(getFQtopicURI("apps_event")), null, event, options, null, true);
+        WampBroker.publishEvent(socket.getRealm(), WampProtocol.newGlobalScopeId(), getTopic("apps_event"), null, event, options, null, true);
         
-        socket.publishEvent(WampBroker.getTopic(getFQtopicURI("app_event." + g.getApplication().getAppId())), null, event, false, false);     // broadcasts to all application subscribers
+        socket.publishEvent(getTopic("app_event." + g.getApplication().getAppId()), null, event, false, false);     // broadcasts to all application subscribers
     }
     
     
-    @WampRegisterProcedure(name = "list_groups")
+    @WampRegisterProcedure(name = "list_groups", coalesce = true, bulkhead = "db")
     public WampDict listGroups(WampSocket socket, String appId, GroupState state, GroupFilter.Scope scope) throws Exception
     {
         WampDict retval = new WampDict();
@@ -1175,7 +1184,7 @@ public class Module extends WampModule
     }    
 
     
-    @WampRegisterProcedure(name = "add_action")
+    @WampRegisterProcedure(name = "add_action", bulkhead = "db", orderBy = "gid:0", priority = "interactive")
     public boolean addAction(WampSocket socket, String gid, Long playerSlot, String actionName, String actionValue) throws Exception
     {
         boolean retval = false;
@@ -1216,7 +1225,7 @@ public class Module extends WampModule
                 event.put("gid", g.getGid());
                 event.put("action", action.toWampObject());
                 
-                socket.publishEvent(WampBroker.getTopic(getFQtopicURI("group_event."+g.getGid())), null, event, excludeMe, false);
+                socket.publishEvent(getTopic("group_event."+g.getGid()), null, event, excludeMe, false);
                 broadcastAppEventInfo(socket, g, "group_updated"); // i.e: turn change
                 notifyOfflineUsers(socket, g, getActionNameDescription(actionName));
                 
@@ -1230,7 +1239,7 @@ public class Module extends WampModule
     }
 
     
-    @WampRegisterProcedure(name = "get_ranking")
+    @WampRegisterProcedure(name = "get_ranking", bulkhead = "db", priority = "batch")
     public WampList getRanking(WampSocket socket, String appId, Long min) throws Exception
     {
         min = Math.max(5l, min);
@@ -1257,7 +1266,7 @@ public class Module extends WampModule
     }
     
     
-    @WampRegisterProcedure(name = "get_profile")
+    @WampRegisterProcedure(name = "get_profile", bulkhead = "db", priority = "batch")
     public WampDict getProfile(WampSocket socket, String opponentUid) throws Exception
     {
         EntityManager manager = null;
@@ -0,0 +1,262 @@
+package org.wgs.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Concurrent map with primitive long keys (or pairs of long keys),
+ * without boxing nor entry objects.
+ *
+ * The entries are kept in open-addressing tables (linear probing with
+ * backward shift deletion), split in segments with short critical sections.
+ * The segments are created on their first insertion, so the short-lived maps 
+ * (with 1 segment) only allocate a small table when they are used.
+ * The size is tracked with an atomic counter.
+ */
+public class ConcurrentLongHashMap<V>
+{
+    private static final int MAX_SEGMENT_COUNT = 16;    // power of 2
+    private static final int INITIAL_SEGMENT_CAPACITY = 8;
+
+    private final AtomicReferenceArray<Segment<V>> segments;
+    private final int segmentMask;
+    private final AtomicInteger size = new AtomicInteger(0);
+
+
+    public ConcurrentLongHashMap()
+    {
+        this(MAX_SEGMENT_COUNT);
+    }
+
+    /**
+     * @param concurrencyLevel the expected number of concurrent writers (up to 16 segments)
+     */
+    public ConcurrentLongHashMap(int concurrencyLevel)
+    {
+        int segmentCount = 1;
+        while(segmentCount < Math.min(concurrencyLevel, MAX_SEGMENT_COUNT)) segmentCount <<= 1;
+        segments = new AtomicReferenceArray<Segment<V>>(segmentCount);
+        segmentMask = segmentCount - 1;
+    }
+
+
+    public V get(long key)
+    {
+        return get(key, 0L);
+    }
+
+    public V get(long key1, long key2)
+    {
+        long hash = hash(key1, key2);
+        Segment<V> segment = segmentFor(hash, false);
+        return (segment != null)? segment.get(key1, key2, hash) : null;
+    }
+
+    public V put(long key, V value)
+    {
+        return put(key, 0L, value);
+    }
+
+    public V put(long key1, long key2, V value)
+    {
+        long hash = hash(key1, key2);
+        V previous = segmentFor(hash, true).put(key1, key2, hash, value);
+        if(previous == null) size.incrementAndGet();
+        return previous;
+    }
+
+    public V remove(long key)
+    {
+        return remove(key, 0L);
+    }
+
+    public V remove(long key1, long key2)
+    {
+        long hash = hash(key1, key2);
+        Segment<V> segment = segmentFor(hash, false);
+        V previous = (segment != null)? segment.remove(key1, key2, hash) : null;
+        if(previous != null) size.decrementAndGet();
+        return previous;
+    }
+
+    public int size()
+    {
+        return size.get();
+    }
+
+    public boolean isEmpty()
+    {
+        return size.get() == 0;
+    }
+
+    /**
+     * @return a snapshot of the first keys of the entries
+     */
+    public long[] keys()
+    {
+        long[] retval = new long[size()];
+        int count = 0;
+        for(int s = 0; s < segments.length(); s++) {
+            Segment<V> segment = segments.get(s);
+            if(segment == null) continue;
+            synchronized(segment) {
+                for(int i = 0; i < segment.used.length; i++) {
+                    if(segment.used[i]) {
+                        if(count == retval.length) retval = java.util.Arrays.copyOf(retval, count * 2 + 1);
+                        retval[count++] = segment.keys1[i];
+                    }
+                }
+            }
+        }
+        return (count == retval.length)? retval : java.util.Arrays.copyOf(retval, count);
+    }
+
+    /**
+     * @return a snapshot of the values
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values()
+    {
+        ArrayList<V> retval = new ArrayList<V>(size());
+        for(int s = 0; s < segments.length(); s++) {
+            Segment<V> segment = segments.get(s);
+            if(segment == null) continue;
+            synchronized(segment) {
+                for(int i = 0; i < segment.used.length; i++) {
+                    if(segment.used[i]) retval.add((V)segment.values[i]);
+                }
+            }
+        }
+        return retval;
+    }
+
+
+    private Segment<V> segmentFor(long hash, boolean create)
+    {
+        int index = (int)(hash >>> 60) & segmentMask;
+        Segment<V> segment = segments.get(index);
+        if(segment == null && create) {
+            segments.compareAndSet(index, null, new Segment<V>());
+            segment = segments.get(index);
+        }
+        return segment;
+    }
+
+    private static long hash(long key1, long key2)
+    {
+        long h = key1 * 0x9E3779B97F4A7C15L + key2;
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        return h;
+    }
+
+
+    private static class Segment<V>
+    {
+        private long[] keys1 = new long[INITIAL_SEGMENT_CAPACITY];
+        private long[] keys2 = new long[INITIAL_SEGMENT_CAPACITY];
+        private Object[] values = new Object[INITIAL_SEGMENT_CAPACITY];
+        private boolean[] used = new boolean[INITIAL_SEGMENT_CAPACITY];
+        private int count = 0;
+
+        @SuppressWarnings("unchecked")
+        synchronized V get(long key1, long key2, long hash)
+        {
+            int mask = used.length - 1;
+            for(int i = (int)hash & mask; used[i]; i = (i + 1) & mask) {
+                if(keys1[i] == key1 && keys2[i] == key2) return (V)values[i];
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V put(long key1, long key2, long hash, V value)
+        {
+            if((count + 1) * 4 > used.length * 3) resize(used.length * 2);
+            int mask = used.length - 1;
+            int i = (int)hash & mask;
+            while(used[i]) {
+                if(keys1[i] == key1 && keys2[i] == key2) {
+                    V previous = (V)values[i];
+                    values[i] = value;
+                    return previous;
+                }
+                i = (i + 1) & mask;
+            }
+            used[i] = true;
+            keys1[i] = key1;
+            keys2[i] = key2;
+            values[i] = value;
+            count++;
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V remove(long key1, long key2, long hash)
+        {
+            int mask = used.length - 1;
+            int i = (int)hash & mask;
+            while(used[i]) {
+                if(keys1[i] == key1 && keys2[i] == key2) {
+                    V previous = (V)values[i];
+                    deleteSlot(i);
+                    count--;
+                    return previous;
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        private void deleteSlot(int free)
+        {
+            // backward shift deletion: moves the next entries of the probe sequence to the free slot
+            int mask = used.length - 1;
+            int i = free;
+            while(true) {
+                i = (i + 1) & mask;
+                if(!used[i]) break;
+                int home = (int)hash(keys1[i], keys2[i]) & mask;
+                boolean movable = (free <= i)? (home <= free || home > i) : (home <= free && home > i);
+                if(movable) {
+                    keys1[free] = keys1[i];
+                    keys2[free] = keys2[i];
+                    values[free] = values[i];
+                    free = i;
+                }
+            }
+            used[free] = false;
+            values[free] = null;
+        }
+
+        private void resize(int capacity)
+        {
+            long[] oldKeys1 = keys1;
+            long[] oldKeys2 = keys2;
+            Object[] oldValues = values;
+            boolean[] oldUsed = used;
+
+            keys1 = new long[capacity];
+            keys2 = new long[capacity];
+            values = new Object[capacity];
+            used = new boolean[capacity];
+
+            int mask = capacity - 1;
+            for(int j = 0; j < oldUsed.length; j++) {
+                if(oldUsed[j]) {
+                    int i = (int)hash(oldKeys1[j], oldKeys2[j]) & mask;
+                    while(used[i]) i = (i + 1) & mask;
+                    used[i] = true;
+                    keys1[i] = oldKeys1[j];
+                    keys2[i] = oldKeys2[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+    }
+
+}
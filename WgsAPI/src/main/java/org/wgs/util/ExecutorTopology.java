@@ -0,0 +1,121 @@
+package org.wgs.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Executors of the RPC and module handlers, and the bulkheads (semaphores)
+ * that bound the concurrency of the handlers that block on shared resources (i.e: the database).
+ *
+ * Models:
+ * - "virtual": a virtual thread per task (with "parallelism" carrier threads), when the JVM supports it.
+ * - "fixed": a bounded pool of platform threads (the default when virtual threads aren't available).
+ * - "cached": an unbounded pool of platform threads.
+ */
+public class ExecutorTopology
+{
+    private static final Logger logger = Logger.getLogger(ExecutorTopology.class.getName());
+
+    public enum ModelEnum { virtual, fixed, cached }
+
+    private static ConcurrentHashMap<String,Semaphore> bulkheads = new ConcurrentHashMap<String,Semaphore>();
+
+
+    /**
+     * @param model the executor model
+     * @param threads the number of platform threads of the "fixed" model
+     * @param parallelism the number of carrier threads of the "virtual" model (0 for the JVM default)
+     */
+    public static ExecutorService newExecutor(ModelEnum model, int threads, int parallelism)
+    {
+        if(threads <= 0) threads = 4 * Runtime.getRuntime().availableProcessors();
+
+        switch(model) {
+            case virtual:
+                ExecutorService virtualExecutor = newVirtualThreadPerTaskExecutor(parallelism);
+                if(virtualExecutor != null) return virtualExecutor;
+                logger.log(Level.WARNING, "Virtual threads aren't supported by this JVM: using a fixed pool of {0} threads", threads);
+                return newFixedExecutor(threads);
+
+            case cached:
+                return Executors.newCachedThreadPool();
+
+            default:
+                return newFixedExecutor(threads);
+        }
+    }
+
+    private static ExecutorService newFixedExecutor(int threads)
+    {
+        final AtomicInteger count = new AtomicInteger(0);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "wgs-rpc-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor(int parallelism)
+    {
+        // the carrier parallelism must be set before the creation of the first virtual thread
+        if(parallelism > 0 && System.getProperty("jdk.virtualThreadScheduler.parallelism") == null) {
+            System.setProperty("jdk.virtualThreadScheduler.parallelism", String.valueOf(parallelism));
+        }
+
+        try {
+            // resolved at runtime: the sources target Java 8
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)factory.invoke(null);
+        } catch(Exception ex) {
+            return null;
+        }
+    }
+
+
+    /**
+     * @return the maximum number of concurrent tasks of an executor:
+     *         the threads of a "fixed" pool, or 16 tasks per processor for the "virtual" and "cached" models
+     *         (the tasks are only queued by priority when the limit is reached)
+     */
+    public static int getMaxConcurrency(ExecutorService executor)
+    {
+        if(executor instanceof ThreadPoolExecutor && ((ThreadPoolExecutor)executor).getMaximumPoolSize() < Integer.MAX_VALUE) {
+            return ((ThreadPoolExecutor)executor).getMaximumPoolSize();
+        }
+        return 16 * Runtime.getRuntime().availableProcessors();
+    }
+
+
+    /**
+     * Configures the number of permits of a bulkhead.
+     */
+    public static void setBulkheadPermits(String name, int permits)
+    {
+        bulkheads.put(name, new Semaphore(permits, true));
+    }
+
+    /**
+     * @return the semaphore of a bulkhead, or null when it isn't configured (unbounded)
+     */
+    public static Semaphore getBulkhead(String name)
+    {
+        return (name == null || name.length() == 0)? null : bulkheads.get(name);
+    }
+
+}
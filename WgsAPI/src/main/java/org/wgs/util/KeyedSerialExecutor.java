@@ -0,0 +1,144 @@
+package org.wgs.util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Executes the tasks with the same key in their arrival order (one at a time),
+ * and the tasks with different keys in parallel on the delegate executor.
+ *
+ * When the delegate is a PriorityExecutor, each task is dispatched with its own priority
+ * (the order of the tasks with the same key is preserved).
+ *
+ * When there isn't a delegate executor, the tasks run on the calling thread,
+ * except when the key is busy: then they are queued, and the thread
+ * that is running the key will run them after the current task.
+ */
+public class KeyedSerialExecutor
+{
+    private static final Logger logger = Logger.getLogger(KeyedSerialExecutor.class.getName());
+
+    private Executor delegate;
+    private ConcurrentHashMap<Object,SerialQueue> queues = new ConcurrentHashMap<Object,SerialQueue>();
+
+
+    /**
+     * @param delegate the executor of the tasks (or null to run them on the calling threads)
+     */
+    public KeyedSerialExecutor(Executor delegate)
+    {
+        this.delegate = delegate;
+    }
+
+
+    public void execute(Object key, Runnable task)
+    {
+        execute(key, task, -1);
+    }
+
+    /**
+     * @param priority the priority of the task in a PriorityExecutor delegate (-1 for the default)
+     */
+    public void execute(Object key, Runnable task, int priority)
+    {
+        while(true) {
+            SerialQueue queue = queues.get(key);
+            if(queue == null) {
+                SerialQueue newQueue = new SerialQueue(key);
+                queue = queues.putIfAbsent(key, newQueue);
+                if(queue == null) queue = newQueue;
+            }
+            if(queue.offer(task, priority)) return;
+            // the queue was retired after its last task: retry with a new one
+        }
+    }
+
+    /**
+     * @return the number of keys with queued or running tasks
+     */
+    public int getActiveKeyCount()
+    {
+        return queues.size();
+    }
+
+
+    private class SerialQueue implements Runnable
+    {
+        private Object key;
+        private ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+        private ArrayDeque<Integer> priorities = new ArrayDeque<Integer>();
+        private boolean running;
+        private boolean retired;
+
+        SerialQueue(Object key)
+        {
+            this.key = key;
+        }
+
+        boolean offer(Runnable task, int priority)
+        {
+            synchronized(this) {
+                if(retired) return false;
+                tasks.add(task);
+                priorities.add(priority);
+                if(running) return true;
+                running = true;
+            }
+
+            if(delegate != null) submit(priority);
+            else run();
+            return true;
+        }
+
+        private void submit(int priority)
+        {
+            if(priority >= 0 && delegate instanceof PriorityExecutor) ((PriorityExecutor)delegate).execute(this, priority);
+            else delegate.execute(this);
+        }
+
+        @Override
+        public void run()
+        {
+            while(true) {
+                Runnable task;
+                synchronized(this) {
+                    task = tasks.poll();
+                    priorities.poll();
+                    if(task == null) {
+                        running = false;
+                        retired = true;
+                        queues.remove(key, this);
+                        return;
+                    }
+                }
+
+                try {
+                    task.run();
+                } catch(Throwable ex) {
+                    logger.log(Level.WARNING, "Error executing task of " + key, ex);
+                }
+
+                if(delegate != null) {
+                    // one task per dispatch: the next one is scheduled with its own priority
+                    Integer next;
+                    synchronized(this) {
+                        next = priorities.peek();
+                        if(next == null) {
+                            running = false;
+                            retired = true;
+                            queues.remove(key, this);
+                            return;
+                        }
+                    }
+                    submit(next);
+                    return;
+                }
+            }
+        }
+    }
+
+}
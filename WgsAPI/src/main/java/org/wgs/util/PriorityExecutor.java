@@ -0,0 +1,135 @@
+package org.wgs.util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Multi-level queues in front of an executor: up to "maxConcurrency" tasks run
+ * on the delegate executor, and the waiting tasks are dispatched by priority
+ * (0 is the highest priority).
+ *
+ * To avoid the starvation of the lower priorities, a task that has waited
+ * more than "agingMillis" is dispatched before the tasks with higher priority
+ * (the oldest one first).
+ */
+public class PriorityExecutor implements Executor
+{
+    private static final Logger logger = Logger.getLogger(PriorityExecutor.class.getName());
+
+    private Executor delegate;
+    private int maxConcurrency;
+    private long agingMillis;
+    private int defaultPriority;
+    private ArrayDeque<Entry>[] queues;
+    private int running;
+
+
+    /**
+     * @param delegate the executor of the tasks
+     * @param levels the number of priorities
+     * @param maxConcurrency the maximum number of running tasks
+     * @param agingMillis the maximum waiting time before a task is dispatched regardless of its priority
+     */
+    @SuppressWarnings("unchecked")
+    public PriorityExecutor(Executor delegate, int levels, int maxConcurrency, long agingMillis)
+    {
+        this.delegate = delegate;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.agingMillis = agingMillis;
+        this.defaultPriority = levels / 2;
+        this.queues = (ArrayDeque<Entry>[])new ArrayDeque<?>[levels];
+        for(int i = 0; i < levels; i++) queues[i] = new ArrayDeque<Entry>();
+    }
+
+
+    @Override
+    public void execute(Runnable task)
+    {
+        execute(task, defaultPriority);
+    }
+
+    public void execute(Runnable task, int priority)
+    {
+        priority = Math.max(0, Math.min(queues.length - 1, priority));
+        synchronized(this) {
+            queues[priority].add(new Entry(task, System.currentTimeMillis()));
+        }
+        dispatch();
+    }
+
+    public synchronized int getQueuedCount()
+    {
+        int count = 0;
+        for(ArrayDeque<Entry> queue : queues) count += queue.size();
+        return count;
+    }
+
+
+    private void dispatch()
+    {
+        while(true) {
+            final Entry entry;
+            synchronized(this) {
+                if(running >= maxConcurrency) return;
+                entry = next(System.currentTimeMillis());
+                if(entry == null) return;
+                running++;
+            }
+
+            try {
+                delegate.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            entry.task.run();
+                        } catch(Throwable ex) {
+                            logger.log(Level.WARNING, "Error executing task", ex);
+                        } finally {
+                            synchronized(PriorityExecutor.this) { running--; }
+                            dispatch();
+                        }
+                    }
+                });
+            } catch(RuntimeException ex) {
+                synchronized(this) { running--; }
+                throw ex;
+            }
+        }
+    }
+
+    private Entry next(long now)
+    {
+        // starvation protection: the oldest task that exceeds the aging time
+        int aged = -1;
+        for(int i = 1; i < queues.length; i++) {
+            Entry head = queues[i].peek();
+            if(head != null && now - head.enqueued >= agingMillis
+                    && (aged == -1 || head.enqueued < queues[aged].peek().enqueued)) {
+                aged = i;
+            }
+        }
+        if(aged != -1) return queues[aged].poll();
+
+        for(ArrayDeque<Entry> queue : queues) {
+            if(!queue.isEmpty()) return queue.poll();
+        }
+        return null;
+    }
+
+
+    private static class Entry
+    {
+        private Runnable task;
+        private long enqueued;
+
+        Entry(Runnable task, long enqueued)
+        {
+            this.task = task;
+            this.enqueued = enqueued;
+        }
+    }
+
+}
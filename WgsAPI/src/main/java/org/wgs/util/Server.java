@@ -30,6 +30,8 @@ import org.glassfish.tyrus.server.TyrusServerContainer;
 import org.wgs.wamp.WampApplication;
 import org.wgs.wamp.WampCluster;
 import org.wgs.wamp.WampModule;
+import org.wgs.wamp.WampRealm;
+import org.wgs.wamp.WampSlowConsumerPolicy;
 import org.wgs.wamp.topic.WampBroker;
 import org.wgs.wamp.transport.http.longpolling.WampLongPollingServlet;
 import org.wgs.wamp.transport.http.websocket.WampEndpoint;
@@ -239,6 +241,49 @@ public class Server
 
     
         
+    private static ExecutorService setupExecutors(Properties serverConfig)
+    {
+        ExecutorTopology.ModelEnum model = ExecutorTopology.ModelEnum.valueOf(serverConfig.getProperty("rpc.executor", "virtual").toLowerCase());
+        int threads = Integer.parseInt(serverConfig.getProperty("rpc.executor.threads", "0"));
+        int parallelism = Integer.parseInt(serverConfig.getProperty("rpc.executor.parallelism", "0"));
+        String maxConcurrency = serverConfig.getProperty("rpc.executor.max_concurrency");
+        if(maxConcurrency != null && System.getProperty("WGS_RPC_MAX_CONCURRENCY") == null) {
+            System.setProperty("WGS_RPC_MAX_CONCURRENCY", maxConcurrency);
+        }
+
+        String bulkheads = serverConfig.getProperty("bulkheads", "db");
+        StringTokenizer tokenizer = new StringTokenizer(bulkheads, ",");
+        while(tokenizer.hasMoreTokens()) {
+            String bulkhead = tokenizer.nextToken().trim();
+            int permits = Integer.parseInt(serverConfig.getProperty("bulkhead." + bulkhead + ".permits", "20"));
+            ExecutorTopology.setBulkheadPermits(bulkhead, permits);
+        }
+
+        return ExecutorTopology.newExecutor(model, threads, parallelism);
+    }
+
+    
+    private static void setupRealms(Properties serverConfig)
+    {
+        String realms = serverConfig.getProperty("realms");
+        if(realms == null) return;
+        
+        StringTokenizer tokenizer = new StringTokenizer(realms, ",");
+        while(tokenizer.hasMoreTokens()) {
+            String realm = tokenizer.nextToken().trim();
+            String policyName = serverConfig.getProperty("realm." + realm + ".slow_consumer");
+            if(policyName == null || "cluster".equals(realm)) continue;  // the realm keeps the default policy (if any)
+            
+            WampSlowConsumerPolicy.ActionEnum action = WampSlowConsumerPolicy.ActionEnum.valueOf(policyName.toLowerCase());
+            WampSlowConsumerPolicy defaultPolicy = new WampSlowConsumerPolicy(action);
+            int maxMessages = Integer.parseInt(serverConfig.getProperty("realm." + realm + ".slow_consumer.max_messages", String.valueOf(defaultPolicy.getMaxMessages())));
+            long maxBytes = Long.parseLong(serverConfig.getProperty("realm." + realm + ".slow_consumer.max_bytes", String.valueOf(defaultPolicy.getMaxBytes())));
+            int sampleRate = Integer.parseInt(serverConfig.getProperty("realm." + realm + ".slow_consumer.sample_rate", String.valueOf(defaultPolicy.getSampleRate())));
+            WampRealm.getRealm(realm).setSlowConsumerPolicy(new WampSlowConsumerPolicy(action, maxMessages, maxBytes, sampleRate));
+        }
+    }
+    
+    
     public static void main(String[] args) throws Exception 
     {
         start(getServerConfig(args));
@@ -269,7 +314,8 @@ public class Server
         
         try {
             // Configure JNDI factories:
-            execService = Executors.newCachedThreadPool();
+            execService = setupExecutors(serverConfig);
+            setupRealms(serverConfig);
             scheduledExecService = Executors.newScheduledThreadPool(100);
             ctx.bind("concurrent/WampRpcExecutorService", execService);
             ctx.bind("java:comp/DefaultManagedExecutorService", execService);
@@ -113,6 +113,42 @@ public class Storage
         return entity;
     }    
     
+    public static int executeUpdate(String namedQueryName, Object ... params)
+    {
+        int count = 0;
+        EntityManager manager = null;
+        EntityTransaction transaction = null;
+        
+        try {
+            manager = getEntityManager();
+            transaction = manager.getTransaction();
+
+            transaction.begin();
+            javax.persistence.Query query = manager.createNamedQuery(namedQueryName);
+            if(params != null) {
+                for(int index = 0; index < params.length; index++) {
+                    query.setParameter(index+1, params[index]);
+                }
+            }
+            count = query.executeUpdate();
+            transaction.commit();
+            
+        } catch(Exception ex) {
+            if(transaction != null) {
+                try { transaction.rollback(); } 
+                catch(Exception ex2) { }
+            }
+            throw ex;
+            
+        } finally {
+            if(manager != null) {
+                try { manager.close(); } 
+                catch(Exception ex) { }
+            }
+        }
+        return count;
+    }
+    
     public static <T> T findEntity(Class<T> cls, Object key) 
     {
         T entity = null;
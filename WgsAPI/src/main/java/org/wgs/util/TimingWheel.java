@@ -0,0 +1,252 @@
+package org.wgs.util;
+
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Hierarchical timing wheel.
+ *
+ * Timeouts are kept in intrusive linked lists (O(1) schedule and cancel),
+ * and a single daemon thread advances the wheels one tick at a time,
+ * cascading the timeouts of the upper levels when their slot is reached.
+ * The thread waits without ticking while there are no pending timeouts.
+ */
+public class TimingWheel
+{
+    private static final Logger logger = Logger.getLogger(TimingWheel.class.getName());
+
+    private final long tickMillis;
+    private final int  wheelBits;
+    private final int  wheelMask;
+    private final int  levels;
+    private final Timeout[][] buckets;
+    private final long startTime;
+
+    private long currentTick;
+    private int  pendingCount;
+    private boolean stopped;
+    private Thread worker;
+
+
+    public TimingWheel(String name, long tickMillis, int wheelBits, int levels)
+    {
+        this.tickMillis = tickMillis;
+        this.wheelBits = wheelBits;
+        this.wheelMask = (1 << wheelBits) - 1;
+        this.levels = levels;
+        this.buckets = new Timeout[levels][1 << wheelBits];
+        this.startTime = System.currentTimeMillis();
+
+        this.worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                TimingWheel.this.run();
+            }
+        }, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+
+    public Timeout schedule(Runnable task, long delayMillis)
+    {
+        return scheduleAt(task, System.currentTimeMillis() + Math.max(0L, delayMillis));
+    }
+
+    public synchronized Timeout scheduleAt(Runnable task, long timeMillis)
+    {
+        if(stopped) throw new IllegalStateException("TimingWheel stopped");
+
+        if(pendingCount == 0) currentTick = getTick(System.currentTimeMillis());  // idle wheel: resync
+
+        Timeout timeout = new Timeout(this, task, timeMillis);
+        timeout.deadlineTick = Math.max(currentTick + 1, (timeMillis - startTime + tickMillis - 1) / tickMillis);
+        insert(timeout);
+        pendingCount++;
+        if(pendingCount == 1) notifyAll();
+        return timeout;
+    }
+
+    public synchronized int getPendingCount()
+    {
+        return pendingCount;
+    }
+
+    public synchronized void stop()
+    {
+        stopped = true;
+        notifyAll();
+    }
+
+
+    private long getTick(long timeMillis)
+    {
+        return (timeMillis - startTime) / tickMillis;
+    }
+
+    private void insert(Timeout timeout)
+    {
+        long delta = timeout.deadlineTick - currentTick;
+        if(delta < 0) {
+            timeout.deadlineTick = currentTick;   // cascaded while overdue: expire in the current tick
+            delta = 0;
+        }
+
+        int level = 0;
+        while(level < levels-1 && delta >= (1L << (wheelBits * (level+1)))) {
+            level++;
+        }
+
+        long placementTick = timeout.deadlineTick;
+        long maxTick = currentTick + (1L << (wheelBits * levels)) - 1;
+        if(placementTick > maxTick) placementTick = maxTick;  // re-cascaded until it's due
+
+        int index = (int)((placementTick >>> (wheelBits * level)) & wheelMask);
+        timeout.level = level;
+        timeout.index = index;
+        timeout.prev = null;
+        timeout.next = buckets[level][index];
+        if(timeout.next != null) timeout.next.prev = timeout;
+        buckets[level][index] = timeout;
+    }
+
+    private void unlink(Timeout timeout)
+    {
+        if(timeout.prev != null) timeout.prev.next = timeout.next;
+        else buckets[timeout.level][timeout.index] = timeout.next;
+        if(timeout.next != null) timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+    }
+
+    private synchronized boolean cancel(Timeout timeout)
+    {
+        if(timeout.state != Timeout.PENDING) return false;
+        timeout.state = Timeout.CANCELLED;
+        unlink(timeout);
+        pendingCount--;
+        return true;
+    }
+
+
+    private synchronized ArrayList<Timeout> advance(long targetTick)
+    {
+        ArrayList<Timeout> expired = null;
+
+        while(currentTick < targetTick && pendingCount > 0) {
+            currentTick++;
+
+            for(int level = levels-1; level > 0; level--) {
+                long lowerMask = (1L << (wheelBits * level)) - 1;
+                if((currentTick & lowerMask) == 0) {
+                    int index = (int)((currentTick >>> (wheelBits * level)) & wheelMask);
+                    Timeout timeout = buckets[level][index];
+                    buckets[level][index] = null;
+                    while(timeout != null) {
+                        Timeout next = timeout.next;
+                        insert(timeout);
+                        timeout = next;
+                    }
+                }
+            }
+
+            int index = (int)(currentTick & wheelMask);
+            Timeout timeout = buckets[0][index];
+            while(timeout != null) {
+                Timeout next = timeout.next;
+                if(timeout.deadlineTick <= currentTick) {
+                    unlink(timeout);
+                    timeout.state = Timeout.EXPIRED;
+                    pendingCount--;
+                    if(expired == null) expired = new ArrayList<Timeout>();
+                    expired.add(timeout);
+                }
+                timeout = next;
+            }
+        }
+
+        if(pendingCount == 0) currentTick = targetTick;
+        return expired;
+    }
+
+
+    private void run()
+    {
+        while(true) {
+            long targetTick;
+            synchronized(this) {
+                try {
+                    while(!stopped && pendingCount == 0) wait();
+                    if(stopped) return;
+                    long nextTickTime = startTime + (currentTick + 1) * tickMillis;
+                    long waitMillis = nextTickTime - System.currentTimeMillis();
+                    if(waitMillis > 0) wait(waitMillis);
+                    if(stopped) return;
+                } catch(InterruptedException ex) {
+                    return;
+                }
+                targetTick = getTick(System.currentTimeMillis());
+            }
+
+            ArrayList<Timeout> expired = advance(targetTick);
+            if(expired != null) {
+                for(Timeout timeout : expired) {
+                    try {
+                        timeout.task.run();
+                    } catch(Throwable ex) {
+                        logger.log(Level.WARNING, "Error running timeout task", ex);
+                    }
+                }
+            }
+        }
+    }
+
+
+    public static class Timeout
+    {
+        private static final int PENDING   = 0;
+        private static final int EXPIRED   = 1;
+        private static final int CANCELLED = 2;
+
+        private final TimingWheel wheel;
+        private final Runnable task;
+        private final long deadline;
+        private long deadlineTick;
+        private int level;
+        private int index;
+        private Timeout prev;
+        private Timeout next;
+        private volatile int state;
+
+        private Timeout(TimingWheel wheel, Runnable task, long deadline)
+        {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+            this.state = PENDING;
+        }
+
+        public long getDeadline()
+        {
+            return deadline;
+        }
+
+        public boolean cancel()
+        {
+            return wheel.cancel(this);
+        }
+
+        public boolean isCancelled()
+        {
+            return state == CANCELLED;
+        }
+
+        public boolean isExpired()
+        {
+            return state == EXPIRED;
+        }
+    }
+
+}
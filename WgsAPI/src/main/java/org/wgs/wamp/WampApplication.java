@@ -1,6 +1,7 @@
 package org.wgs.wamp;
 
 import java.security.Principal;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -18,13 +19,19 @@ import org.jdeferred.Deferred;
 import org.wgs.security.OpenIdConnectUtils;
 import org.wgs.security.User;
 import org.wgs.security.WampCRA;
+import org.wgs.util.ExecutorTopology;
+import org.wgs.util.KeyedSerialExecutor;
+import org.wgs.util.PriorityExecutor;
 import org.wgs.util.Social;
 import org.wgs.wamp.api.WampAPI;
+import org.wgs.wamp.rpc.WampCallCoalescer;
 import org.wgs.wamp.rpc.WampCallController;
+import org.wgs.wamp.rpc.WampCancelOptions;
 import org.wgs.wamp.rpc.WampCallOptions;
 import org.wgs.wamp.rpc.WampCalleeRegistration;
 import org.wgs.wamp.rpc.WampInvocation;
 import org.wgs.wamp.rpc.WampMethod;
+import org.wgs.wamp.rpc.WampResultCache;
 import org.wgs.wamp.topic.WampBroker;
 import org.wgs.wamp.topic.WampSubscription;
 import org.wgs.wamp.topic.WampSubscriptionOptions;
@@ -48,6 +55,7 @@ public class WampApplication
     private Map<String,WampModule> modules;
     private WampModule defaultModule;
     private ExecutorService executorService;
+    private KeyedSerialExecutor orderedExecutor;
     private ConcurrentHashMap<Long,WampSocket> sockets;    
     
     private TreeMap<String,WampMethod> rpcsByName;
@@ -70,6 +78,22 @@ public class WampApplication
         return app;
     }
     
+    private static PriorityExecutor newPriorityExecutor(ExecutorService executorService)
+    {
+        if(executorService == null) return null;
+        
+        int maxConcurrency = ExecutorTopology.getMaxConcurrency(executorService);
+        long agingMillis = 500L;
+        try {
+            String concurrency = System.getProperty("WGS_RPC_MAX_CONCURRENCY");
+            if(concurrency != null) maxConcurrency = Integer.parseInt(concurrency);
+            String aging = System.getProperty("WGS_RPC_PRIORITY_AGING_MILLIS");
+            if(aging != null) agingMillis = Long.parseLong(aging);
+        } catch(Exception ex) { }
+        
+        return new PriorityExecutor(executorService, WampCallOptions.PriorityEnum.values().length, maxConcurrency, agingMillis);
+    }
+    
     private static String getAppKey(int version, String path)
     {
         String key = path + "_" + version;
@@ -83,6 +107,7 @@ public class WampApplication
             InitialContext ctx = new InitialContext();
             executorService = (ExecutorService)ctx.lookup("concurrent/WampRpcExecutorService");
         } catch(Exception ex) { }
+        this.orderedExecutor = new KeyedSerialExecutor(newPriorityExecutor(executorService));
         
         this.started = new AtomicBoolean(false);
         this.wampVersion = version;
@@ -123,6 +148,7 @@ public class WampApplication
     public boolean start() {
         if(!started.getAndSet(true)) {
             WampCluster.startApplicationNode();
+            WampBroker.startTopicEviction();
             return true;
         } else {
             return false;
@@ -184,6 +210,12 @@ public class WampApplication
         clientSocket.setRealm(realm);
         clientSocket.setHelloDetails(helloDetails);
         
+        // Re-attach a parked session (or start a new session when it can't be resumed):
+        if(helloDetails != null && helloDetails.has("_resume_token")
+                && WampSessionResumption.resume(this, clientSocket, realm, helloDetails.getText("_resume_token"))) {
+            return;
+        }
+        
         WampList authMethods = new WampList();
         if(helloDetails != null && helloDetails.has("authmethods")) {
             Object methods = helloDetails.get("authmethods");
@@ -309,6 +341,13 @@ public class WampApplication
     public void onWampSessionEstablished(WampSocket clientSocket, Long sessionId, WampDict details) 
     {
         clientSocket.setWampSessionId(sessionId);        
+        
+        if(details != null && details.has("_resumable") && Boolean.TRUE.equals(details.getBoolean("_resumable"))
+                && !"cluster".equals(clientSocket.getRealm())) {
+            WampSessionResumption resumption = new WampSessionResumption(this, clientSocket);
+            clientSocket.setResumption(resumption);
+            resumption.start();
+        }
 
         for(WampModule module : modules.values()) {
             try { 
@@ -325,6 +364,10 @@ public class WampApplication
     {
         if(clientSocket.getWampSessionId() != null) {
             
+            // The session can't be resumed:
+            WampSessionResumption resumption = clientSocket.getResumption();
+            if(resumption != null) resumption.end();
+            
             // First remove subscriptions to topic patterns:
             for(WampSubscription subscription : clientSocket.getSubscriptions()) {
                 if(subscription.getOptions().getMatchType() != WampMatchType.exact) {  // prefix or wildcards
@@ -346,20 +389,20 @@ public class WampApplication
                 }
             }         
 
-            // Remove RPC registrations
-            clientSocket.setWampSessionId(null);
-            
-
-            WampModule module = getDefaultWampModule();            
-            for(WampCalleeRegistration registration : clientSocket.getRpcRegistrations()) {
-                try {
-                    module.onUnregister(clientSocket, registration);
-                } catch(Exception ex) { }
+            // Remove RPC registrations and pending invocations 
+            // (with the session ID that indexes the callees of the registrations)
+            try {
+                getDefaultWampModule().onUnregisterSession(clientSocket);
+            } catch(Exception ex) {
+                logger.log(Level.SEVERE, "Error removing registrations of session:", ex);
             }
+            clientSocket.setWampSessionId(null);
 
-
-            if(clientSocket.getInvocationIDs().size() > 0) {
-                clientSocket.clearInvocations();
+            // The results of the pending calls can't be delivered: interrupt them
+            WampDict cancelOptions = new WampDict();
+            cancelOptions.put("mode", WampCancelOptions.CancelModeEnum.killnowait.toString());
+            for(WampCallController call : clientSocket.getCallControllers()) {
+                call.cancel(cancelOptions, null);
             }
 
             
@@ -376,6 +419,10 @@ public class WampApplication
     {
         Long requestType = request.getLong(0);
         if(logger.isLoggable(Level.FINEST)) logger.log(Level.FINEST, "RECEIVED MESSAGE TYPE: " + requestType);
+        
+        // Messages received by the transport of a resumed session:
+        WampSocket resumedSession = clientSocket.getResumedSession();
+        if(resumedSession != null) clientSocket = resumedSession;
 
         switch(requestType.intValue()) {
             case WampProtocol.HELLO:
@@ -404,7 +451,15 @@ public class WampApplication
                 WampDict subOptionsNode = (request.size() > 2) ? (WampDict)request.get(2) : null;
                 WampSubscriptionOptions subOptions = new WampSubscriptionOptions(subOptionsNode);
                 String subscriptionTopicName = request.getText(3);
-                WampBroker.subscribeClientWithTopic(this, clientSocket, requestId1, subscriptionTopicName, subOptions);
+                if(subOptionsNode != null && subOptionsNode.has("topics")) {
+                    ArrayList<String> subscriptionTopicNames = new ArrayList<String>();
+                    if(subscriptionTopicName != null && subscriptionTopicName.length() > 0) subscriptionTopicNames.add(subscriptionTopicName);
+                    WampList topicNames = (WampList)subOptionsNode.get("topics");
+                    for(int i = 0; i < topicNames.size(); i++) subscriptionTopicNames.add(topicNames.getText(i));
+                    WampBroker.subscribeClientWithTopics(this, clientSocket, requestId1, subscriptionTopicNames, subOptions);
+                } else {
+                    WampBroker.subscribeClientWithTopic(this, clientSocket, requestId1, subscriptionTopicName, subOptions);
+                }
                 break;
             case WampProtocol.UNSUBSCRIBE:
                 Long requestId2 = (request.size() > 1) ? request.getLong(1) : null;
@@ -429,6 +484,10 @@ public class WampApplication
                 registrationRealm.processRegisterMessage(this, clientSocket, request);
                 break;
             case WampProtocol.UNREGISTER:
+                if(request.size() > 3 && "cluster".equals(clientSocket.getRealm()) && ((WampDict)request.get(3)).has("_cluster_registrations")) {
+                    WampRealm.processClusterUnregisterMessage(this, clientSocket, request);
+                    break;
+                }
                 Long registrationId = request.getLong(2);
                 WampCalleeRegistration unregisterCalleeRegistration = WampRealm.getRegistration(registrationId);
                 WampRealm unregistrationRealm = WampRealm.getRealm(unregisterCalleeRegistration.getRealmName());
@@ -443,6 +502,9 @@ public class WampApplication
             case WampProtocol.YIELD:  // INVOCATION RESULT
                 processInvocationResult(clientSocket, request);
                 break;
+            case WampProtocol.CREDIT:
+                processCreditMessage(clientSocket, request);
+                break;
                 
             default:
                 logger.log(Level.SEVERE, "Request type not implemented: {0}", new Object[]{requestType});
@@ -456,7 +518,23 @@ public class WampApplication
     {
         if(clientSocket != null) {
 
-            onWampSessionEnd(clientSocket);
+            WampSocket resumedSession = clientSocket.getResumedSession();
+            if(resumedSession != null) {
+                // Transport of a resumed session (unless it has been replaced by another transport):
+                WampSessionResumption resumption = resumedSession.getResumption();
+                if(resumption != null && resumption.getTransport() == clientSocket) {
+                    onWampClose(resumedSession, reason);
+                }
+            } else {
+                // Park the resumable sessions that have lost their transport:
+                WampSessionResumption resumption = clientSocket.getResumption();
+                if(resumption != null && resumption.park(reason)) {
+                    logger.log(Level.FINEST, "Session parked: {0}", new Object[] {clientSocket.getWampSessionId()});
+                    return;
+                }
+                
+                onWampSessionEnd(clientSocket);
+            }
             
             clientSocket.close(reason);
             clientSocket.setState(WampConnectionState.OFFLINE);
@@ -610,9 +688,18 @@ public class WampApplication
         WampDict cancelOptions = (WampDict)request.get(2);
         WampCallController call = clientSocket.getCallController(callID);
         if(call != null) call.cancel(cancelOptions, null);
+        else if(WampCallCoalescer.cancel(clientSocket, callID)) WampProtocol.sendErrorMessage(clientSocket, WampProtocol.CALL, callID, null, WampException.ERROR_PREFIX + ".canceled", null, null);
         else WampProtocol.sendErrorMessage(clientSocket, WampProtocol.CANCEL_CALL, callID, null, "wamp.error.unknown_call", null, null);
     }
     
+    private void processCreditMessage(WampSocket clientSocket, WampList request) throws Exception
+    {
+        Long callID = request.getLong(1);
+        WampDict details = (WampDict)request.get(2);
+        WampCallController call = clientSocket.getCallController(callID);
+        if(call != null && details != null && details.has("credits")) call.grantCredits(details.getLong("credits").intValue());
+    }
+    
     private void processCallMessage(WampSocket clientSocket, WampList request) throws Exception
     {
         Long callID = request.getLong(1);
@@ -631,15 +718,42 @@ public class WampApplication
             argumentsKw = (WampDict)request.get(5);
         }
 
+        dispatchCall(clientSocket, callID, procedureURI, options, arguments, argumentsKw);
+    }
+
+    /**
+     * Executes a call: from the result cache, attached to an identical call in progress, or as a new call.
+     */
+    public void dispatchCall(WampSocket clientSocket, Long callID, String procedureURI, WampCallOptions options, WampList arguments, WampDict argumentsKw) throws Exception
+    {
+        String cacheKey = WampResultCache.getKey(procedureURI, clientSocket, arguments, argumentsKw, options);
+        if(cacheKey != null) {
+            if(WampResultCache.sendResult(cacheKey, clientSocket, callID)) return;
+        }
+
+        WampCallCoalescer.Group coalescingGroup = null;
+        String coalescingKey = WampCallCoalescer.getKey(procedureURI, clientSocket, arguments, argumentsKw, options);
+        if(coalescingKey != null) {
+            coalescingGroup = WampCallCoalescer.attach(coalescingKey, clientSocket, callID, procedureURI, options, arguments, argumentsKw);
+            if(coalescingGroup == null) return;  // waits for the result of the identical call in progress
+        }
+
         WampCallController call = new WampCallController(this, clientSocket, callID, procedureURI, options, arguments, argumentsKw);
+        call.setCacheKey(cacheKey);
+        call.setCoalescingGroup(coalescingGroup);
         clientSocket.addCallController(callID, call);
+        call.startTimeout();
 
-        if(executorService == null || call.isRemoteMethod()) {  
+        WampMethod localMethod = searchLocalRPC(procedureURI);
+        if(localMethod == null) {  
             // Ordering guarantees (RPC).
             call.run();
 
         } else {
-            executorService.submit(call);
+            // ordered by session (or by group), and in parallel with other sessions/groups
+            call.setInterruptible(executorService != null);
+            WampCallOptions.PriorityEnum priority = (options.getPriority() != null)? options.getPriority() : localMethod.getDefaultPriority();
+            orderedExecutor.execute(localMethod.getOrderingKey(clientSocket, arguments, argumentsKw), call, priority.ordinal());
         }
         
     }
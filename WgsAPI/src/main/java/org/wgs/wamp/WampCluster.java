@@ -12,6 +12,7 @@ import org.wgs.wamp.annotation.WampSubscribe;
 import org.wgs.wamp.client.WampClient;
 import org.wgs.wamp.rpc.WampCalleeRegistration;
 import org.wgs.wamp.rpc.WampRemoteMethod;
+import org.wgs.wamp.topic.WampBroker;
 import org.wgs.wamp.topic.WampPublishOptions;
 import org.wgs.wamp.type.WampDict;
 import org.wgs.wamp.type.WampList;
@@ -198,7 +199,10 @@ public class WampCluster extends WampModule
     {
         Node node = nodes.remove(uri);
         System.out.println("Cluster node removed: " + uri);
-        node.stop();
+        if(node != null) {
+            WampBroker.getGroupDirectory().removeNode(node.getBrokerId());
+            node.stop();
+        }
     }
     
     
@@ -224,19 +228,35 @@ public class WampCluster extends WampModule
             this.wgsTicket = wgsTicket;
         }
         
+        public String getBrokerId()
+        {
+            return this.brokerId;
+        }
+        
         public WampClient getWampClient()
         {
             return this.client;
         }
         
-        public static void registerClusteredRPC(WampClient client, WampRealm realm, WampCalleeRegistration registration, WampRemoteMethod remoteMethod) 
+        public static void registerClusteredRPC(WampClient client, WampRealm realm, WampCalleeRegistration registration, WampRemoteMethod remoteMethod, String peerBrokerId) 
         {
             WampDict options = new WampDict();
             options.put("_cluster_peer_realm", realm.getRealmName());            
             options.put("_cluster_peer_sid", remoteMethod.getRemotePeer().getWampSessionId());
             options.put("match", registration.getMatchType().toString());
+            options.put("invoke", registration.getInvokePolicy().toString());
             try { 
-                client.registerRPC(options, remoteMethod.getProcedureURI(), remoteMethod); 
+                client.registerRPC(options, remoteMethod.getProcedureURI(), remoteMethod).fail(error -> {
+                    // the nodes that accepted the same "single" registration at the same time reject the registration of the other node:
+                    // the callee of the node with the greatest brokerId is revoked
+                    if(registration.getInvokePolicy() == WampCalleeRegistration.InvokePolicyEnum.single 
+                            && "wamp.error.procedure_already_exists".equals(error.getErrorURI())
+                            && peerBrokerId != null && WampCluster.brokerId.compareTo(peerBrokerId) > 0) {
+                        realm.revokeCallee(registration, remoteMethod, "wamp.error.procedure_already_exists");
+                    } else {
+                        System.out.println("Error: registerClusteredRPC: " + remoteMethod.getProcedureURI() + ": " + error.getErrorURI());
+                    }
+                });
             } catch(Exception ex) {
                 System.out.println("Error: registerClusteredRPC: " + ex.getMessage());
                 ex.printStackTrace();
@@ -253,6 +273,16 @@ public class WampCluster extends WampModule
             }
         }        
         
+        public static void unregisterClusteredRPCs(WampClient client, Collection<String> procedureURIs) 
+        {
+            try { 
+                client.unregisterRPCs(procedureURIs); 
+            } catch(Exception ex) {
+                System.out.println("WampCluster.unregisterClusteredRPCs: error: " + ex.getMessage());
+                ex.printStackTrace();
+            }
+        }        
+        
         public void start() throws Exception
         {
             client = new WampClient(wgsClusterNodeEndpoint);
@@ -269,20 +299,21 @@ public class WampCluster extends WampModule
                                     WampCalleeRegistration registration = realm.getRegistration(registrationId);
                                     for(WampRemoteMethod remoteMethod : registration.getRemoteMethods(null, null)) {
                                         if(!"cluster".equals(remoteMethod.getRemotePeer().getRealm())) {
-                                            WampCluster.Node.registerClusteredRPC(client, realm, registration, remoteMethod);
+                                            WampCluster.Node.registerClusteredRPC(client, realm, registration, remoteMethod, brokerId);
                                         }
                                     }
                                 }
                                 for(WampCalleeRegistration registration : realm.getPatternRegistrations()) {                
                                     for(WampRemoteMethod remoteMethod : registration.getRemoteMethods(null, null)) {
                                         if(!"cluster".equals(remoteMethod.getRemotePeer().getRealm())) {
-                                            WampCluster.Node.registerClusteredRPC(client, realm, registration, remoteMethod);
+                                            WampCluster.Node.registerClusteredRPC(client, realm, registration, remoteMethod, brokerId);
                                         }
                                     }
                                 }
                             }
                         }    
 
+                        WampBroker.sendGroupMembers(clientSocket, null);
                     }                    
                 }
             });
@@ -1,5 +1,8 @@
 package org.wgs.wamp;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -15,12 +18,15 @@ import org.jdeferred.Promise;
 import org.jdeferred.impl.DeferredObject;
 import org.wgs.wamp.annotation.WampModuleName;
 import org.wgs.wamp.annotation.WampRegisterProcedure;
+import org.wgs.wamp.rpc.WampCallAggregator;
+import org.wgs.wamp.rpc.WampCallCoalescer;
 import org.wgs.wamp.rpc.WampCallController;
 import org.wgs.wamp.rpc.WampCallOptions;
 import org.wgs.wamp.rpc.WampCalleeRegistration;
 import org.wgs.wamp.rpc.WampLocalMethod;
 import org.wgs.wamp.rpc.WampMethod;
 import org.wgs.wamp.rpc.WampRemoteMethod;
+import org.wgs.wamp.rpc.WampResultCache;
 import org.wgs.wamp.topic.WampBroker;
 import org.wgs.wamp.topic.WampMetaTopic;
 import org.wgs.wamp.topic.WampPublishOptions;
@@ -36,14 +42,16 @@ import org.wgs.wamp.type.WampMatchType;
 public class WampModule 
 {
     private WampApplication app;
-    private HashMap<Long,Collection<Method>> eventListeners;  // by subscriptionId
+    private HashMap<Long,Collection<MethodHandle>> eventListeners;  // by subscriptionId
+    
+    private static final MethodType EVENT_LISTENER_TYPE = MethodType.methodType(void.class, WampSocket.class, Long.class, Long.class, WampDict.class, WampList.class, WampDict.class);
 
 
     public WampModule(WampApplication app) 
     {
         String moduleName = app.normalizeModuleName(getModuleName());
         this.app = app;
-        this.eventListeners = new HashMap<Long,Collection<Method>>();
+        this.eventListeners = new HashMap<Long,Collection<MethodHandle>>();
 
         for(Method method : this.getClass().getMethods()) {
             WampRegisterProcedure rpc = method.getAnnotation(WampRegisterProcedure.class);
@@ -52,6 +60,14 @@ public class WampModule
                 if(name.length() == 0) name = method.getName();
                 name = moduleName + name;
                 app.registerLocalRPC(rpc.match(), name, new WampLocalMethod(name,this,method));
+                if(rpc.cacheTtl() > 0L && rpc.match() == WampMatchType.exact) {
+                    ArrayList<String> topics = new ArrayList<String>();
+                    for(String topic : rpc.cacheInvalidationTopics()) topics.add(moduleName + topic);
+                    WampResultCache.enable(name, rpc.cacheTtl(), WampResultCache.ScopeEnum.valueOf(rpc.cacheScope()), topics);
+                }
+                if(rpc.coalesce() && rpc.match() == WampMatchType.exact) {
+                    WampCallCoalescer.enable(name, WampResultCache.ScopeEnum.valueOf(rpc.coalesceScope()));
+                }
             }
         }
         
@@ -73,9 +89,18 @@ public class WampModule
     
     public void addSubscriptionMethod(Long subscriptionId, Method method)
     {
-        Collection<Method> methods = eventListeners.get(subscriptionId);
-        if(methods == null) methods = new ArrayList<Method>();
-        methods.add(method);
+        MethodHandle handle = null;
+        try {
+            method.setAccessible(true);  // the module can be an anonymous or non-public class
+            handle = MethodHandles.lookup().unreflect(method).bindTo(this).asType(EVENT_LISTENER_TYPE);
+        } catch(Exception ex) {
+            System.out.println("WampModule.addSubscriptionMethod: invalid event listener " + method + ": " + ex.getMessage());
+            return;
+        }
+        
+        Collection<MethodHandle> methods = eventListeners.get(subscriptionId);
+        if(methods == null) methods = new ArrayList<MethodHandle>();
+        methods.add(handle);
         eventListeners.put(subscriptionId, methods);
     }
     
@@ -87,7 +112,7 @@ public class WampModule
     
     public void onWampSessionEstablished(WampSocket clientSocket, WampDict details) 
     { 
-        this.eventListeners = new HashMap<Long,Collection<Method>>();        
+        this.eventListeners = new HashMap<Long,Collection<MethodHandle>>();        
     }
     
     
@@ -117,6 +142,9 @@ public class WampModule
 
                 task.setPendingInvocationCount(remoteMethods.size());
                 task.setRemoteInvocationsCompletionCallback(deferred);
+                if(options.getRunOn() == WampCallOptions.RunOnEnum.all) {
+                    task.setAggregator(new WampCallAggregator(options.getAggregate(), options.getAggregateCount(), remoteMethods.size()));
+                }
                  
                 remoteMethods.parallelStream().forEach(remoteMethod -> {
                     try {
@@ -124,7 +152,12 @@ public class WampModule
                         remoteInvocation.done(new DoneCallback<WampResult>() {
                             @Override
                             public void onDone(WampResult wampResult) {
-                                if(!clientSocket.supportsProgressiveCallResults() || options.getRunMode() != WampCallOptions.RunModeEnum.progressive || remoteMethods.size() <= 1) {
+                                if(task.getAggregator() != null && (!clientSocket.supportsProgressiveCallResults() || options.getRunMode() != WampCallOptions.RunModeEnum.progressive)) {
+                                    task.incrementRemoteInvocationResults();
+                                    if(task.getAggregator().add(wampResult)) {
+                                        task.completeEarly();
+                                    }
+                                } else if(!clientSocket.supportsProgressiveCallResults() || options.getRunMode() != WampCallOptions.RunModeEnum.progressive || remoteMethods.size() <= 1) {
                                     synchronized(task) {
                                         task.incrementRemoteInvocationResults();
                                         task.getResultKw().putAll(wampResult.getArgsKw());
@@ -154,9 +187,14 @@ public class WampModule
                         remoteInvocation.fail(new FailCallback<WampException>() {
                             @Override
                             public void onFail(WampException error) {
-                                if(!task.isCancelled()) {
-                                    task.cancel(error.getArgsKw(), error);
+                                // RunOn.all: the calls complete with the results of the callees that remain connected
+                                boolean calleeDisconnected = options.getRunOn() == WampCallOptions.RunOnEnum.all 
+                                        && error.getDetails() != null && error.getDetails().has("reason")
+                                        && "wgs.callee_disconnected".equals(error.getDetails().getText("reason"));
+                                if(!task.isCancelled() && !calleeDisconnected) {
+                                    task.cancel(null, error);
                                 }
+                                task.removeRemoteInvocation(remoteMethod.getRemotePeer().getSocketId(), error.getInvocationId());
                             }
                          });
 
@@ -177,6 +215,9 @@ public class WampModule
         long sinceN = 0L;       // options.getSinceN();
         long sinceTime = 0L;    // options.getSinceTime();
         topic.addSubscription(subscription);
+        if(options != null && options.isReliable()) {
+            topic.enableReliableDelivery(WampBroker.topicRetransmitBufferSize);
+        }
         
         if(options != null && options.hasEventsEnabled() && options.hasMetaTopic(WampMetaTopic.SUBSCRIBER_ADDED)) {
             WampDict metaEvent = new WampDict();
@@ -225,7 +266,7 @@ public class WampModule
         if(!"cluster".equals(clientSocket.getRealm())) {
             WampRealm calleeRealm = WampRealm.getRealm(calleeRealmName);
             for(WampCluster.Node node : WampCluster.getNodes()) {
-                WampCluster.Node.registerClusteredRPC(node.getWampClient(), calleeRealm, registration, remoteMethod);
+                WampCluster.Node.registerClusteredRPC(node.getWampClient(), calleeRealm, registration, remoteMethod, node.getBrokerId());
             }
             //for(WampCluster.Node node : WampCluster.getNodes()) {
             //    node.getWampClient().waitResponses();
@@ -243,11 +284,9 @@ public class WampModule
             throw new WampException(null, "wamp.error.registration_not_found", null, null);
         } else {
             
-            clientSocket.removeRpcRegistration(registrationId);
-            WampRemoteMethod remoteMethod = registration.removeRemoteMethod(clientSocket);
-            //rpcsByName.remove(method.getProcedureURI());
+            WampRemoteMethod remoteMethod = removeCallee(clientSocket, realm, registration);
             
-            if(!"cluster".equals(clientSocket.getRealm())) {
+            if(remoteMethod != null && !"cluster".equals(clientSocket.getRealm())) {
                 for(WampCluster.Node node : WampCluster.getNodes()) {
                     WampCluster.Node.unregisterClusteredRPC(node.getWampClient(), realm, registration, remoteMethod);
                 }   
@@ -256,13 +295,46 @@ public class WampModule
                 //}
             }
 
-            clientSocket.clearInvocations();
-            
+            // the pending invocations of the procedure can still be responded by the callee
         }
     }    
     
+    /**
+     * Removes the router state of a closed session as callee: its registrations 
+     * (and the registrations left without callees), and its pending invocations. 
+     * The cluster nodes are notified with one message per node.
+     */
+    public void onUnregisterSession(WampSocket clientSocket)
+    {
+        ArrayList<String> procedureURIs = new ArrayList<String>();
+        for(WampCalleeRegistration registration : clientSocket.getRpcRegistrations()) {
+            WampRealm realm = WampRealm.getRealm(registration.getRealmName());
+            WampRemoteMethod remoteMethod = removeCallee(clientSocket, realm, registration);
+            if(remoteMethod != null) procedureURIs.add(remoteMethod.getProcedureURI());
+        }
+        
+        if(!procedureURIs.isEmpty() && !"cluster".equals(clientSocket.getRealm())) {
+            for(WampCluster.Node node : WampCluster.getNodes()) {
+                WampCluster.Node.unregisterClusteredRPCs(node.getWampClient(), procedureURIs);
+            }
+        }
+        
+        clientSocket.clearInvocations();
+    }
     
-    public void onPublish(WampSocket clientSocket, WampTopic topic, WampList request) throws Exception 
+    private WampRemoteMethod removeCallee(WampSocket clientSocket, WampRealm realm, WampCalleeRegistration registration)
+    {
+        clientSocket.removeRpcRegistration(registration.getId());
+        WampRemoteMethod remoteMethod = registration.removeRemoteMethod(clientSocket);
+        if(realm != null) realm.removeRegistrationIfUnused(registration);
+        return remoteMethod;
+    }
+    
+    
+    /**
+     * @return the ID of the publication (or null when it wasn't published)
+     */
+    public Long onPublish(WampSocket clientSocket, WampTopic topic, WampList request) throws Exception 
     {
         boolean  fromClusterNode = "cluster".equals(clientSocket.getRealm());
         WampDict publicationDetails = (WampDict)request.get(2);
@@ -284,6 +356,17 @@ public class WampModule
                 WampList payload   = (request.size() >= 5)? (WampList)request.get(4) : null;
                 WampDict payloadKw = (request.size() >= 6)? (WampDict)request.get(5) : null;;
                 WampPublishOptions options = new WampPublishOptions(publicationDetails);
+                boolean scheduled = !fromClusterNode && options.isScheduled();
+                if(scheduled) publicationId = WampProtocol.newRouterScopeId();  // it can be cancelled by ID
+                
+                if(!fromClusterNode && options.getIdempotencyKey() != null) {
+                    Long previousPublicationId = WampBroker.registerIdempotencyKey(clientSocket, options.getIdempotencyKey(), publicationId);
+                    if(previousPublicationId != null) {  // retry of a publication: acknowledge it without sending events
+                        if(options.hasAck()) WampProtocol.sendPublishedMessage(clientSocket, requestId, previousPublicationId);
+                        return previousPublicationId;
+                    }
+                }
+                
                 if(options.hasExcludeMe()) {
                     Set<Long> excludedSet = options.getExcludedSessionIds();
                     if(excludedSet == null) excludedSet = new HashSet<Long>();
@@ -314,19 +397,25 @@ public class WampModule
                     }
                 }      
 
-                WampBroker.publishEvent(realm, publicationId, topic, payload, payloadKw, options, eventDetails, !fromClusterNode);
+                if(scheduled) {
+                    WampBroker.schedulePublication(app, realm, publicationId, topic, payload, payloadKw, options, eventDetails, clientSocket.getWampSessionId());
+                } else {
+                    WampBroker.publishEvent(realm, publicationId, topic, payload, payloadKw, options, eventDetails, !fromClusterNode);
+                }
             }
+            return publicationId;
         }
+        return null;
     }
     
     
     public void onEvent(WampSocket serverSocket, Long subscriptionId, Long publicationId, WampDict details, WampList payload, WampDict payloadKw) throws Exception
     {
-        Collection<Method> methods = eventListeners.get(subscriptionId);
+        Collection<MethodHandle> methods = eventListeners.get(subscriptionId);
         if(methods != null) {
-            for(Method method : methods) {
-                try { method.invoke(this, serverSocket, subscriptionId, publicationId, details, payload, payloadKw); }
-                catch(Exception ex) { }
+            for(MethodHandle method : methods) {
+                try { method.invokeExact(serverSocket, subscriptionId, publicationId, details, payload, payloadKw); }
+                catch(Throwable ex) { }
             }
         }
     }
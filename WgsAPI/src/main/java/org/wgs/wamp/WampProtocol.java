@@ -1,5 +1,7 @@
 package org.wgs.wamp;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
@@ -8,7 +10,10 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
 import org.wgs.wamp.encoding.WampEncoding;
+import org.wgs.wamp.encoding.WampSerializerBatchedJSON;
 import org.wgs.wamp.topic.WampPublishOptions;
 import org.wgs.wamp.topic.WampSubscription;
 import org.wgs.wamp.topic.WampSubscriptionOptions;
@@ -48,6 +53,7 @@ public class WampProtocol
     public static final int INVOCATION = 68;
     public static final int INTERRUPT = 69;     // CANCEL INVOCATION
     public static final int YIELD = 70;         // INVOCATION RESULT
+    public static final int CREDIT = 257;       // extension: flow control of progressive results
     
     
     public static long newGlobalScopeId()
@@ -71,7 +77,7 @@ public class WampProtocol
     {
         if(logger.isLoggable(Level.FINE)) logger.log(Level.FINE, "sendWampMessage: " + args);
         Object msg = socket.getEncoding().getSerializer().serialize(args);
-        socket.sendObject(msg);
+        socket.sendMessage(msg);
     }    
     
     public static void sendHelloMessage(WampSocket clientSocket, String realm, WampDict options) throws Exception
@@ -97,6 +103,9 @@ public class WampProtocol
         brokerFeatures.put("publisher_identification", true);
         //brokerFeatures.put("publication_trustlevels", false);
         brokerFeatures.put("pattern_based_subscription", true);
+        brokerFeatures.put("shared_subscription", true);
+        brokerFeatures.put("bulk_subscription", true);
+        brokerFeatures.put("bulk_publication", true);
         //brokerFeatures.put("partitioned_pubsub", true);
         //brokerFeatures.put("subscriber_metaevents", true);
         //brokerFeatures.put("subscriber_list", false);
@@ -109,9 +118,11 @@ public class WampProtocol
         //dealerFeatures.put("call_trustlevels", false);
         dealerFeatures.put("pattern_based_registration", true);
         dealerFeatures.put("partitioned_rpc", true);
-        //dealerFeatures.put("call_timeout", false);
+        dealerFeatures.put("shared_registration", true);
+        dealerFeatures.put("call_timeout", true);
         dealerFeatures.put("call_canceling", true);
         dealerFeatures.put("progressive_call_results", true);
+        dealerFeatures.put("progressive_call_results_flow_control", true);
 
         WampDict broker = new WampDict();
         broker.put("features", brokerFeatures);
@@ -130,6 +141,13 @@ public class WampProtocol
         details.put("authrole", clientSocket.getAuthRole());
         details.put("authprovider", clientSocket.getAuthProvider());
         
+        WampSessionResumption resumption = clientSocket.getResumption();
+        if(resumption != null) {
+            details.put("_resume_token", resumption.getToken());
+            details.put("_resume_grace_millis", resumption.getGraceMillis());
+            if(resumption.getResumeCount() > 0) details.put("_resumed", true);
+        }
+        
         response.add(details);  
         
         sendWampMessage(clientSocket, response);
@@ -198,6 +216,62 @@ public class WampProtocol
         sendWampMessage(clientSocket, response);
     }    
     
+    /**
+     * Sends the same result to another caller (i.e: the followers of a coalesced call):
+     * the details and the arguments are serialized once per encoding (in "serializedParts", indexed by encoding),
+     * and only the header with the request ID is serialized for each caller.
+     */
+    public static void sendResultMessage(WampSocket clientSocket, Long requestId, WampDict details, WampList args, WampDict argsKw, Object[] serializedParts) throws Exception
+    {
+        WampEncoding encoding = clientSocket.getEncoding();
+        boolean json = (encoding == WampEncoding.JSON || encoding == WampEncoding.BatchedJSON);
+        int index = (json? WampEncoding.JSON : WampEncoding.MsgPack).ordinal();
+        
+        WampList parts = new WampList();
+        parts.add((details != null)? details : new WampDict());
+        if( (args != null && args.size() > 0) || (argsKw != null && argsKw.size() > 0) ) {
+            parts.add((args != null)? args : new WampList());
+            if(argsKw != null && argsKw.size() > 0) parts.add(argsKw);
+        }
+        
+        Object serialized;
+        synchronized(serializedParts) {
+            if(serializedParts[index] == null) {
+                serializedParts[index] = (json? WampEncoding.JSON : WampEncoding.MsgPack).getSerializer().serialize(parts);
+            }
+            serialized = serializedParts[index];
+        }
+        
+        Object msg;
+        if(json) {
+            // [CALL_RESULT, requestId, <parts without the opening bracket>
+            String str = "[" + CALL_RESULT + "," + requestId + "," + ((String)serialized).substring(1);
+            if(encoding == WampEncoding.BatchedJSON) str = str + WampSerializerBatchedJSON.MESSAGE_PART_DELIMITER;
+            msg = str;
+        } else {
+            // array header with the size of the message, CALL_RESULT, requestId, and the parts without their (fixarray) header
+            byte[] bytes = (byte[])serialized;
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length + 16);
+            MessagePacker packer = new MessagePack().newPacker(baos);
+            packer.packArrayHeader(parts.size() + 2);
+            packer.packLong(CALL_RESULT);
+            packer.packLong(requestId);
+            packer.close();
+            baos.write(bytes, 1, bytes.length - 1);
+            byte[] data = baos.toByteArray();
+            if(encoding == WampEncoding.BatchedMsgPack) {
+                ByteBuffer bb = ByteBuffer.allocate(data.length + 4);
+                bb.putInt(data.length);
+                bb.put(data);
+                data = bb.array();
+            }
+            msg = data;
+        }
+        
+        if(logger.isLoggable(Level.FINE)) logger.log(Level.FINE, "sendResultMessage: " + requestId + " (shared result)");
+        clientSocket.sendMessage(msg);
+    }
+    
     
     public static void sendSubscribeMessage(WampSocket clientSocket, Long requestId, String topicURI, WampSubscriptionOptions options) throws Exception
     {
@@ -219,6 +293,24 @@ public class WampProtocol
     }
     
     
+    /**
+     * Aggregated reply to a bulk subscription:
+     *   [SUBSCRIBED, Request|id, Subscription|id, {"subscriptions": [Subscription|id, ...]}]
+     */
+    public static void sendSubscribedMessage(WampSocket clientSocket, Long requestId, WampList subscriptionIds) throws Exception
+    {    
+        WampDict details = new WampDict();
+        details.put("subscriptions", subscriptionIds);
+        
+        WampList response = new WampList();
+        response.add(SUBSCRIBED);
+        response.add(requestId);
+        response.add((subscriptionIds.size() > 0)? subscriptionIds.getLong(0) : null);
+        response.add(details);
+        sendWampMessage(clientSocket, response);
+    }
+    
+    
     public static void sendUnsubscribeMessage(WampSocket clientSocket, Long requestId, Long unsubscriptionId) throws Exception
     {
         WampList response = new WampList();
@@ -262,9 +354,25 @@ public class WampProtocol
         sendWampMessage(clientSocket, response);
     }    
     
+    /**
+     * Aggregated acknowledge of a bulk publication:
+     *   [PUBLISHED, Request|id, Publication|id, {"publications": [Publication|id, ...]}]
+     */
+    public static void sendPublishedMessage(WampSocket clientSocket, Long requestId, WampList publicationIds) throws Exception
+    {    
+        WampDict details = new WampDict();
+        details.put("publications", publicationIds);
+        
+        WampList response = new WampList();
+        response.add(PUBLISHED);
+        response.add(requestId);
+        response.add((publicationIds.size() > 0)? publicationIds.getLong(0) : null);
+        response.add(details);
+        sendWampMessage(clientSocket, response);
+    }    
+    
     public static List<Long> getEligibleSIDs(String realm, WampSubscription subscription, final WampPublishOptions publishOptions) 
     {
-        Set<Long> excluded = publishOptions.getExcludedSessionIds();
         Set<Long> eligibleOption = publishOptions.getEligibleSessionIds();
         Set<Long> eligibleCopy = (eligibleOption != null) ? new HashSet<Long>(eligibleOption) : null;
         if(eligibleCopy == null) eligibleCopy = new HashSet<Long>(subscription.getSessionIds(realm));
@@ -278,47 +386,59 @@ public class WampProtocol
         
         List<Long> sids = java.util.Arrays.asList(eligibleCopy.parallelStream().filter(sid -> {
                 WampSocket socket = subscription.getSocket(sid);
-
-                if(socket == null) return false;
-                if(excluded != null && excluded.contains(sid)) {
-                    return false;
-                }
-
-                String fqAuthId = socket.getAuthId()+"@"+socket.getAuthProvider();
-                if(publishOptions.getExcludedAuthIds() != null) {
-                    if(publishOptions.getExcludedAuthIds().contains(fqAuthId)) return false;
-                }
-                if(publishOptions.getEligibleAuthIds() != null) {
-                    if(!publishOptions.getEligibleAuthIds().contains(fqAuthId)) return false;
-                }
-                
-                if(publishOptions.getExcludedAuthRoles() != null) {
-                    for(String role : publishOptions.getExcludedAuthRoles()) {
-                        if(socket.hasAuthRole(role)) return false;
-                    }
-                }                
-                if(publishOptions.getEligibleAuthRoles() != null) {
-                    boolean hasEligibleRole = false;
-                    for(String role : publishOptions.getEligibleAuthRoles()) {
-                        if(socket.hasAuthRole(role)) {
-                            hasEligibleRole = true;
-                            break;
-                        }
-                    }
-                    if(!hasEligibleRole) return false;
-                }
-                
-                return true;
+                return isEligibleSocket(sid, socket, publishOptions);
             }).toArray(Long[]::new));
         
         return sids;
     }
     
     
+    public static boolean isEligibleSocket(Long sid, WampSocket socket, WampPublishOptions publishOptions)
+    {
+        Set<Long> excluded = publishOptions.getExcludedSessionIds();
+        if(socket == null) return false;
+        if(excluded != null && excluded.contains(sid)) {
+            return false;
+        }
+
+        String fqAuthId = socket.getAuthId()+"@"+socket.getAuthProvider();
+        if(publishOptions.getExcludedAuthIds() != null) {
+            if(publishOptions.getExcludedAuthIds().contains(fqAuthId)) return false;
+        }
+        if(publishOptions.getEligibleAuthIds() != null) {
+            if(!publishOptions.getEligibleAuthIds().contains(fqAuthId)) return false;
+        }
+        
+        if(publishOptions.getExcludedAuthRoles() != null) {
+            for(String role : publishOptions.getExcludedAuthRoles()) {
+                if(socket.hasAuthRole(role)) return false;
+            }
+        }                
+        if(publishOptions.getEligibleAuthRoles() != null) {
+            boolean hasEligibleRole = false;
+            for(String role : publishOptions.getEligibleAuthRoles()) {
+                if(socket.hasAuthRole(role)) {
+                    hasEligibleRole = true;
+                    break;
+                }
+            }
+            if(!hasEligibleRole) return false;
+        }
+        
+        return true;
+    }
+    
+    
     public static void sendEvents(String realm, Long publicationId, WampTopic topic, WampList payload, WampDict payloadKw, WampPublishOptions publishOptions, WampDict eventDetails) throws Exception
+    {
+        sendEvents(realm, publicationId, topic, payload, payloadKw, publishOptions, eventDetails, null, null);
+    }
+    
+    public static void sendEvents(String realm, Long publicationId, WampTopic topic, WampList payload, WampDict payloadKw, WampPublishOptions publishOptions, WampDict eventDetails, Long sequence, WampDict groupNodes) throws Exception
     {
         // EVENT data
         if(eventDetails == null) eventDetails = new WampDict();
+        if(sequence != null) eventDetails.put("seq", sequence);
         
         for(WampSubscription subscription : topic.getSubscriptions()) {
             
@@ -326,6 +446,7 @@ public class WampProtocol
             if(subOptions != null && subOptions.hasEventsEnabled()) {     
 
                 List<Long> sids = getEligibleSIDs(realm, subscription, publishOptions);
+                if(subscription.hasGroups()) sids = subscription.selectGroupMembers(sids, realm, groupNodes, WampCluster.brokerId);
                 if(sids.size() > 0) {
                     
                     if(subscription.getOptions().getMatchType() == WampMatchType.exact) {
@@ -358,7 +479,7 @@ public class WampProtocol
                         WampSocket socket = subscription.getSocket(sid);
                         if(socket != null && socket.isOpen() && socket.getWampSessionId() != null) {
                             WampEncoding enc = socket.getEncoding();                            
-                            try { socket.sendObject(msg[enc.ordinal()]); }
+                            try { socket.sendEvent(msg[enc.ordinal()]); }
                             catch(Exception discardedException) { }
                         }
                     });
@@ -411,7 +532,7 @@ public class WampProtocol
                         WampSocket socket = subscription.getSocket(sid);
                         if(socket != null && socket.isOpen() && socket.getWampSessionId() != null) {
                             WampEncoding enc = socket.getEncoding();
-                            try { socket.sendObject(msg[enc.ordinal()]); }
+                            try { socket.sendEvent(msg[enc.ordinal()]); }
                             catch(Exception discardedException) { }
                         }
                     });
@@ -484,11 +605,17 @@ public class WampProtocol
     }      
     
     public static void sendUnregisterMessage(WampSocket clientSocket, Long requestId, Long registrationId) throws Exception
+    {
+        sendUnregisterMessage(clientSocket, requestId, registrationId, null);
+    }    
+    
+    public static void sendUnregisterMessage(WampSocket clientSocket, Long requestId, Long registrationId, WampDict options) throws Exception
     {
         WampList response = new WampList();
         response.add(UNREGISTER);
         response.add(requestId);
         response.add(registrationId);
+        if(options != null) response.add(options);   // i.e: batch of registrations between cluster nodes
         sendWampMessage(clientSocket, response);        
     }    
         
@@ -500,6 +627,32 @@ public class WampProtocol
         sendWampMessage(clientSocket, response);
     }      
 
+    /**
+     * Sends the revocation of a registration by the router (with requestId 0).
+     */
+    public static void sendUnregisteredMessage(WampSocket clientSocket, Long requestId, WampDict details) throws Exception
+    {    
+        WampList response = new WampList();
+        response.add(UNREGISTERED);
+        response.add(requestId);
+        response.add(details);
+        sendWampMessage(clientSocket, response);
+    }      
+
+    
+    /**
+     * Grants credits for more progressive results of a call (caller to dealer) or an invocation (dealer to callee).
+     */
+    public static void sendCreditMessage(WampSocket socket, Long requestId, int credits) throws Exception
+    {
+        WampDict details = new WampDict();
+        details.put("credits", credits);
+        WampList msg = new WampList();
+        msg.add(CREDIT);
+        msg.add(requestId);
+        msg.add(details);
+        sendWampMessage(socket, msg);
+    }
     
     public static void sendInvocationMessage(WampSocket remotePeer, Long invocationId, Long registrationId, WampDict details, WampList args, WampDict argsKw) throws Exception
     {
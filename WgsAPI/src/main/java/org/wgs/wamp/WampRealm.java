@@ -9,9 +9,11 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.wgs.wamp.rpc.WampCallCoalescer;
 import org.wgs.wamp.rpc.WampCallOptions;
 import org.wgs.wamp.rpc.WampCalleeRegistration;
 import org.wgs.wamp.rpc.WampRemoteMethod;
+import org.wgs.wamp.rpc.WampResultCache;
 import org.wgs.wamp.topic.WampBroker;
 import org.wgs.wamp.topic.WampSubscription;
 import org.wgs.wamp.type.WampDict;
@@ -29,6 +31,7 @@ public class WampRealm
     private ConcurrentHashMap<String,WampCalleeRegistration> calleePatterns;
     private ConcurrentHashMap<String,WampCalleeRegistration> calleeRegistrationByUri;
     private static ConcurrentHashMap<Long,WampCalleeRegistration> calleeRegistrationById;
+    private WampSlowConsumerPolicy slowConsumerPolicy;
     
 
     static 
@@ -41,6 +44,7 @@ public class WampRealm
         this.realmName = realmName;
         this.calleeRegistrationByUri = new ConcurrentHashMap<String,WampCalleeRegistration>();
         this.calleePatterns = new ConcurrentHashMap<String,WampCalleeRegistration>();
+        this.slowConsumerPolicy = WampSlowConsumerPolicy.getDefaultPolicy(realmName);
     }
     
    
@@ -65,6 +69,16 @@ public class WampRealm
         return realmName;
     }
     
+    public WampSlowConsumerPolicy getSlowConsumerPolicy()
+    {
+        return slowConsumerPolicy;
+    }
+    
+    public void setSlowConsumerPolicy(WampSlowConsumerPolicy slowConsumerPolicy)
+    {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+    
     public List<WampRemoteMethod> getRemoteRPCs(String realm, String name, WampCallOptions options, Long callerId) throws WampException
     {
         boolean found = false;
@@ -73,6 +87,10 @@ public class WampRealm
         String partition = null;
         if(options != null && options.getRunOn() == WampCallOptions.RunOnEnum.partition) partition = options.getPartition();
 
+        if(options.getRunOn() == WampCallOptions.RunOnEnum.any || options.getRunOn() == WampCallOptions.RunOnEnum.partition) {
+            return getRemoteRPC(name, options, callerId, partition);
+        }
+
         WampCalleeRegistration reg = calleeRegistrationByUri.get(name);
         if(reg != null) {
             found = true;
@@ -103,15 +121,45 @@ public class WampRealm
             else throw new WampException(null, WampException.ERROR_PREFIX+".method_unknown:" + name, null, null);
         }
         
-        if(options.getRunOn() == WampCallOptions.RunOnEnum.any) {
-            int index = (int)(Math.random() * retval.size());
-            retval = retval.subList(index, index+1);
-        }
-        
         return retval;
     }    
     
     
+    /**
+     * Selects a single callee with the invocation policy of the registration,
+     * or the owner of the partition key ("rkey") in its consistent hash ring 
+     * (the exact registration has precedence over the pattern-based registrations).
+     */
+    private List<WampRemoteMethod> getRemoteRPC(String name, WampCallOptions options, Long callerId, String partition) throws WampException
+    {
+        boolean found = false;
+        WampRemoteMethod selected = null;
+
+        WampCalleeRegistration reg = calleeRegistrationByUri.get(name);
+        if(reg != null) {
+            found = true;
+            selected = reg.selectRemoteMethod(callerId, options, partition);
+        }
+        
+        if(selected == null) {
+            for(WampCalleeRegistration registration : calleePatterns.values()) {
+                if(WampBroker.isUriMatchingWithRegExp(name, registration.getRegExp())) {
+                    found = true;
+                    selected = registration.selectRemoteMethod(callerId, options, partition);
+                    if(selected != null) break;
+                }
+            }
+        }
+
+        if(selected == null) {
+            if(found) throw new WampException(null, WampException.ERROR_PREFIX+".no_remote_method", null, null);
+            else throw new WampException(null, WampException.ERROR_PREFIX+".method_unknown:" + name, null, null);
+        }
+        
+        return java.util.Collections.singletonList(selected);
+    }
+    
+    
     public Collection<Long> getRegistrationIds()
     {
         return calleeRegistrationById.keySet();
@@ -161,30 +209,117 @@ public class WampRealm
             methodUriOrPattern = methodUriOrPattern + "..";
         }
 
-        String realmName = this.getRealmName();
-        WampCalleeRegistration registration = calleeRegistrationByUri.get(methodUriOrPattern);        
-        if(registration == null) {
-            Long registrationId = WampProtocol.newRouterScopeId();
-            registration = new WampCalleeRegistration(realmName, registrationId, matchType, methodUriOrPattern);
-            // TODO: move to WampModule:
-            calleeRegistrationById.put(registrationId, registration);
-            calleeRegistrationByUri.put(methodUriOrPattern, registration);
-            if (matchType != WampMatchType.exact) {
-                calleePatterns.put(methodUriOrPattern, registration);
+        WampCalleeRegistration.InvokePolicyEnum invokePolicy = WampCalleeRegistration.InvokePolicyEnum.random;
+        if (options != null && options.has("invoke")) {
+            try {
+                invokePolicy = WampCalleeRegistration.InvokePolicyEnum.valueOf(options.getText("invoke").toLowerCase());
+            } catch (IllegalArgumentException ex) {
+                if (requestId != null) {
+                    WampProtocol.sendErrorMessage(clientSocket, WampProtocol.REGISTER, requestId, null, "wamp.error.invalid_argument", null, null);
+                }
+                return;
+            }
+        }
+
+        WampResultCache.ScopeEnum cacheScope = WampResultCache.ScopeEnum.authid;
+        WampResultCache.ScopeEnum coalesceScope = WampResultCache.ScopeEnum.authid;
+        if (options != null && (options.has("cache_scope") || options.has("coalesce_scope"))) {
+            try {
+                if (options.has("cache_scope")) cacheScope = WampResultCache.ScopeEnum.valueOf(options.getText("cache_scope").toLowerCase());
+                if (options.has("coalesce_scope")) coalesceScope = WampResultCache.ScopeEnum.valueOf(options.getText("coalesce_scope").toLowerCase());
+            } catch (IllegalArgumentException ex) {
+                if (requestId != null) {
+                    WampProtocol.sendErrorMessage(clientSocket, WampProtocol.REGISTER, requestId, null, "wamp.error.invalid_argument", null, null);
+                }
+                return;
             }
         }
+
+        Long cacheTtl = (matchType == WampMatchType.exact && options != null && options.has("cache_ttl"))? options.getLong("cache_ttl") : null;
+        ArrayList<String> cacheTopics = new ArrayList<String>();
+        WampList invalidations = (cacheTtl != null && options.has("cache_invalidate"))? (WampList)options.get("cache_invalidate") : null;
+        for (int i = 0; invalidations != null && i < invalidations.size(); i++) cacheTopics.add(invalidations.getText(i));
+
+        // the registration can't be removed (without callees) until its new callee is added
+        synchronized (this) {
+            String realmName = this.getRealmName();
+            WampCalleeRegistration registration = calleeRegistrationByUri.get(methodUriOrPattern);        
+            if (registration != null && registration.getRemoteMethodsCount() > 0) {
+                boolean relayed = "cluster".equals(clientSocket.getRealm());   // the cache options aren't relayed by the cluster nodes
+                String errorURI = null;
+                if (registration.getInvokePolicy() != invokePolicy) errorURI = "wamp.error.procedure_exists_with_different_invocation_policy";
+                else if (!relayed && matchType == WampMatchType.exact && !WampResultCache.hasPolicy(realmName, methodUriOrPattern, cacheTtl, cacheScope, cacheTopics)) errorURI = "wamp.error.procedure_exists_with_different_cache_policy";
+                else if (invokePolicy == WampCalleeRegistration.InvokePolicyEnum.single) errorURI = "wamp.error.procedure_already_exists";
+                if (errorURI != null) {
+                    if (requestId != null) {
+                        WampProtocol.sendErrorMessage(clientSocket, WampProtocol.REGISTER, requestId, null, errorURI, null, null);
+                    }
+                    return;
+                }
+            }
+            
+            if(registration == null) {
+                Long registrationId = WampProtocol.newRouterScopeId();
+                registration = new WampCalleeRegistration(realmName, registrationId, matchType, methodUriOrPattern);
+                registration.setInvokePolicy(invokePolicy);
+                // TODO: move to WampModule:
+                calleeRegistrationById.put(registrationId, registration);
+                calleeRegistrationByUri.put(methodUriOrPattern, registration);
+                if (matchType != WampMatchType.exact) {
+                    calleePatterns.put(methodUriOrPattern, registration);
+                }
+            }
+            
+            // the cache policy is set by the first callee of the registration (and removed with it)
+            if (matchType == WampMatchType.exact && registration.getRemoteMethodsCount() == 0) {
+                if (cacheTtl != null) WampResultCache.enable(realmName, methodUriOrPattern, cacheTtl, cacheScope, cacheTopics);
+                else WampResultCache.disable(realmName, methodUriOrPattern);
+            }
+
+            try {
+                WampModule module = app.getDefaultWampModule();
+                module.onRegister(clientSocket, registration.getId(), methodUriOrPattern, registration, matchType, methodUriOrPattern, request);
+                if (matchType == WampMatchType.exact && options != null && options.has("coalesce") && options.getBoolean("coalesce")) {
+                    WampCallCoalescer.enable(methodUriOrPattern, coalesceScope);
+                }
+                if (requestId != null) {
+                    WampProtocol.sendRegisteredMessage(clientSocket, requestId, registration.getId());
+                }
+            } catch (Exception ex) {
+                logger.log(Level.SEVERE, "Error registering method", ex);
+                removeRegistrationIfUnused(registration);
+                if (requestId != null) {
+                    WampProtocol.sendErrorMessage(clientSocket, WampProtocol.REGISTER, requestId, null, "wamp.error.not_authorized", null, null);
+                }
+            }
+        }
+    }
+
+    
+    /**
+     * Removes a callee from a registration by a decision of the router (i.e: a conflict with other cluster node),
+     * and notifies it to the callee and to the other cluster nodes.
+     */
+    public void revokeCallee(WampCalleeRegistration registration, WampRemoteMethod remoteMethod, String reason)
+    {
+        WampSocket calleeSocket = remoteMethod.getRemotePeer();
+        synchronized (this) {
+            if (registration.removeRemoteMethod(calleeSocket) == null) return;
+            calleeSocket.removeRpcRegistration(registration.getId());
+            removeRegistrationIfUnused(registration);
+        }
+        
+        for (WampCluster.Node node : WampCluster.getNodes()) {
+            WampCluster.Node.unregisterClusteredRPC(node.getWampClient(), this, registration, remoteMethod);
+        }
         
+        WampDict details = new WampDict();
+        details.put("registration", registration.getId());
+        details.put("reason", reason);
         try {
-            WampModule module = app.getDefaultWampModule();
-            module.onRegister(clientSocket, registration.getId(), methodUriOrPattern, registration, matchType, methodUriOrPattern, request);
-            if (requestId != null) {
-                WampProtocol.sendRegisteredMessage(clientSocket, requestId, registration.getId());
-            }
+            WampProtocol.sendUnregisteredMessage(calleeSocket, 0L, details);
         } catch (Exception ex) {
-            logger.log(Level.SEVERE, "Error registering method", ex);
-            if (requestId != null) {
-                WampProtocol.sendErrorMessage(clientSocket, WampProtocol.REGISTER, requestId, null, "wamp.error.not_authorized", null, null);
-            }
+            logger.log(Level.FINE, "Error revoking registration", ex);
         }
     }
 
@@ -200,22 +335,6 @@ public class WampRealm
             } else {
                 WampModule module = app.getDefaultWampModule();
                 module.onUnregister(clientSocket, registration);
-
-                /* FIXME: not thread safe and it should also be executed on session goodbye
-                if (registration.getRemoteMethodsCount() == 0) {
-                    for (String name : calleeRegistrationByUri.keySet()) {
-                        if (WampBroker.isUriMatchingWithRegExp(name, registration.getRegExp())) {
-                            calleeRegistrationByUri.remove(name);
-                        }
-                    }
-                    for (String name : calleePatterns.keySet()) {
-                        if (WampBroker.isUriMatchingWithRegExp(name, registration.getRegExp())) {
-                            calleePatterns.remove(name);
-                        }
-                    }
-                    calleeRegistrationById.remove(registrationId);
-                }
-                */                            
                 
                 if (requestId != null) {
                     WampProtocol.sendUnregisteredMessage(clientSocket, requestId);
@@ -229,5 +348,43 @@ public class WampRealm
         }
     }
     
+    /**
+     * Unregisters the procedures of a batch of registrations from a cluster node 
+     * (i.e: the registrations of a closed session), with a single response.
+     */
+    public static void processClusterUnregisterMessage(WampApplication app, WampSocket clientSocket, WampList request) throws Exception 
+    {
+        Long requestId = request.getLong(1);
+        WampDict options = (WampDict)request.get(3);
+        WampList registrationIds = (WampList)options.get("_cluster_registrations");
+        WampModule module = app.getDefaultWampModule();
+        for (int i = 0; i < registrationIds.size(); i++) {
+            WampCalleeRegistration registration = calleeRegistrationById.get(registrationIds.getLong(i));
+            if (registration != null) {
+                try {
+                    module.onUnregister(clientSocket, registration);
+                } catch (Exception ex) {
+                    logger.log(Level.FINE, "Error unregistering method", ex);
+                }
+            }
+        }
+        if (requestId != null) {
+            WampProtocol.sendUnregisteredMessage(clientSocket, requestId);
+        }
+    }
+    
+    /**
+     * Removes a registration when it hasn't got callees.
+     */
+    public synchronized void removeRegistrationIfUnused(WampCalleeRegistration registration)
+    {
+        if (registration.getRemoteMethodsCount() == 0) {
+            calleeRegistrationByUri.remove(registration.getProcedureURI(), registration);
+            calleePatterns.remove(registration.getProcedureURI(), registration);
+            calleeRegistrationById.remove(registration.getId(), registration);
+            WampResultCache.disable(getRealmName(), registration.getProcedureURI());
+        }
+    }
+    
     
 }
@@ -0,0 +1,278 @@
+package org.wgs.wamp;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.websocket.CloseReason;
+import org.wgs.util.HexUtils;
+import org.wgs.util.TimingWheel;
+
+
+/**
+ * Resumable state of a WAMP session (requested with the "_resumable" HELLO detail).
+ *
+ * When the transport of the session is lost without GOODBYE, the session is parked:
+ * its subscriptions, registrations and calls are kept for a grace period,
+ * and the outbound messages are buffered (up to a number of messages and bytes).
+ * A client that sends the "_resume_token" of the WELCOME message in the HELLO details
+ * of a new transport is re-attached to the session, and the buffered messages are replayed
+ * after the WELCOME message (with the same session ID).
+ *
+ * The messages written to the lost transport that weren't received by the peer can't be replayed.
+ */
+public class WampSessionResumption
+{
+    private static final Logger logger = Logger.getLogger(WampSessionResumption.class.getName());
+
+    public static final String CLOSE_REASON = "wgs.close.resume_expired";
+
+    private static long graceMillis = 30000L;
+    private static int maxBufferedMessages = 1000;
+    private static long maxBufferedBytes = 1024L * 1024L;
+
+    private static final SecureRandom random = new SecureRandom();
+    private static final ConcurrentHashMap<String, WampSessionResumption> sessionsByToken = new ConcurrentHashMap<String, WampSessionResumption>();
+    private static TimingWheel expirationTimer = null;
+
+    private WampApplication app;
+    private WampSocket session;
+    private String token;
+    private WampSocket transport;       // transport of the resumed session (null when it's attached to its own transport)
+    private boolean parked;
+    private boolean ended;
+    private boolean expiring;
+    private int resumeCount;
+    private ArrayDeque<Object> buffer = new ArrayDeque<Object>();
+    private long bufferedBytes;
+    private TimingWheel.Timeout expiration;
+
+    static {
+        try {
+            String value = System.getProperty("WGS_SESSION_RESUME_GRACE_MILLIS");
+            if(value != null) graceMillis = Long.parseLong(value);
+            value = System.getProperty("WGS_SESSION_RESUME_MAX_MESSAGES");
+            if(value != null) maxBufferedMessages = Integer.parseInt(value);
+            value = System.getProperty("WGS_SESSION_RESUME_MAX_BYTES");
+            if(value != null) maxBufferedBytes = Long.parseLong(value);
+        } catch(Exception ex) { }
+    }
+
+
+    public WampSessionResumption(WampApplication app, WampSocket session)
+    {
+        this.app = app;
+        this.session = session;
+        this.token = newToken();
+    }
+
+
+    /**
+     * Re-attaches the parked session of the token to a new transport,
+     * sending the WELCOME message and the buffered messages.
+     *
+     * @return false when the token doesn't identify a parked session of the application and realm
+     *         (the HELLO message starts a new session)
+     */
+    public static boolean resume(WampApplication app, WampSocket transport, String realm, String token)
+    {
+        WampSessionResumption resumption = (token != null) ? sessionsByToken.get(token) : null;
+        if(resumption == null
+                || resumption.app != app
+                || resumption.session.getEncoding() != transport.getEncoding()
+                || realm == null || !realm.equals(resumption.session.getRealm())) {
+            return false;
+        }
+
+        return resumption.resume(transport);
+    }
+
+    private static String newToken()
+    {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        return HexUtils.byteArrayToHexString(bytes);
+    }
+
+    private static synchronized TimingWheel getExpirationTimer()
+    {
+        if(expirationTimer == null) {
+            expirationTimer = new TimingWheel("wgs-session-resumption", 100L, 8, 3);
+        }
+        return expirationTimer;
+    }
+
+
+    public synchronized String getToken()
+    {
+        return token;
+    }
+
+    public long getGraceMillis()
+    {
+        return graceMillis;
+    }
+
+    /**
+     * @return the number of times the session has been resumed
+     */
+    public synchronized int getResumeCount()
+    {
+        return resumeCount;
+    }
+
+    public synchronized boolean isParked()
+    {
+        return parked;
+    }
+
+    /**
+     * @return true when the outbound messages of the session aren't written by its own transport
+     *         (the session is parked, or it has been resumed by another transport)
+     */
+    public synchronized boolean isDetached()
+    {
+        return parked || transport != null;
+    }
+
+    public synchronized WampSocket getTransport()
+    {
+        return transport;
+    }
+
+
+    /**
+     * Registers the token of the session (when it's established).
+     */
+    public void start()
+    {
+        sessionsByToken.put(getToken(), this);
+    }
+
+    /**
+     * Sends a message of the session: to the current transport, or to the buffer of the parked session.
+     */
+    public synchronized void send(Object msg, boolean event) throws Exception
+    {
+        if(parked) {
+            if(expiring) return;
+
+            long size = WampSocket.getMessageSize(msg);
+            if(buffer.size() >= maxBufferedMessages || bufferedBytes + size > maxBufferedBytes) {
+                // the missed messages can't be replayed: end the session now
+                if(logger.isLoggable(Level.FINE)) logger.log(Level.FINE, "Resumption buffer overflow: session " + session.getWampSessionId());
+                clearBuffer();
+                expiring = true;
+                expiration.cancel();
+                expiration = getExpirationTimer().schedule(() -> expire(), 0L);
+                return;
+            }
+
+            buffer.add(msg);
+            bufferedBytes += size;
+
+        } else if(transport != null) {
+            if(event) transport.sendEvent(msg);
+            else transport.sendMessage(msg);
+
+        } else {
+            if(event) session.deliverEvent(msg);
+            else session.sendObject(msg);
+        }
+    }
+
+    /**
+     * Parks the session after the abrupt close of its transport
+     * (the messages that weren't written by the transport are buffered).
+     *
+     * @return false when the session can't be parked (i.e: it has been closed by the router)
+     */
+    public synchronized boolean park(CloseReason reason)
+    {
+        if(ended || parked || !session.connected.get()
+                || reason == null || reason.getCloseCode() == CloseReason.CloseCodes.NORMAL_CLOSURE) {
+            return false;
+        }
+
+        WampSocket lostTransport = (transport != null) ? transport : session;
+        transport = null;
+        parked = true;
+
+        List<Object> pending = new ArrayList<Object>();
+        lostTransport.drainPendingMessages(pending);
+        for(Object msg : pending) {
+            buffer.add(msg);
+            bufferedBytes += WampSocket.getMessageSize(msg);
+        }
+
+        expiration = getExpirationTimer().schedule(() -> expire(), graceMillis);
+        return true;
+    }
+
+    private synchronized boolean resume(WampSocket newTransport)
+    {
+        if(!parked || ended || expiring) return false;
+
+        expiration.cancel();
+        expiration = null;
+        parked = false;
+        transport = newTransport;
+        newTransport.setResumedSession(session);
+        resumeCount++;
+
+        // a token can only be used once
+        sessionsByToken.remove(token, this);
+        token = newToken();
+        sessionsByToken.put(token, this);
+
+        try {
+            WampProtocol.sendWelcomeMessage(app, session);
+            while(!buffer.isEmpty()) {
+                newTransport.sendObject(buffer.poll());
+            }
+        } catch(Exception ex) {
+            logger.log(Level.WARNING, "Error replaying the messages of a resumed session", ex);
+        } finally {
+            clearBuffer();
+        }
+
+        return true;
+    }
+
+    /**
+     * Discards the resumable state when the session ends (the current transport is kept).
+     */
+    public synchronized void end()
+    {
+        ended = true;
+        parked = false;
+        if(expiration != null) {
+            expiration.cancel();
+            expiration = null;
+        }
+        clearBuffer();
+        sessionsByToken.remove(token, this);
+    }
+
+    private void clearBuffer()
+    {
+        buffer.clear();
+        bufferedBytes = 0L;
+    }
+
+    private void expire()
+    {
+        synchronized(this) {
+            if(!parked || ended) return;
+            expiring = true;
+            expiration = null;
+        }
+
+        if(logger.isLoggable(Level.FINE)) logger.log(Level.FINE, "Resumable session expired: " + session.getWampSessionId());
+        app.onWampClose(session, new CloseReason(CloseReason.CloseCodes.GOING_AWAY, CLOSE_REASON));
+    }
+
+}
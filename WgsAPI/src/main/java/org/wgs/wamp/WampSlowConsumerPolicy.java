@@ -0,0 +1,146 @@
+package org.wgs.wamp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Policy of a realm for the sessions whose outbound backlog exceeds a number of messages or bytes.
+ *
+ * Only the EVENT messages are dropped (or sampled): the RPC and control messages are always delivered.
+ * A session in sampled delivery receives 1 of every "sampleRate" events, until its backlog
+ * drains below half of the thresholds.
+ *
+ * The realms haven't got a policy unless it's configured (with the WGS_SLOW_CONSUMER_POLICY property
+ * for all the realms, or in the server configuration for each realm), and the "cluster" realm never has it.
+ */
+public class WampSlowConsumerPolicy
+{
+    public enum ActionEnum { drop_oldest, drop_new, disconnect, sample }
+
+    public static final String CLOSE_REASON = "wgs.close.slow_consumer";
+
+    private static ActionEnum defaultAction = null;
+    private static int defaultMaxMessages = 10000;
+    private static long defaultMaxBytes = 16L * 1024L * 1024L;
+    private static int defaultSampleRate = 10;
+
+    private ActionEnum action;
+    private int maxMessages;
+    private long maxBytes;
+    private int sampleRate;
+
+    private AtomicLong droppedEvents = new AtomicLong(0L);
+    private AtomicLong disconnectedSessions = new AtomicLong(0L);
+
+    static {
+        try {
+            String value = System.getProperty("WGS_SLOW_CONSUMER_POLICY");
+            if(value != null) defaultAction = ActionEnum.valueOf(value.toLowerCase());
+            value = System.getProperty("WGS_SLOW_CONSUMER_MAX_MESSAGES");
+            if(value != null) defaultMaxMessages = Integer.parseInt(value);
+            value = System.getProperty("WGS_SLOW_CONSUMER_MAX_BYTES");
+            if(value != null) defaultMaxBytes = Long.parseLong(value);
+            value = System.getProperty("WGS_SLOW_CONSUMER_SAMPLE_RATE");
+            if(value != null) defaultSampleRate = Integer.parseInt(value);
+        } catch(Exception ex) { }
+    }
+
+
+    /**
+     * @return the policy of a realm that isn't configured in the server (or null)
+     */
+    public static WampSlowConsumerPolicy getDefaultPolicy(String realmName)
+    {
+        if(defaultAction == null || "cluster".equals(realmName)) return null;
+        return new WampSlowConsumerPolicy(defaultAction);
+    }
+
+    /**
+     * @return a policy with the default thresholds
+     */
+    public WampSlowConsumerPolicy(ActionEnum action)
+    {
+        this(action, defaultMaxMessages, defaultMaxBytes, defaultSampleRate);
+    }
+
+    /**
+     * @param maxMessages the maximum number of outbound messages (0 for unlimited)
+     * @param maxBytes the maximum size of the outbound messages (0 for unlimited)
+     * @param sampleRate the rate of the events delivered in sampled mode (1 of every N events)
+     */
+    public WampSlowConsumerPolicy(ActionEnum action, int maxMessages, long maxBytes, int sampleRate)
+    {
+        this.action = action;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.sampleRate = Math.max(1, sampleRate);
+    }
+
+
+    public ActionEnum getAction()
+    {
+        return action;
+    }
+
+    public int getMaxMessages()
+    {
+        return maxMessages;
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    public int getSampleRate()
+    {
+        return sampleRate;
+    }
+
+
+    /**
+     * @return true when the backlog of a session exceeds the thresholds
+     */
+    public boolean isExceeded(int pendingMessages, long pendingBytes)
+    {
+        return (maxMessages > 0 && pendingMessages >= maxMessages)
+                || (maxBytes > 0 && pendingBytes >= maxBytes);
+    }
+
+    /**
+     * @return true when the backlog of a session in sampled delivery is below half of the thresholds
+     */
+    public boolean isRecovered(int pendingMessages, long pendingBytes)
+    {
+        return (maxMessages <= 0 || pendingMessages < maxMessages / 2)
+                && (maxBytes <= 0 || pendingBytes < maxBytes / 2);
+    }
+
+
+    public void onDroppedEvent()
+    {
+        droppedEvents.incrementAndGet();
+    }
+
+    public void onDisconnectedSession()
+    {
+        disconnectedSessions.incrementAndGet();
+    }
+
+    /**
+     * @return the number of events that weren't delivered to slow consumers (dropped or sampled out)
+     */
+    public long getDroppedEvents()
+    {
+        return droppedEvents.get();
+    }
+
+    /**
+     * @return the number of sessions disconnected as slow consumers
+     */
+    public long getDisconnectedSessions()
+    {
+        return disconnectedSessions.get();
+    }
+
+}
@@ -4,7 +4,6 @@ import java.security.Principal;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -15,8 +14,10 @@ import javax.websocket.CloseReason;
 import org.jdeferred.Deferred;
 import org.wgs.security.User;
 import org.wgs.security.WampCRA;
+import org.wgs.util.ConcurrentLongHashMap;
 import org.wgs.wamp.encoding.WampEncoding;
 import org.wgs.wamp.rpc.WampCallController;
+import org.wgs.wamp.rpc.WampCalleeHealth;
 import org.wgs.wamp.rpc.WampCalleeRegistration;
 import org.wgs.wamp.rpc.WampInvocation;
 import org.wgs.wamp.rpc.WampRemoteMethod;
@@ -39,8 +40,9 @@ public abstract class WampSocket
     private Long    socketId;
     private Long    sessionId;
     private Map<Long,WampSubscription> subscriptions;
-    private Map<Long,WampCallController> callControllers;
-    private Map<Long,WampInvocation> invocations;
+    private ConcurrentLongHashMap<WampCallController> callControllers;
+    private WampCalleeHealth calleeHealth = new WampCalleeHealth();
+    private ConcurrentLongHashMap<WampInvocation> invocations;
     private Map<Long,WampCalleeRegistration> rpcRegistrations;
     private WampConnectionState state;
     private int versionSupport;
@@ -51,6 +53,11 @@ public abstract class WampSocket
     private String authMethod;
     private String authProvider;
     private AtomicLong nextRequestId;
+    private volatile WampSlowConsumerPolicy slowConsumerPolicy;
+    private volatile boolean sampledDelivery;
+    private AtomicLong sampledEvents = new AtomicLong(0L);
+    private volatile WampSessionResumption resumption;
+    private volatile WampSocket resumedSession;
     
 
     public WampSocket() 
@@ -62,8 +69,8 @@ public abstract class WampSocket
         
         socketId = WampProtocol.newGlobalScopeId();
         subscriptions = new ConcurrentHashMap<Long,WampSubscription>();        
-        invocations = new ConcurrentHashMap<Long,WampInvocation>();
-        callControllers = new java.util.concurrent.ConcurrentHashMap<Long,WampCallController>();
+        invocations = new ConcurrentLongHashMap<WampInvocation>();
+        callControllers = new ConcurrentLongHashMap<WampCallController>();
         rpcRegistrations = new java.util.concurrent.ConcurrentHashMap<Long,WampCalleeRegistration>();
     }
     
@@ -106,6 +113,13 @@ public abstract class WampSocket
         return socketId;
     }    
     
+    /**
+     * @return the health score and circuit breaker of the session as callee
+     */
+    public WampCalleeHealth getCalleeHealth() {
+        return calleeHealth;
+    }
+    
     /**
      * Get the WAMP session ID
      * @return the WAMP session ID, or null if the session has not been welcomed
@@ -202,6 +216,7 @@ public abstract class WampSocket
     public void setRealm(String realm)
     {
         this.realm = realm;
+        this.slowConsumerPolicy = null;
     }
     
     
@@ -307,6 +322,11 @@ public abstract class WampSocket
         return callControllers.remove(callID);
     }    
     
+    public Collection<WampCallController> getCallControllers()
+    {
+        return callControllers.values();
+    }
+    
     
     
     
@@ -327,24 +347,189 @@ public abstract class WampSocket
         return invocations.remove(invocationId);
     }
 
-    public Set<Long> getInvocationIDs()
+    public int getInvocationCount()
     {
-        return invocations.keySet();
+        return invocations.size();
     }
     
+    /**
+     * Fails the pending invocations of a closed callee session.
+     * The fail callbacks release the invocations and respond to the callers.
+     */
     public void clearInvocations() {
-        while(invocations.size() > 0) {
-            for(Entry<Long,WampInvocation> entry : invocations.entrySet()) {
-                Long invocationId = entry.getKey();
-                WampCallController task = entry.getValue().getWampCallController();
-                task.removeRemoteInvocation(getSocketId(), invocationId);
-                removeInvocation(invocationId);
+        for(WampInvocation invocation : invocations.values()) {
+            Long invocationId = invocation.getInvocationId();
+            Deferred<WampResult, WampException, WampResult> callback = invocation.getAsyncCallback();
+            removeInvocation(invocationId);
+            if(callback != null && callback.isPending()) {
+                WampDict details = new WampDict();
+                details.put("reason", "wgs.callee_disconnected");
+                try { callback.reject(new WampException(invocationId, details, WampException.ERROR_PREFIX + ".canceled", null, null)); }
+                catch(Exception ex) { }
             }
+            invocation.getWampCallController().removeRemoteInvocation(getSocketId(), invocationId);
         }
     }
     
     
     public abstract void sendObject(Object msg) throws Exception;
+    
+    /**
+     * Sends a message of the session
+     * (to the transport that has resumed the session, or to the buffer of the parked session).
+     */
+    public void sendMessage(Object msg) throws Exception
+    {
+        WampSessionResumption r = resumption;
+        if(r != null) r.send(msg, false);
+        else sendObject(msg);
+    }
+    
+    /**
+     * Sends an EVENT message of the session.
+     */
+    public void sendEvent(Object msg) throws Exception
+    {
+        WampSessionResumption r = resumption;
+        if(r != null) r.send(msg, true);
+        else deliverEvent(msg);
+    }
+    
+    /**
+     * Sends an EVENT message to the transport, applying the slow-consumer policy of the realm 
+     * when the outbound backlog exceeds its thresholds.
+     */
+    protected void deliverEvent(Object msg) throws Exception
+    {
+        WampSlowConsumerPolicy policy = getSlowConsumerPolicy();
+        if(policy != null) {
+            int pendingMessages = getPendingMessageCount();
+            long pendingBytes = getPendingBytes();
+            if(sampledDelivery && policy.isRecovered(pendingMessages, pendingBytes)) {
+                sampledDelivery = false;
+            }
+            
+            if(sampledDelivery || policy.isExceeded(pendingMessages, pendingBytes)) {
+                switch(policy.getAction()) {
+                    case drop_new:
+                        policy.onDroppedEvent();
+                        return;
+                        
+                    case drop_oldest:
+                        policy.onDroppedEvent();
+                        if(!dropOldestEvent()) return;  // only RPC/control messages are queued: drop the new event
+                        break;
+                        
+                    case sample:
+                        sampledDelivery = true;
+                        if(sampledEvents.incrementAndGet() % policy.getSampleRate() != 0) {
+                            policy.onDroppedEvent();
+                            return;
+                        }
+                        break;
+                        
+                    case disconnect:
+                        policy.onDisconnectedSession();
+                        if(logger.isLoggable(Level.FINE)) logger.log(Level.FINE, "Disconnecting slow consumer: session " + getWampSessionId());
+                        discardPendingMessages();
+                        close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, WampSlowConsumerPolicy.CLOSE_REASON));
+                        return;
+                }
+            }
+        }
+        
+        queueEvent(msg);
+    }
+    
+    private WampSlowConsumerPolicy getSlowConsumerPolicy()
+    {
+        WampSlowConsumerPolicy policy = slowConsumerPolicy;
+        String realmName = realm;
+        if(policy == null && realmName != null) {
+            policy = WampRealm.getRealm(realmName).getSlowConsumerPolicy();
+            slowConsumerPolicy = policy;
+        }
+        return policy;
+    }
+    
+    /**
+     * Queues an EVENT message (that can be dropped by the slow-consumer policy).
+     */
+    protected void queueEvent(Object msg) throws Exception
+    {
+        sendObject(msg);
+    }
+    
+    /**
+     * Removes the oldest EVENT message waiting to be delivered.
+     * @return false when there isn't any queued event
+     */
+    protected boolean dropOldestEvent()
+    {
+        return false;
+    }
+    
+    /**
+     * Discards the outbound messages waiting to be delivered (i.e: before disconnecting a slow consumer).
+     */
+    protected void discardPendingMessages()
+    {
+    }
+    
+    /**
+     * Removes the outbound messages waiting to be delivered (i.e: to replay them after a session resumption).
+     */
+    protected void drainPendingMessages(Collection<Object> target)
+    {
+    }
+    
+    /**
+     * Get the number of outbound messages waiting to be delivered to the peer
+     * @return the number of queued messages
+     */
+    public int getPendingMessageCount()
+    {
+        return 0;
+    }
+    
+    /**
+     * Get the size of the outbound messages waiting to be delivered to the peer
+     * @return the number of queued bytes (characters for text messages)
+     */
+    public long getPendingBytes()
+    {
+        return 0L;
+    }
+    
+    protected static long getMessageSize(Object msg)
+    {
+        if(msg instanceof byte[]) return ((byte[])msg).length;
+        else if(msg instanceof String) return ((String)msg).length();
+        else return 0L;
+    }
+    
+    /**
+     * An EVENT message in the outbound queue of a transport.
+     */
+    protected static final class QueuedEvent
+    {
+        private Object msg;
+        
+        public QueuedEvent(Object msg)
+        {
+            this.msg = msg;
+        }
+        
+        public Object getMessage()
+        {
+            return msg;
+        }
+        
+        public static Object unwrap(Object queued)
+        {
+            return (queued instanceof QueuedEvent) ? ((QueuedEvent)queued).msg : queued;
+        }
+    }
    
     
     public boolean close(CloseReason reason)
@@ -354,6 +539,13 @@ public abstract class WampSocket
             
             WampProtocol.sendGoodbyeMessage(this, reason.getReasonPhrase(), null);
             
+            WampSessionResumption r = resumption;
+            WampSocket transport = (r != null) ? r.getTransport() : null;
+            if(transport != null) {
+                transport.setGoodbyeRequested(true);  // already sent
+                transport.close(reason);
+            }
+            
             return true;
         } else {
             return false;
@@ -365,6 +557,39 @@ public abstract class WampSocket
         return connected.get();
     }
     
+    /**
+     * @return true when the messages of the session aren't written by its own transport
+     *         (the session is parked, or it has been resumed by another transport)
+     */
+    protected boolean isTransportDetached()
+    {
+        WampSessionResumption r = resumption;
+        return r != null && r.isDetached();
+    }
+    
+    public WampSessionResumption getResumption()
+    {
+        return resumption;
+    }
+    
+    public void setResumption(WampSessionResumption resumption)
+    {
+        this.resumption = resumption;
+    }
+    
+    /**
+     * @return the session resumed by this transport (or null)
+     */
+    public WampSocket getResumedSession()
+    {
+        return resumedSession;
+    }
+    
+    public void setResumedSession(WampSocket session)
+    {
+        this.resumedSession = session;
+    }
+    
     
     public boolean  isGoodbyeRequested()
     {
@@ -13,5 +13,13 @@ import org.wgs.wamp.type.WampMatchType;
 public @interface WampRegisterProcedure {
     String name() default "";
     WampMatchType match() default WampMatchType.exact;
+    long cacheTtl() default 0L;
+    String cacheScope() default "authid";
+    String[] cacheInvalidationTopics() default {};
+    boolean coalesce() default false;
+    String coalesceScope() default "authid";
+    String bulkhead() default "";
+    String priority() default "normal";    // interactive, normal or batch
+    String orderBy() default "";    // "[<name>:]<index>[.<field>]" of the argument that identifies the ordering group, or a comma-separated list of alternatives (empty for session order)
 }
 
@@ -3,11 +3,15 @@ package org.wgs.wamp.api;
 import org.wgs.security.WampCRA;
 import org.wgs.util.Storage;
 import org.wgs.wamp.WampApplication;
+import org.wgs.wamp.WampException;
+import org.wgs.wamp.WampProtocol;
 import org.wgs.wamp.WampModule;
 import org.wgs.wamp.WampSocket;
 import org.wgs.wamp.annotation.WampRegisterProcedure;
 import org.wgs.wamp.annotation.WampModuleName;
 import org.wgs.wamp.topic.WampBroker;
+import org.wgs.wamp.topic.WampRetransmitBuffer;
+import org.wgs.wamp.topic.WampScheduledPublication;
 import org.wgs.wamp.topic.WampSubscription;
 import org.wgs.wamp.topic.WampTopic;
 import org.wgs.wamp.type.WampDict;
@@ -63,6 +67,63 @@ public class WampAPI extends WampModule
     }    
     
     
+    @WampRegisterProcedure(name="publication.cancel")
+    public boolean cancelScheduledPublication(WampSocket socket, Long publicationId) throws Exception
+    {
+        WampScheduledPublication publication = WampBroker.getScheduledPublication(publicationId);
+        if(publication == null) {
+            throw new WampException(null, "wamp.error.no_such_publication", null, null);
+        }
+        if(!publication.getRealm().equals(socket.getRealm()) 
+                || (!socket.getWampSessionId().equals(publication.getPublisherSessionId()) && !socket.hasAuthRole("admin"))) {
+            throw new WampException(null, WampException.NOT_AUTHORIZED, null, null);
+        }
+        return WampBroker.cancelScheduledPublication(publicationId);
+    }
+    
+    
+    @WampRegisterProcedure(name="topic.retransmit")
+    public WampDict getMissedTopicEvents(WampSocket socket, String topicName, Long fromSequence, WampDict options) throws Exception
+    {
+        WampTopic topic = WampBroker.getTopic(topicName);
+        WampRetransmitBuffer buffer = (topic != null)? topic.getRetransmitBuffer() : null;
+        if(buffer == null) {
+            throw new WampException(null, "wamp.error.no_such_topic", null, null);
+        }
+        
+        boolean subscribed = false;
+        for(WampSubscription subscription : socket.getSubscriptions()) {
+            if(topic.getSubscription(subscription.getId()) != null) {
+                subscribed = true;
+                break;
+            }
+        }
+        if(!subscribed) {
+            throw new WampException(null, WampException.NOT_AUTHORIZED, null, null);
+        }
+        
+        long toSequence = (options != null && options.has("to"))? options.getLong("to") : Long.MAX_VALUE;
+        WampList events = new WampList();
+        for(WampRetransmitBuffer.Event event : buffer.getEvents(fromSequence, toSequence)) {
+            if(socket.getRealm().equals(event.getRealm())
+                    && (event.getOptions().getEligibleSessionIds() == null || event.getOptions().getEligibleSessionIds().contains(socket.getWampSessionId()))
+                    && WampProtocol.isEligibleSocket(socket.getWampSessionId(), socket, event.getOptions())) {
+                WampDict details = new WampDict();
+                details.putAll(event.getDetails());
+                details.put("topic", topicName);
+                details.put("seq", event.getSequence());
+                events.add(new WampList(event.getSequence(), event.getPublicationId(), details, event.getPayload(), event.getPayloadKw()));
+            }
+        }
+        
+        WampDict retval = new WampDict();
+        retval.put("first", buffer.getFirstSequence());
+        retval.put("last", buffer.getLastSequence());
+        retval.put("events", events);
+        return retval;
+    }
+    
+    
     @WampRegisterProcedure(name="topic.history.last")
     public WampList getLastTopicEvents(String topicName, int limit)
     {
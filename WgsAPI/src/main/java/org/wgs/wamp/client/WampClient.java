@@ -4,6 +4,7 @@ import java.lang.reflect.Method;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.util.Collection;
 import java.util.List;
 import java.util.StringTokenizer;
 import java.util.concurrent.ConcurrentHashMap;
@@ -164,9 +165,17 @@ public class WampClient
                         WampList unregistrationParams = WampClient.this.pendingRequests.get(unregisteredRequestId);
                         if(unregistrationParams != null) {
                             Deferred<Long, WampException, Long> unregistrationPromise = getDeferredLong(unregistrationParams);
-                            Long unregistrationId = unregistrationParams.getLong(2);
-                            if(unregistrationPromise != null) unregistrationPromise.resolve(unregistrationId);
-                            WampClient.this.rpcHandlers.remove(unregistrationId);
+                            if(unregistrationParams.get(2) instanceof WampList) {  // batch
+                                WampList unregistrationIds = (WampList)unregistrationParams.get(2);
+                                for(int i = 0; i < unregistrationIds.size(); i++) {
+                                    WampClient.this.rpcHandlers.remove(unregistrationIds.getLong(i));
+                                }
+                                if(unregistrationPromise != null) unregistrationPromise.resolve((long)unregistrationIds.size());
+                            } else {
+                                Long unregistrationId = unregistrationParams.getLong(2);
+                                if(unregistrationPromise != null) unregistrationPromise.resolve(unregistrationId);
+                                WampClient.this.rpcHandlers.remove(unregistrationId);
+                            }
                             removePendingMessage(unregisteredRequestId);
                             //delete client.rpcRegistrationsById[registrationId];
                             //delete client.rpcRegistrationsByURI[procedureURI];              
@@ -176,15 +185,26 @@ public class WampClient
                     case WampProtocol.INTERRUPT:
                         Long interruptedInvocationId = request.getLong(1);
                         if(interruptedInvocationId != null) {
-                            WampCallController task = WampClient.this.pendingInvocations.remove(interruptedInvocationId);                        
+                            WampCallController task = WampClient.this.pendingInvocations.get(interruptedInvocationId);                        
                             if(task != null) {
+                                // the cancellation mode is propagated to the invocations of the task (i.e: cluster hops), 
+                                // and the router is responded by the fail callback of the invocation 
                                 WampDict interruptOptions = (WampDict)request.get(2);
                                 task.cancel(interruptOptions, null);
-                                removePendingMessage(null);
                             }
                         }
                         break;
                         
+                    case WampProtocol.CREDIT:
+                        // credits of the router for the progressive results of an invocation (i.e: cluster hops)
+                        Long creditInvocationId = request.getLong(1);
+                        WampDict creditDetails = (WampDict)request.get(2);
+                        WampCallController creditTask = (creditInvocationId != null)? WampClient.this.pendingInvocations.get(creditInvocationId) : null;
+                        if(creditTask != null && creditDetails != null && creditDetails.has("credits")) {
+                            creditTask.grantCredits(creditDetails.getLong("credits").intValue());
+                        }
+                        break;
+                        
                     case WampProtocol.INVOCATION:
                         createPendingMessage(null, null);
                         final Long invocationRequestId = request.getLong(1);
@@ -240,7 +260,8 @@ public class WampClient
                                 promise.fail(new FailCallback<WampException>() {
                                     @Override
                                     public void onFail(WampException ex) {
-                                        WampProtocol.sendErrorMessage(clientSocket, WampProtocol.INVOCATION, invocationRequestId, ex.getDetails(), "wamp.error.local_invocation_error", ex.getArgs(), ex.getArgsKw());
+                                        String errorURI = task.isCancelled() ? WampException.ERROR_PREFIX + ".canceled" : "wamp.error.local_invocation_error";
+                                        WampProtocol.sendErrorMessage(clientSocket, WampProtocol.INVOCATION, invocationRequestId, ex.getDetails(), errorURI, ex.getArgs(), ex.getArgsKw());
                                         WampClient.this.pendingInvocations.remove(invocationRequestId);
                                         removePendingMessage(null);
                                     }
@@ -294,6 +315,11 @@ public class WampClient
                     case WampProtocol.ERROR:
                         logger.severe("ERROR: " + request.toString());
                         Long errorResponseId = request.getLong(2);
+                        WampList errorParams = WampClient.this.pendingRequests.get(errorResponseId);
+                        if(errorParams != null && Long.valueOf(WampProtocol.REGISTER).equals(request.getLong(1))) {
+                            Deferred<Long, WampException, Long> registrationPromise = getDeferredLong(errorParams);
+                            if(registrationPromise != null) registrationPromise.reject(new WampException(null, request.getText(4), null, null));
+                        }
                         removePendingMessage(errorResponseId);
                         break;
                         
@@ -600,6 +626,36 @@ public class WampClient
         return unregisterRPC(registrationId);
     }
     
+    /**
+     * Unregisters several procedures with a single message to the router (a cluster node).
+     * @return the promise of the number of unregistered procedures
+     */
+    public Promise<Long, WampException, Long> unregisterRPCs(Collection<String> procedureURIs) throws Exception
+    {
+        DeferredObject<Long, WampException, Long> deferred = new DeferredObject<Long, WampException, Long>();
+        WampList registrationIds = new WampList();
+        for(String procedureURI : procedureURIs) {
+            Long registrationId = this.rpcRegistrationsByURI.get(procedureURI);
+            if(registrationId != null) registrationIds.add(registrationId);
+        }
+        if(registrationIds.size() == 0) {
+            deferred.resolve(0L);
+            return deferred.promise();
+        }
+        
+        Long requestId = WampProtocol.newSessionScopeId(clientSocket);
+        WampList list = new WampList();
+        list.add(deferred);        
+        list.add(null);
+        list.add(registrationIds);
+        
+        createPendingMessage(requestId, list);
+        WampDict options = new WampDict();
+        options.put("_cluster_registrations", registrationIds);
+        WampProtocol.sendUnregisterMessage(clientSocket, requestId, registrationIds.getLong(0), options);
+        return deferred.promise();        
+    }
+    
     protected Promise<Long, WampException, Long> unregisterRPC(Long registrationId) throws Exception
     {    
         DeferredObject<Long, WampException, Long> deferred = new DeferredObject<Long, WampException, Long>();
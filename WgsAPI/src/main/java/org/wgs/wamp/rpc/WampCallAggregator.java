@@ -0,0 +1,140 @@
+package org.wgs.wamp.rpc;
+
+import org.wgs.wamp.WampResult;
+import org.wgs.wamp.type.WampDict;
+import org.wgs.wamp.type.WampList;
+
+
+/**
+ * Folds the results of the callees of a RunOn.all call as they arrive,
+ * so only the accumulated value is retained (not every partial result).
+ */
+public class WampCallAggregator
+{
+    private WampCallOptions.AggregateEnum mode;
+    private int required;
+    private int received;
+
+    private WampList list;
+    private WampDict dict;
+    private long longValue;
+    private double doubleValue;
+    private boolean floating;
+    private boolean hasValue;
+
+
+    /**
+     * @param mode the aggregation mode
+     * @param count the number of results of "first" and "quorum" modes (0 for the defaults)
+     * @param callees the number of invoked callees
+     */
+    public WampCallAggregator(WampCallOptions.AggregateEnum mode, int count, int callees)
+    {
+        this.mode = (mode != null)? mode : WampCallOptions.AggregateEnum.list;
+        this.list = new WampList();
+        this.dict = new WampDict();
+
+        if(this.mode == WampCallOptions.AggregateEnum.first) {
+            this.required = Math.min(callees, Math.max(1, count));
+        } else if(this.mode == WampCallOptions.AggregateEnum.quorum) {
+            this.required = Math.min(callees, (count > 0)? count : callees/2 + 1);
+        } else {
+            this.required = callees;
+        }
+    }
+
+
+    /**
+     * Accumulates the result of a callee.
+     * @return true when the call can be completed without waiting for the rest of the callees
+     */
+    public synchronized boolean add(WampResult result)
+    {
+        if(received >= required) return false;   // late results are discarded
+        received++;
+
+        if(result.getArgsKw() != null) dict.putAll(result.getArgsKw());
+
+        WampList args = result.getArgs();
+        switch(mode) {
+            case concat:
+                for(int i = 0; args != null && i < args.size(); i++) {
+                    list.add(args.get(i));
+                }
+                break;
+
+            case sum:
+            case min:
+            case max:
+                for(int i = 0; args != null && i < args.size(); i++) {
+                    Object value = args.get(i);
+                    if(value instanceof Number) fold((Number)value);
+                }
+                break;
+
+            default:  // list, first, quorum
+                list.add(args);
+                break;
+        }
+
+        return received >= required
+                && (mode == WampCallOptions.AggregateEnum.first || mode == WampCallOptions.AggregateEnum.quorum);
+    }
+
+    private void fold(Number value)
+    {
+        boolean isFloating = (value instanceof Double) || (value instanceof Float);
+        if(isFloating && !floating) {
+            floating = true;
+            doubleValue = longValue;
+        }
+
+        if(!hasValue) {
+            hasValue = true;
+            if(floating) doubleValue = value.doubleValue();
+            else longValue = value.longValue();
+            return;
+        }
+
+        switch(mode) {
+            case sum:
+                if(floating) doubleValue += value.doubleValue();
+                else longValue += value.longValue();
+                break;
+            case min:
+                if(floating) doubleValue = Math.min(doubleValue, value.doubleValue());
+                else longValue = Math.min(longValue, value.longValue());
+                break;
+            case max:
+                if(floating) doubleValue = Math.max(doubleValue, value.doubleValue());
+                else longValue = Math.max(longValue, value.longValue());
+                break;
+        }
+    }
+
+
+    public synchronized WampList getResult()
+    {
+        switch(mode) {
+            case sum:
+            case min:
+            case max:
+                WampList retval = new WampList();
+                if(hasValue) retval.add(floating? (Object)doubleValue : (Object)longValue);
+                return retval;
+            default:
+                return list;
+        }
+    }
+
+    public synchronized WampDict getResultKw()
+    {
+        return dict;
+    }
+
+    public synchronized int getReceivedCount()
+    {
+        return received;
+    }
+
+}
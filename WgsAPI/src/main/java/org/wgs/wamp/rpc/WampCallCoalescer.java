@@ -0,0 +1,200 @@
+package org.wgs.wamp.rpc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.wgs.wamp.WampApplication;
+import org.wgs.wamp.WampException;
+import org.wgs.wamp.WampProtocol;
+import org.wgs.wamp.WampSocket;
+import org.wgs.wamp.encoding.WampEncoding;
+import org.wgs.wamp.type.WampDict;
+import org.wgs.wamp.type.WampList;
+
+
+/**
+ * Single-flight execution of identical concurrent calls (opt-in per procedure).
+ *
+ * The first call with a key is executed (the leader), and the identical calls
+ * received while it's in progress wait for its result (the followers),
+ * that is sent to all of them when the leader completes.
+ * When the leader is cancelled, the followers are dispatched again.
+ */
+public class WampCallCoalescer
+{
+    private static final Logger logger = Logger.getLogger(WampCallCoalescer.class.getName());
+
+    private static ConcurrentHashMap<String,WampResultCache.ScopeEnum> procedures = new ConcurrentHashMap<String,WampResultCache.ScopeEnum>();
+    private static ConcurrentHashMap<String,Group> groups = new ConcurrentHashMap<String,Group>();
+
+
+    /**
+     * Enables the coalescing of the calls to a procedure.
+     * @param procedureURI the procedure
+     * @param scope the callers that share the results
+     */
+    public static void enable(String procedureURI, WampResultCache.ScopeEnum scope)
+    {
+        procedures.put(procedureURI, (scope != null)? scope : WampResultCache.ScopeEnum.authid);
+    }
+
+    public static void disable(String procedureURI)
+    {
+        procedures.remove(procedureURI);
+    }
+
+
+    /**
+     * @return the coalescing key of a call, or null when it must be executed independently
+     */
+    public static String getKey(String procedureURI, WampSocket caller, WampList args, WampDict argsKw, WampCallOptions options)
+    {
+        WampResultCache.ScopeEnum scope = procedures.get(procedureURI);
+        if(scope == null) return null;
+        if(options != null && (options.getTimeout() > 0 || options.getRunMode() == WampCallOptions.RunModeEnum.progressive || options.getRunOn() == WampCallOptions.RunOnEnum.all)) return null;
+
+        StringBuilder key = new StringBuilder(procedureURI);
+        WampResultCache.appendCallKey(key, scope, caller, options, args, argsKw);
+        return key.toString();
+    }
+
+    /**
+     * Attaches a call to the identical call in progress.
+     * @return the group of the new leader, or null when the call has been attached as a follower
+     */
+    public static Group attach(String key, WampSocket socket, Long callID, String procedureURI, WampCallOptions options, WampList args, WampDict argsKw)
+    {
+        Follower follower = new Follower(socket, callID, procedureURI, options, args, argsKw);
+        while(true) {
+            Group group = groups.get(key);
+            if(group != null) {
+                if(group.add(follower)) return null;
+                groups.remove(key, group);  // completed
+            } else {
+                group = new Group(key);
+                if(groups.putIfAbsent(key, group) == null) return group;
+            }
+        }
+    }
+
+    /**
+     * Detaches a follower call cancelled by its caller.
+     * @return true when the call was waiting for the result of a leader
+     */
+    public static boolean cancel(WampSocket socket, Long callID)
+    {
+        for(Group group : groups.values()) {
+            if(group.remove(socket, callID)) return true;
+        }
+        return false;
+    }
+
+
+    public static class Group
+    {
+        private String key;
+        private List<Follower> followers = new ArrayList<Follower>();
+        private boolean closed;
+
+        Group(String key)
+        {
+            this.key = key;
+        }
+
+        synchronized boolean add(Follower follower)
+        {
+            if(closed) return false;
+            followers.add(follower);
+            return true;
+        }
+
+        synchronized boolean remove(WampSocket socket, Long callID)
+        {
+            if(closed) return false;
+            for(int i = 0; i < followers.size(); i++) {
+                Follower follower = followers.get(i);
+                if(follower.socket == socket && follower.callID.equals(callID)) {
+                    followers.remove(i);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private List<Follower> close()
+        {
+            List<Follower> retval;
+            synchronized(this) {
+                if(closed) return new ArrayList<Follower>();
+                closed = true;
+                retval = followers;
+                followers = null;
+            }
+            groups.remove(key, this);
+            return retval;
+        }
+
+        /**
+         * Sends the result of the leader to the followers.
+         */
+        public void complete(WampList result, WampDict resultKw)
+        {
+            Object[] serializedResult = new Object[WampEncoding.values().length];   // shared by the followers
+            for(Follower follower : close()) {
+                try {
+                    WampProtocol.sendResultMessage(follower.socket, follower.callID, null, result, resultKw, serializedResult);
+                } catch(Exception ex) {
+                    logger.log(Level.FINE, "Error sending coalesced result", ex);
+                }
+            }
+        }
+
+        /**
+         * Sends the error of the leader to the followers.
+         */
+        public void fail(WampException error)
+        {
+            for(Follower follower : close()) {
+                WampProtocol.sendErrorMessage(follower.socket, WampProtocol.CALL, follower.callID, error.getDetails(), error.getErrorURI(), error.getArgs(), error.getArgsKw());
+            }
+        }
+
+        /**
+         * Dispatches the followers again (the first one will be the new leader).
+         */
+        public void redispatch(WampApplication app)
+        {
+            for(Follower follower : close()) {
+                try {
+                    app.dispatchCall(follower.socket, follower.callID, follower.procedureURI, follower.options, follower.args, follower.argsKw);
+                } catch(Exception ex) {
+                    logger.log(Level.WARNING, "Error dispatching coalesced call", ex);
+                    WampProtocol.sendErrorMessage(follower.socket, WampProtocol.CALL, follower.callID, null, WampException.ERROR_PREFIX + ".call_error", null, null);
+                }
+            }
+        }
+    }
+
+    private static class Follower
+    {
+        private WampSocket socket;
+        private Long callID;
+        private String procedureURI;
+        private WampCallOptions options;
+        private WampList args;
+        private WampDict argsKw;
+
+        Follower(WampSocket socket, Long callID, String procedureURI, WampCallOptions options, WampList args, WampDict argsKw)
+        {
+            this.socket = socket;
+            this.callID = callID;
+            this.procedureURI = procedureURI;
+            this.options = options;
+            this.args = args;
+            this.argsKw = argsKw;
+        }
+    }
+
+}
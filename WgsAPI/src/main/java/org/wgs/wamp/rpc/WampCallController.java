@@ -1,10 +1,9 @@
 package org.wgs.wamp.rpc;
 
-import java.util.AbstractMap;
-import java.util.AbstractMap.SimpleEntry;
-import java.util.Map.Entry;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jdeferred.Deferred;
@@ -12,6 +11,8 @@ import org.jdeferred.DoneCallback;
 import org.jdeferred.FailCallback;
 import org.jdeferred.ProgressCallback;
 import org.jdeferred.Promise;
+import org.wgs.util.ConcurrentLongHashMap;
+import org.wgs.util.TimingWheel;
 import org.wgs.wamp.WampApplication;
 import org.wgs.wamp.WampException;
 import org.wgs.wamp.WampModule;
@@ -26,6 +27,13 @@ import org.wgs.wamp.type.WampMatchType;
 public class WampCallController implements Runnable 
 {
     private static final Logger logger = Logger.getLogger(WampCallController.class.getName());
+    
+    private static TimingWheel callTimer = null;
+    
+    private static final int RUNNING   = 0;
+    private static final int DONE      = 1;
+    private static final int CANCELLED = 2;
+    private static final int TIMEDOUT  = 3;
 
     private String procedureURI;
     private WampApplication app;
@@ -36,13 +44,24 @@ public class WampCallController implements Runnable
     private Long callID;
     private WampList result;
     private WampDict resultKw;
-    private boolean cancelled;
-    private boolean done;
+    private AtomicInteger state = new AtomicInteger(RUNNING);
+    private TimingWheel.Timeout timeout;
 
-    private int pendingInvocationCount;
-    private int remoteInvocationResults;
-    private ConcurrentHashMap<AbstractMap.SimpleEntry<Long,Long>, WampInvocation> remoteInvocations;
-    private Deferred<WampResult, WampException, WampResult> remoteInvocationsCompletionCallback;
+    private AtomicInteger pendingInvocationCount = new AtomicInteger(0);
+    private AtomicInteger remoteInvocationResults = new AtomicInteger(0);
+    private ConcurrentLongHashMap<WampInvocation> remoteInvocations;    // by (socketId, invocationId)
+    private volatile Deferred<WampResult, WampException, WampResult> remoteInvocationsCompletionCallback;
+    private WampCallAggregator aggregator;
+    private String cacheKey;
+    private WampCallCoalescer.Group coalescingGroup;
+    private WampCreditWindow creditWindow;      // null without flow control of progressive results
+    private AtomicInteger creditRotation = new AtomicInteger(0);
+    private volatile WampCancelOptions cancelOptions;
+    private volatile WampException cancelError;
+    private AtomicBoolean cancelReplied = new AtomicBoolean(false);
+    private boolean interruptible;
+    private Thread runner;                      // thread of the running local method (guarded by runnerLock)
+    private final Object runnerLock = new Object();
     
     
 
@@ -55,22 +74,25 @@ public class WampCallController implements Runnable
         this.callOptions = options;
         this.arguments = arguments;
         this.argumentsKw = argumentsKw;
-        this.remoteInvocations = new ConcurrentHashMap<AbstractMap.SimpleEntry<Long,Long>, WampInvocation>();
+        this.remoteInvocations = new ConcurrentLongHashMap<WampInvocation>(1);     // its table is created on the first remote invocation
+        if(options != null && options.getCredits() > 0 && options.getRunMode() == WampCallOptions.RunModeEnum.progressive && clientSocket.supportsProgressiveCallResults()) {
+            this.creditWindow = new WampCreditWindow(options.getCredits());
+        }
     }
     
-    public synchronized void incrementRemoteInvocationResults()
+    public void incrementRemoteInvocationResults()
     {
-        remoteInvocationResults++;
+        remoteInvocationResults.incrementAndGet();
     }
     
-    public synchronized void setPendingInvocationCount(int count)
+    public void setPendingInvocationCount(int count)
     {
-        this.pendingInvocationCount = count;
+        pendingInvocationCount.set(count);
     }    
     
-    public synchronized void decrementPendingInvocationCount()
+    public void decrementPendingInvocationCount()
     {
-        pendingInvocationCount--;
+        pendingInvocationCount.decrementAndGet();
     }    
     
     public void setRemoteInvocationsCompletionCallback(Deferred<WampResult, WampException, WampResult> callback)
@@ -83,57 +105,126 @@ public class WampCallController implements Runnable
         return this.remoteInvocationsCompletionCallback;
     }
     
+    public void setAggregator(WampCallAggregator aggregator)
+    {
+        this.aggregator = aggregator;
+    }
+    
+    public WampCallAggregator getAggregator()
+    {
+        return aggregator;
+    }
+
+    /**
+     * @param cacheKey the key to store the result in the result cache (or null when it isn't cacheable)
+     */
+    public void setCacheKey(String cacheKey)
+    {
+        this.cacheKey = cacheKey;
+    }
+
+    /**
+     * @param coalescingGroup the identical calls that wait for the result of this call (or null)
+     */
+    public void setCoalescingGroup(WampCallCoalescer.Group coalescingGroup)
+    {
+        this.coalescingGroup = coalescingGroup;
+    }
+
+    private void completeCoalescedCalls(WampException error)
+    {
+        WampCallCoalescer.Group group = coalescingGroup;
+        if(group != null) {
+            coalescingGroup = null;
+            if(isCancelled()) group.redispatch(app);
+            else if(error != null) group.fail(error);
+            else group.complete(getResult(), getResultKw());
+        }
+    }
+    
     
 
     public void addRemoteInvocation(Long socketId, Long remoteInvocationId, WampInvocation invocation)
     {
-        remoteInvocations.put(new AbstractMap.SimpleEntry<Long,Long>(socketId, remoteInvocationId), invocation);
+        remoteInvocations.put(socketId, remoteInvocationId, invocation);
+        if(isCancelled()) {
+            // cancelled while the invocations of the callees (i.e: RunOn.all) were being created
+            interruptInvocation(invocation, getInterruptOptions(), true);
+        }
     }
     
     public WampInvocation getRemoteInvocation(Long socketId, Long remoteInvocationId)    
     {
-        return remoteInvocations.get(new AbstractMap.SimpleEntry<Long,Long>(socketId, remoteInvocationId));
+        return remoteInvocations.get(socketId, remoteInvocationId);
     }
     
-    public synchronized WampInvocation removeRemoteInvocation(Long socketId, Long remoteInvocationId)    
+    public WampInvocation removeRemoteInvocation(Long socketId, Long remoteInvocationId)    
     {
-        WampResult wampResult = null;
-        WampInvocation retval = remoteInvocations.remove(new AbstractMap.SimpleEntry<Long,Long>(socketId, remoteInvocationId));
-
-        if(!done && !cancelled && pendingInvocationCount <= 0 && remoteInvocations.size() <= 0 && remoteInvocationsCompletionCallback != null) {
-            done = true;
-
-            wampResult = new WampResult(callID);
-            wampResult.setArgs(getResult());
-            wampResult.setArgsKw(getResultKw());
-        }              
+        WampInvocation retval = remoteInvocations.remove(socketId, remoteInvocationId);
 
-        if(wampResult != null) {
-            remoteInvocationsCompletionCallback.resolve(wampResult);
+        // the last completed invocation resolves the call (only once)
+        Deferred<WampResult, WampException, WampResult> callback = remoteInvocationsCompletionCallback;
+        if(callback != null && pendingInvocationCount.get() <= 0 && remoteInvocations.isEmpty()) {
+            if(state.compareAndSet(RUNNING, DONE)) {
+                resolve(callback);
+            } else if(state.get() == CANCELLED) {
+                replyCanceled();   // "kill" mode: all the callees have responded to the interruption
+            }
         }
         
         return retval;
     }
     
+    /**
+     * Completes the call with the results aggregated so far, 
+     * and interrupts the invocations that are still pending.
+     */
+    public void completeEarly()
+    {
+        Deferred<WampResult, WampException, WampResult> callback = remoteInvocationsCompletionCallback;
+        if(callback != null && state.compareAndSet(RUNNING, DONE)) {
+            resolve(callback);
+            
+            WampDict interruptOptions = new WampDict();
+            interruptOptions.put("mode", "killnowait");
+            for(WampInvocation invocation : remoteInvocations.values()) {
+                Deferred<WampResult,WampException,WampResult> deferred = invocation.getAsyncCallback();
+                if(deferred != null && deferred.isPending()) {
+                    try { deferred.reject(new WampException(invocation.getInvocationId(), interruptOptions, "wgs.cancel_invocation", null, null)); }
+                    catch(Exception ex) { }
+                }
+                removeRemoteInvocation(invocation.getRemoteMethod().getRemotePeer().getSocketId(), invocation.getInvocationId());
+            }
+        }
+    }
     
-    /*
-    public Set<AbstractMap.SimpleEntry<Long,Long>> getRemoteInvocations()
+    private void resolve(Deferred<WampResult, WampException, WampResult> callback)
     {
-        return remoteInvocations.keySet();
+        WampResult wampResult = new WampResult(callID);
+        if(aggregator != null) {
+            wampResult.setArgs(aggregator.getResult());
+            wampResult.setArgsKw(aggregator.getResultKw());
+        } else {
+            wampResult.setArgs(getResult());
+            wampResult.setArgsKw(getResultKw());
+        }
+        callback.resolve(wampResult);
     }
-    */
-
+    
     
     public WampSocket getClientSocket()
     {
         return clientSocket;
     }
 
-    /*
-    public void setFuture(Future<?> future) {
-        this.future = future;
+    /**
+     * @param interruptible true when the local method runs on a thread of the RPC executor, 
+     *        that is interrupted when the call is cancelled (kill/killnowait modes)
+     */
+    public void setInterruptible(boolean interruptible)
+    {
+        this.interruptible = interruptible;
     }
-    */
     
     public boolean isRemoteMethod()
     {
@@ -142,9 +233,57 @@ public class WampCallController implements Runnable
     }
     
     public boolean isCancelled() {
-        return !done && cancelled;
+        int current = state.get();
+        return current == CANCELLED || current == TIMEDOUT;
     }    
     
+    public boolean isTimedOut() {
+        return state.get() == TIMEDOUT;
+    }
+    
+    
+    private static synchronized TimingWheel getCallTimer()
+    {
+        if(callTimer == null) {
+            callTimer = new TimingWheel("wgs-call-timeouts", 10L, 8, 4);
+        }
+        return callTimer;
+    }
+    
+    /**
+     * Starts the timer of the "timeout" call option (in milliseconds), when it's specified.
+     */
+    public void startTimeout()
+    {
+        if(callOptions != null && callOptions.getTimeout() > 0) {
+            timeout = getCallTimer().schedule(() -> onTimeout(), callOptions.getTimeout());
+        }
+    }
+    
+    private void stopTimeout()
+    {
+        TimingWheel.Timeout t = timeout;
+        if(t != null) t.cancel();
+    }
+    
+    private void onTimeout()
+    {
+        if(!state.compareAndSet(RUNNING, TIMEDOUT)) return;
+        
+        if(logger.isLoggable(Level.FINE)) logger.log(Level.FINE, "RPC timeout: " + procedureURI + " (call " + callID + ")");
+        
+        WampDict interruptOptions = new WampDict();
+        interruptOptions.put("mode", "killnowait");
+        interruptOptions.put("reason", "wamp.error.timeout");
+        cancelOptions = new WampCancelOptions(interruptOptions);
+        rejectCallback(new WampException(null, "wamp.error.timeout", null, null));
+        interruptRunner();
+        interruptInvocations(true);
+        
+        WampProtocol.sendErrorMessage(clientSocket, WampProtocol.CALL, callID, null, "wamp.error.timeout", null, null);
+        clientSocket.removeCallController(callID);
+    }
+    
     public String getProcedureURI()
     {
         return procedureURI;
@@ -156,10 +295,20 @@ public class WampCallController implements Runnable
     {
         WampModule module = app.getWampModule(procedureURI, app.getDefaultWampModule());
         if(callID == null || callID == 0L) {
+            stopTimeout();
             WampProtocol.sendErrorMessage(clientSocket, WampProtocol.CALL, callID, null, WampException.ERROR_PREFIX + ".requestid_unknown", null, null);
             return;
         }        
         
+        if(isCancelled()) {
+            if(!isTimedOut()) sendCanceledError();   // cancelled before it was started
+            return;
+        }
+        
+        if(interruptible) {
+            synchronized(runnerLock) { runner = Thread.currentThread(); }
+        }
+        
         try {
             if (module == null) {
                 throw new Exception("ProcURI not implemented");
@@ -183,14 +332,7 @@ public class WampCallController implements Runnable
                 public void onProgress(WampResult progress) {
                     if(!isCancelled()) {
                         if(clientSocket.supportsProgressiveCallResults() && callOptions.getRunMode() == WampCallOptions.RunModeEnum.progressive) {
-                            try {
-                                WampDict details = progress.getDetails();
-                                if(details == null) details = new WampDict();
-                                details.put("progress", true);
-                                WampProtocol.sendResultMessage(clientSocket, getCallID(), details, progress.getArgs(), progress.getArgsKw());
-                            } catch(Exception ex) { 
-                                System.out.println("SEVERE: WampCallController.sendResultMessage: " + ex.getMessage());
-                            }
+                            sendProgress(progress);
                         } else {
                             getResultKw().putAll(progress.getArgsKw());
                             if(progress.getArgs() != null) {
@@ -204,7 +346,14 @@ public class WampCallController implements Runnable
             promise.fail(new FailCallback<WampException>() {
                 @Override
                 public void onFail(WampException error) {
-                    WampProtocol.sendErrorMessage(clientSocket, WampProtocol.CALL, WampCallController.this.getCallID(), error.getDetails(), error.getErrorURI(), error.getArgs(), error.getArgsKw());
+                    if(isCancelled()) {
+                        if(!isTimedOut()) sendCanceledError();
+                    } else {
+                        stopTimeout();
+                        WampProtocol.sendErrorMessage(clientSocket, WampProtocol.CALL, WampCallController.this.getCallID(), error.getDetails(), error.getErrorURI(), error.getArgs(), error.getArgsKw());
+                        clientSocket.removeCallController(callID);
+                        completeCoalescedCalls(error);
+                    }
                 }
             });
 
@@ -214,69 +363,237 @@ public class WampCallController implements Runnable
             if (ex instanceof java.lang.reflect.InvocationTargetException) {
                 ex = ex.getCause();
             }
-            if (ex instanceof WampException) {
+            stopTimeout();
+            if (isCancelled()) {
+                // i.e: the local method was interrupted
+                if (!isTimedOut()) sendCanceledError();
+                if(logger.isLoggable(Level.FINE)) logger.log(Level.FINE, "Cancelled method " + procedureURI + ": " + ex);
+            } else if (ex instanceof WampException) {
                 WampException wex = (WampException) ex;
-                if (!isCancelled()) {
-                    WampProtocol.sendErrorMessage(clientSocket, WampProtocol.CALL, callID, wex.getDetails(), wex.getErrorURI(), wex.getArgs(), wex.getArgsKw() );
-                }
+                WampProtocol.sendErrorMessage(clientSocket, WampProtocol.CALL, callID, wex.getDetails(), wex.getErrorURI(), wex.getArgs(), wex.getArgsKw() );
+                clientSocket.removeCallController(callID);
+                completeCoalescedCalls(wex);
                 logger.log(Level.SEVERE, "Error calling method " + procedureURI, wex);
             } else {
-                if (!isCancelled()) {
-                    System.out.println("Error calling method " + procedureURI + ": " + ex.getMessage());
-                    WampProtocol.sendErrorMessage(clientSocket, WampProtocol.CALL, callID, null, WampException.ERROR_PREFIX+".call_error", null, null);
-                }
+                System.out.println("Error calling method " + procedureURI + ": " + ex.getMessage());
+                WampProtocol.sendErrorMessage(clientSocket, WampProtocol.CALL, callID, null, WampException.ERROR_PREFIX+".call_error", null, null);
+                clientSocket.removeCallController(callID);
+                completeCoalescedCalls(new WampException(null, WampException.ERROR_PREFIX+".call_error", null, null));
                 logger.log(Level.SEVERE, "Error calling method " + procedureURI, ex);
             }
+            
+        } finally {
+            if(interruptible) {
+                synchronized(runnerLock) { runner = null; }
+                Thread.interrupted();   // the pooled thread doesn't keep the interruption of this call
+            }
+        }
+    }
+    
+    
+    private void sendProgress(WampResult progress)
+    {
+        if(creditWindow == null) {
+            sendProgressMessage(progress);
+        } else if(creditWindow.offer(progress)) {
+            drainProgress();
+        } else {
+            // the callee doesn't respect the credits of the caller
+            WampDict interruptOptions = new WampDict();
+            interruptOptions.put("mode", "killnowait");
+            cancel(interruptOptions, new WampException(null, "wgs.flow_control_overflow", null, null));
+        }
+    }
+    
+    private void sendProgressMessage(WampResult progress)
+    {
+        try {
+            WampDict details = progress.getDetails();
+            if(details == null) details = new WampDict();
+            details.put("progress", true);
+            WampProtocol.sendResultMessage(clientSocket, getCallID(), details, progress.getArgs(), progress.getArgsKw());
+        } catch(Exception ex) { 
+            System.out.println("SEVERE: WampCallController.sendResultMessage: " + ex.getMessage());
+        }
+    }
+    
+    private void drainProgress()
+    {
+        boolean sendFinal;
+        synchronized(creditWindow) {   // keeps the order of the results
+            WampResult progress;
+            while((progress = creditWindow.poll()) != null) {
+                if(!isCancelled()) sendProgressMessage(progress);
+            }
+            sendFinal = creditWindow.takeFinal();
+        }
+        if(sendFinal) sendCallResults();
+    }
+    
+    /**
+     * Grants credits for more progressive results: the buffered results are delivered,
+     * and the credits are split between the outstanding invocations of the callees
+     * (the remainder is assigned in rotation, so an invocation isn't starved when there are less credits than callees).
+     */
+    public void grantCredits(int credits)
+    {
+        if(creditWindow == null || credits <= 0) return;
+        
+        creditWindow.grant(credits);
+        drainProgress();
+        
+        List<WampInvocation> invocations = new ArrayList<WampInvocation>(remoteInvocations.values());
+        int count = invocations.size();
+        if(count == 0) return;
+        
+        int first = Math.floorMod(creditRotation.getAndAdd(credits % count), count);
+        for(int i = 0; i < count; i++) {
+            WampInvocation invocation = invocations.get((first + i) % count);
+            int share = credits / count + ((i < credits % count)? 1 : 0);
+            if(share == 0) break;
+            try { 
+                WampProtocol.sendCreditMessage(invocation.getRemoteMethod().getRemotePeer(), invocation.getInvocationId(), share); 
+            } catch(Exception ex) { 
+                logger.log(Level.FINE, "Error relaying credits to callee", ex);
+            }
         }
     }
     
     
     public void sendCallResults()
     {
-        if (isCancelled()) {
-            System.out.println("RPC cancelled by caller: " + callID);
-            WampProtocol.sendErrorMessage(clientSocket, WampProtocol.CALL, callID, null, WampException.ERROR_PREFIX + ".CanceledByCaller", null, null);
+        if (isTimedOut()) return;  // the error was already sent to the caller
+        if (creditWindow != null) {
+            synchronized(creditWindow) {
+                if (!creditWindow.finish()) return;  // sent when the buffered progressive results are delivered
+            }
+        }
+        stopTimeout();
+        
+        if (!state.compareAndSet(RUNNING, DONE) && state.get() == CANCELLED) {
+            if(logger.isLoggable(Level.FINE)) logger.log(Level.FINE, "RPC cancelled by caller: " + callID);
+            sendCanceledError();
         } else {
             try {
                 WampProtocol.sendResultMessage(clientSocket, callID, null, getResult(), getResultKw());
+                if(cacheKey != null) WampResultCache.put(cacheKey, clientSocket.getRealm(), procedureURI, getResult(), getResultKw());
             } catch(Exception ex) {
                 System.out.println("WARN: WampCallController.sendCallResults: error: " + ex.getMessage());
             }
         }
+        completeCoalescedCalls(null);
 
         clientSocket.removeCallController(callID);
     }
     
     
-    public void cancel(WampDict cancelOptions, WampException error) {
-        if(!done) {
-            cancelled = true;
-
-            if(remoteInvocationsCompletionCallback != null && !remoteInvocationsCompletionCallback.isRejected()) {
-                if(error == null) error = new WampException(cancelOptions, "wgs.cancel_invocation", null, null);                
-                try { remoteInvocationsCompletionCallback.reject(error); }
-                catch(Exception ex) { }
-            }          
+    /**
+     * Cancels the call with the mode of the cancel options (skip, kill or killnowait).
+     * @param error the error for the caller (or null for "wamp.error.canceled")
+     */
+    public void cancel(WampDict options, WampException error) {
+        if(state.compareAndSet(RUNNING, CANCELLED)) {
+            WampCancelOptions cancelOptions = new WampCancelOptions(options);
+            this.cancelOptions = cancelOptions;
+            this.cancelError = (error != null) ? error : newCanceledError();
             
-            if(remoteInvocations != null) {
-                for(Entry<SimpleEntry<Long,Long>,WampInvocation> entry : remoteInvocations.entrySet()) {
-                    Long socketId = entry.getKey().getKey();
-                    Long remoteInvocationId = entry.getKey().getValue();
-                    WampInvocation invocation = entry.getValue();
-                    if(invocation != null) {
-                        Deferred<WampResult,WampException,WampResult> deferred = invocation.getAsyncCallback();
-                        WampException cancelException = new WampException(remoteInvocationId, cancelOptions, "wgs.cancel_invocation", null, null);
-                        if(deferred != null && !deferred.isRejected()) {
-                            try { deferred.reject(cancelException); }
-                            catch(Exception ex) { }
-                            finally {
-                                removeRemoteInvocation(socketId, remoteInvocationId);
-                            }
-                        }
+            switch(cancelOptions.getMode()) {
+                case skip:
+                    // the invocations continue, and their results will be discarded
+                    replyCanceled();
+                    break;
+                    
+                case kill:
+                    interruptRunner();
+                    interruptInvocations(false);
+                    if(remoteInvocationsCompletionCallback != null && pendingInvocationCount.get() <= 0 && remoteInvocations.isEmpty()) {
+                        replyCanceled();
                     }
-                }            
+                    break;
+                    
+                default:
+                    interruptRunner();
+                    replyCanceled();
+                    interruptInvocations(true);
+                    break;
             }
             
+            if(creditWindow != null) {
+                creditWindow.clear();
+                drainProgress();    // releases the final result held by the flow control
+            }
+        }
+    }
+    
+    private WampDict getInterruptOptions() {
+        WampCancelOptions options = cancelOptions;
+        return (options != null) ? options.getInterruptOptions() : new WampCancelOptions(null).getInterruptOptions();
+    }
+    
+    /**
+     * Responds the cancellation to the caller: the completion of the remote invocations is rejected 
+     * (and the error is sent by its fail callback), or the error is sent directly for local methods.
+     * The invocations of a router-to-router client don't have a caller to respond.
+     */
+    private void replyCanceled() {
+        if(remoteInvocationsCompletionCallback != null) {
+            rejectCallback(cancelError);
+        } else if(!isRemoteMethod()) {
+            sendCanceledError();
+        }
+    }
+    
+    private void rejectCallback(WampException error) {
+        Deferred<WampResult, WampException, WampResult> callback = remoteInvocationsCompletionCallback;
+        if(callback != null && callback.isPending()) {
+            try { callback.reject(error); }
+            catch(Exception ex) { }
+        }
+    }
+    
+    private void sendCanceledError() {
+        if(cancelReplied.compareAndSet(false, true)) {
+            stopTimeout();
+            WampException error = (cancelError != null) ? cancelError : newCanceledError();
+            WampProtocol.sendErrorMessage(clientSocket, WampProtocol.CALL, callID, error.getDetails(), error.getErrorURI(), error.getArgs(), error.getArgsKw());
+            clientSocket.removeCallController(callID);
+            completeCoalescedCalls(error);
+        }
+    }
+    
+    private static WampException newCanceledError() {
+        return new WampException(null, WampException.ERROR_PREFIX + ".canceled", null, null);
+    }
+    
+    private void interruptRunner() {
+        synchronized(runnerLock) {
+            if(runner != null) runner.interrupt();
+        }
+    }
+    
+    /**
+     * @param nowait true to discard the invocations immediately, 
+     *        or false to wait for the responses of the callees to the INTERRUPT messages
+     */
+    private void interruptInvocations(boolean nowait) {
+        WampDict interruptOptions = getInterruptOptions();
+        for(WampInvocation invocation : remoteInvocations.values()) {
+            interruptInvocation(invocation, interruptOptions, nowait);
+        }            
+    }
+    
+    private void interruptInvocation(WampInvocation invocation, WampDict interruptOptions, boolean nowait) {
+        Deferred<WampResult,WampException,WampResult> deferred = invocation.getAsyncCallback();
+        if(deferred == null || !deferred.isPending()) return;
+        
+        if(nowait || !invocation.getRemoteMethod().interrupt(invocation.getInvocationId(), interruptOptions)) {
+            Long socketId = invocation.getRemoteMethod().getRemotePeer().getSocketId();
+            Long remoteInvocationId = invocation.getInvocationId();
+            try { deferred.reject(new WampException(remoteInvocationId, interruptOptions, "wgs.cancel_invocation", null, null)); }
+            catch(Exception ex) { }
+            finally {
+                removeRemoteInvocation(socketId, remoteInvocationId);
+            }
         }
     }
 
@@ -10,11 +10,17 @@ public class WampCallOptions
 {
     public enum RunOnEnum   { any, all, partition }
     public enum RunModeEnum { progressive, gather }
+    public enum AggregateEnum { list, concat, sum, min, max, first, quorum }
+    public enum PriorityEnum { interactive, normal, batch }
     
     private int         timeout;
     private String      rkey;
     private RunOnEnum   runOn;
     private RunModeEnum runMode;
+    private AggregateEnum aggregate;
+    private int         aggregateCount;
+    private int         credits;
+    private PriorityEnum priority;
     private boolean     discloseMe;
     private Set<Long>   excludedSessionIds;
     private Set<String> excludedAuthIds;
@@ -49,7 +55,10 @@ public class WampCallOptions
                 if(runOn == RunOnEnum.partition) {
                     setPartition(options.getText("rkey"));
                 }
-            }                 
+            } else if(options.has("rkey")) {
+                setRunOn(RunOnEnum.partition);
+                setPartition(options.getText("rkey"));
+            }
             
             if(options.has("receive_progress")) {
                 setRunMode(RunModeEnum.progressive);
@@ -59,6 +68,22 @@ public class WampCallOptions
                 setRunMode(RunModeEnum.valueOf(options.getText("runmode").toLowerCase()));
             }
             
+            if(options.has("priority")) {
+                setPriority(PriorityEnum.valueOf(options.getText("priority").toLowerCase()));
+            }
+            
+            if(options.has("credits")) {
+                setCredits(options.getLong("credits").intValue());
+            }
+            
+            if(options.has("aggregate")) {
+                setAggregate(AggregateEnum.valueOf(options.getText("aggregate").toLowerCase()));
+            }
+            
+            if(options.has("aggregate_count")) {
+                setAggregateCount(options.getLong("aggregate_count").intValue());
+            }
+            
             if(options.has("disclose_me")) {
                 setDiscloseMe(options.getBoolean("disclose_me"));
             }     
@@ -112,6 +137,62 @@ public class WampCallOptions
     }
 
     
+    /**
+     * @return the aggregation of the results of a RunOn.all call (or null for the default list of results)
+     */
+    public AggregateEnum getAggregate() {
+        return aggregate;
+    }
+
+    /**
+     * @param aggregate the aggregate to set
+     */
+    public void setAggregate(AggregateEnum aggregate) {
+        this.aggregate = aggregate;
+    }
+
+    /**
+     * @return the number of results of the "first" and "quorum" aggregations (0 for the defaults)
+     */
+    public int getAggregateCount() {
+        return aggregateCount;
+    }
+
+    /**
+     * @param aggregateCount the aggregateCount to set
+     */
+    public void setAggregateCount(int aggregateCount) {
+        this.aggregateCount = aggregateCount;
+    }
+    
+    /**
+     * @return the scheduling priority of the call (or null for the default priority of the procedure)
+     */
+    public PriorityEnum getPriority() {
+        return priority;
+    }
+
+    /**
+     * @param priority the priority to set
+     */
+    public void setPriority(PriorityEnum priority) {
+        this.priority = priority;
+    }
+    
+    /**
+     * @return the initial window of progressive results granted by the caller (0 without flow control)
+     */
+    public int getCredits() {
+        return credits;
+    }
+
+    /**
+     * @param credits the credits to set
+     */
+    public void setCredits(int credits) {
+        this.credits = credits;
+    }
+    
     /**
      * @return the timeout
      */
@@ -394,6 +475,10 @@ public class WampCallOptions
         if(runOn != null) options.put("runon", runOn.toString());
         if(runMode != null && runMode != RunModeEnum.gather) options.put("runmode", runMode.toString());
         if(rkey != null) options.put("rkey", rkey);
+        if(aggregate != null) options.put("aggregate", aggregate.toString());
+        if(aggregateCount > 0) options.put("aggregate_count", aggregateCount);
+        if(credits > 0) options.put("credits", credits);
+        if(priority != null) options.put("priority", priority.toString());
  
         if(eligibleSessionIds != null) {
             WampList eligibleList = new WampList();
@@ -0,0 +1,167 @@
+package org.wgs.wamp.rpc;
+
+
+/**
+ * Health score and circuit breaker of a callee session (or cluster node).
+ *
+ * The failure rate and the latency are exponentially weighted moving averages
+ * of the completed invocations. When the failure rate reaches the threshold,
+ * the circuit is opened and the callee is excluded from the selection of callees;
+ * after the open interval, one probe invocation is allowed (half-open),
+ * and its outcome closes the circuit or opens it again (with an exponential backoff).
+ */
+public class WampCalleeHealth
+{
+    public enum StateEnum { closed, open, half_open }
+
+    public static double failureRateThreshold = 0.5;
+    public static int minimumInvocations = 20;
+    public static long slowInvocationMillis = 10000L;
+    public static long openMillis = 5000L;
+    public static long maxOpenMillis = 60000L;
+
+    private static final double ALPHA = 0.1;
+
+    private StateEnum state = StateEnum.closed;
+    private double failureRate;
+    private double latencyMillis;
+    private int invocations;
+    private long openUntil;
+    private long currentOpenMillis = openMillis;
+    private boolean probing;
+
+    static {
+        try {
+            String value = System.getProperty("WGS_RPC_BREAKER_FAILURE_RATE");
+            if(value != null) failureRateThreshold = Double.parseDouble(value);
+            value = System.getProperty("WGS_RPC_BREAKER_MIN_INVOCATIONS");
+            if(value != null) minimumInvocations = Integer.parseInt(value);
+            value = System.getProperty("WGS_RPC_BREAKER_SLOW_INVOCATION_MILLIS");
+            if(value != null) slowInvocationMillis = Long.parseLong(value);
+            value = System.getProperty("WGS_RPC_BREAKER_OPEN_MILLIS");
+            if(value != null) openMillis = Long.parseLong(value);
+        } catch(Exception ex) { }
+    }
+
+
+    /**
+     * @return true when the errors of a callee are counted as failures (otherwise, they are application errors)
+     */
+    public static boolean isCalleeFailure(String errorURI)
+    {
+        return "wamp.error.timeout".equals(errorURI)
+                || "wamp.error.runtime_error".equals(errorURI)
+                || "wamp.error.local_invocation_error".equals(errorURI)
+                || "wamp.error.unknown_rpc_handler".equals(errorURI);
+    }
+
+
+    /**
+     * @return the latency of the invocations of a call that is counted as a failure (0 when it isn't checked):
+     *         the timeout of the call, or the default threshold; the credit-throttled progressive calls are never slow
+     */
+    public static long getSlowInvocationMillis(WampCallOptions options)
+    {
+        if(options == null) return slowInvocationMillis;
+        if(options.getRunMode() == WampCallOptions.RunModeEnum.progressive && options.getCredits() > 0) return 0L;
+        if(options.getTimeout() > 0) return options.getTimeout();
+        return slowInvocationMillis;
+    }
+
+
+    /**
+     * @return true when the callee can be selected (closed circuit, or a probe can be sent)
+     */
+    public synchronized boolean isAvailable(long now)
+    {
+        switch(state) {
+            case open:      return now >= openUntil;
+            case half_open: return !probing;
+            default:        return true;
+        }
+    }
+
+    /**
+     * Registers the start of an invocation (an invocation of an open callee is the probe).
+     */
+    public synchronized void onInvocation(long now)
+    {
+        if(state == StateEnum.open && now >= openUntil) {
+            state = StateEnum.half_open;
+            probing = true;
+        } else if(state == StateEnum.half_open && !probing) {
+            probing = true;
+        }
+    }
+
+    public synchronized void onSuccess(long latency, long now)
+    {
+        onSuccess(latency, slowInvocationMillis, now);
+    }
+
+    /**
+     * @param slowMillis the latency that is counted as a failure (0 when it isn't checked)
+     */
+    public synchronized void onSuccess(long latency, long slowMillis, long now)
+    {
+        latencyMillis = (invocations == 0)? latency : latencyMillis + ALPHA * (latency - latencyMillis);
+        if(slowMillis > 0 && latency >= slowMillis) {
+            onFailure(now);
+            return;
+        }
+
+        invocations++;
+        failureRate -= ALPHA * failureRate;
+        if(state == StateEnum.half_open) {
+            state = StateEnum.closed;
+            probing = false;
+            failureRate = 0.0;
+            invocations = 0;
+            currentOpenMillis = openMillis;
+        }
+    }
+
+    public synchronized void onFailure(long now)
+    {
+        invocations++;
+        failureRate += ALPHA * (1.0 - failureRate);
+        if(state == StateEnum.half_open) {
+            currentOpenMillis = Math.min(maxOpenMillis, currentOpenMillis * 2);
+            open(now);
+        } else if(state == StateEnum.closed && invocations >= minimumInvocations && failureRate >= failureRateThreshold) {
+            open(now);
+        }
+    }
+
+    /**
+     * Registers an invocation without outcome (i.e: cancelled by the caller).
+     */
+    public synchronized void onAbandoned()
+    {
+        if(state == StateEnum.half_open) probing = false;
+    }
+
+    private void open(long now)
+    {
+        state = StateEnum.open;
+        probing = false;
+        openUntil = now + currentOpenMillis;
+    }
+
+
+    public synchronized StateEnum getState()
+    {
+        return state;
+    }
+
+    public synchronized double getFailureRate()
+    {
+        return failureRate;
+    }
+
+    public synchronized double getLatencyMillis()
+    {
+        return latencyMillis;
+    }
+
+}
@@ -1,11 +1,13 @@
 package org.wgs.wamp.rpc;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.wgs.wamp.WampSocket;
 import org.wgs.wamp.topic.WampBroker;
 import org.wgs.wamp.type.WampMatchType;
@@ -13,6 +15,10 @@ import org.wgs.wamp.type.WampMatchType;
 
 public class WampCalleeRegistration
 {
+    public enum InvokePolicyEnum { single, roundrobin, random, first, last, least_outstanding }
+    
+    private static final int PARTITION_VIRTUAL_NODES = 160;
+    
     private Long registrationId;
     
     private String realmName;
@@ -21,8 +27,18 @@ public class WampCalleeRegistration
     
     private String methodRegExp;
     
+    private String methodUriOrPattern;
+    
+    private InvokePolicyEnum invokePolicy = InvokePolicyEnum.random;
+    
     private ConcurrentHashMap<Long,WampRemoteMethod> remoteMethodsBySID = new ConcurrentHashMap<Long,WampRemoteMethod>();
     
+    private LinkedHashMap<Long,WampRemoteMethod> remoteMethodsInOrder = new LinkedHashMap<Long,WampRemoteMethod>();
+    
+    private volatile Callees callees = new Callees(new Long[0], new WampRemoteMethod[0], new long[0], new int[0]);
+    
+    private AtomicInteger nextCallee = new AtomicInteger(0);
+    
     
 
     public WampCalleeRegistration(String realmName, Long registrationId, WampMatchType matchType, String methodUriOrPattern)
@@ -31,6 +47,7 @@ public class WampCalleeRegistration
         this.registrationId = registrationId;
         this.matchType = matchType;
         this.methodRegExp = WampBroker.getPatternRegExp(matchType, methodUriOrPattern);
+        this.methodUriOrPattern = methodUriOrPattern;
     }
     
     
@@ -50,6 +67,11 @@ public class WampCalleeRegistration
         return methodRegExp;
     }
     
+    public String getProcedureURI()
+    {
+        return methodUriOrPattern;
+    }
+    
     
     public WampMatchType getMatchType()
     {
@@ -57,94 +79,240 @@ public class WampCalleeRegistration
     }
     
     
-    public void addRemoteMethod(WampSocket socket, WampRemoteMethod remoteMethod)
+    public InvokePolicyEnum getInvokePolicy()
+    {
+        return invokePolicy;
+    }
+    
+    public void setInvokePolicy(InvokePolicyEnum invokePolicy)
+    {
+        this.invokePolicy = invokePolicy;
+    }
+    
+    
+    public synchronized void addRemoteMethod(WampSocket socket, WampRemoteMethod remoteMethod)
     {
         Long sessionId = socket.getWampSessionId();
         if(sessionId == null) {
             sessionId = socket.getSocketId();
         }
         remoteMethodsBySID.put(sessionId, remoteMethod);                    
+        remoteMethodsInOrder.put(sessionId, remoteMethod);
+        updateCallees();
     }
     
-    public WampRemoteMethod removeRemoteMethod(WampSocket socket)
+    public synchronized WampRemoteMethod removeRemoteMethod(WampSocket socket)
     {
         Long sessionId = socket.getWampSessionId();
         if(sessionId == null) {
             sessionId = socket.getSocketId();
         }        
+        remoteMethodsInOrder.remove(sessionId);
+        updateCallees();
         return remoteMethodsBySID.remove(sessionId);
     }
     
+    private void updateCallees()
+    {
+        Long[] sids = remoteMethodsInOrder.keySet().toArray(new Long[0]);
+        WampRemoteMethod[] methods = remoteMethodsInOrder.values().toArray(new WampRemoteMethod[0]);
+        
+        // consistent hash ring: the virtual nodes of a callee only depend on its session ID,
+        // so the membership changes only move the keys of the added/removed callees.
+        long[] points = new long[sids.length * PARTITION_VIRTUAL_NODES];
+        for(int i = 0; i < sids.length; i++) {
+            for(int v = 0; v < PARTITION_VIRTUAL_NODES; v++) {
+                long point = hash(sids[i] + "#" + v);
+                points[i * PARTITION_VIRTUAL_NODES + v] = (point & ~0xFFFFL) | i;  // low bits: callee index (tie-break)
+            }
+        }
+        Arrays.sort(points);
+        long[] ringHashes = new long[points.length];
+        int[]  ringOwners = new int[points.length];
+        for(int i = 0; i < points.length; i++) {
+            ringHashes[i] = points[i] & ~0xFFFFL;
+            ringOwners[i] = (int)(points[i] & 0xFFFFL);
+        }
+        
+        callees = new Callees(sids, methods, ringHashes, ringOwners);
+    }
+    
     public int getRemoteMethodsCount()
     {
         return remoteMethodsBySID.size();
     }
+    
+    
+    /**
+     * Selects the callee of an invocation, according to the invocation policy of the registration.
+     * @return the selected callee, or null when there isn't any eligible callee
+     */
+    public WampRemoteMethod selectRemoteMethod(Long callerId, WampCallOptions options, String partition)
+    {
+        Callees snapshot = callees;
+        int count = snapshot.methods.length;
+        if(count == 0) return null;
+        if(options == null) options = new WampCallOptions(null);
+        
+        if(partition != null) {
+            return selectPartitionRemoteMethod(snapshot, callerId, options, partition);
+        }
+        
+        switch(invokePolicy) {
+            case last:
+                for(int i = count-1; i >= 0; i--) {
+                    if(isEligible(snapshot.sids[i], snapshot.methods[i], callerId, options, partition)) return snapshot.methods[i];
+                }
+                return null;
+                
+            case least_outstanding:
+                WampRemoteMethod selected = null;
+                int minOutstanding = Integer.MAX_VALUE;
+                int offset = (nextCallee.getAndIncrement() & Integer.MAX_VALUE) % count;  // break ties fairly
+                for(int i = 0; i < count; i++) {
+                    int index = (offset + i) % count;
+                    WampRemoteMethod method = snapshot.methods[index];
+                    int outstanding = method.getOutstandingInvocations();
+                    if(outstanding < minOutstanding && isEligible(snapshot.sids[index], method, callerId, options, partition)) {
+                        minOutstanding = outstanding;
+                        selected = method;
+                    }
+                }
+                return selected;
+                
+            default:
+                int start = 0;
+                if(invokePolicy == InvokePolicyEnum.roundrobin) start = (nextCallee.getAndIncrement() & Integer.MAX_VALUE) % count;
+                else if(invokePolicy == InvokePolicyEnum.random) start = ThreadLocalRandom.current().nextInt(count);
+                
+                for(int i = 0; i < count; i++) {
+                    int index = (start + i) % count;
+                    if(isEligible(snapshot.sids[index], snapshot.methods[index], callerId, options, partition)) return snapshot.methods[index];
+                }
+                return null;
+        }
+    }
         
     
+    /**
+     * Selects the owner of the partition key in the consistent hash ring 
+     * (or the next eligible callee in the ring, when the owner isn't eligible).
+     */
+    private WampRemoteMethod selectPartitionRemoteMethod(Callees snapshot, Long callerId, WampCallOptions options, String partition)
+    {
+        int size = snapshot.ringHashes.length;
+        long key = hash(partition) & ~0xFFFFL;
+        int pos = Arrays.binarySearch(snapshot.ringHashes, key);
+        if(pos < 0) pos = -pos - 1;
+        
+        int lastOwner = -1;
+        for(int i = 0; i < size; i++) {
+            int owner = snapshot.ringOwners[(pos + i) % size];
+            if(owner != lastOwner) {
+                lastOwner = owner;
+                if(isEligible(snapshot.sids[owner], snapshot.methods[owner], callerId, options, partition)) {
+                    return snapshot.methods[owner];
+                }
+            }
+        }
+        return null;
+    }
+    
+    private static long hash(String key)
+    {
+        long hash = 0xcbf29ce484222325L;   // FNV-1a, with the murmur3 finalizer
+        for(int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= (hash >>> 33);
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= (hash >>> 33);
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= (hash >>> 33);
+        return hash;
+    }
+    
+    
     public Collection<WampRemoteMethod> getRemoteMethods(Long callerId, WampCallOptions optionsParam)
     {
         Collection<WampRemoteMethod> retval = new ArrayList<WampRemoteMethod>();
 
         final WampCallOptions options = (optionsParam != null)? optionsParam : new WampCallOptions(null);
-        Set<Long> eligibleOption = options.getEligibleSessionIds();
-        Set<Long> eligibleCopy = (eligibleOption != null) ? new HashSet<Long>(eligibleOption) : null;
-        if(eligibleCopy == null) eligibleCopy = new HashSet<Long>(remoteMethodsBySID.keySet());
-        else eligibleCopy.retainAll(remoteMethodsBySID.keySet());
-
-        Set<Long> excludedCopy = options.getExcludedSessionIds();
-        if(excludedCopy == null) excludedCopy = new HashSet<Long>();  
-        else excludedCopy = new HashSet<Long>(excludedCopy);
-        if(callerId != null && options.hasExcludeMe()) {
-            excludedCopy.add(callerId);
+        Callees snapshot = callees;
+        for(int i = 0; i < snapshot.methods.length; i++) {
+            if(isEligible(snapshot.sids[i], snapshot.methods[i], callerId, options, null)) {
+                retval.add(snapshot.methods[i]);
+            }
         }
         
-        final Set<Long> excludedFinal = excludedCopy;
-        List<Long> sids = java.util.Arrays.asList(eligibleCopy.parallelStream().filter(sid -> {
-                WampRemoteMethod method = remoteMethodsBySID.get(sid);
-                if(method == null) return false;
-
-                WampSocket socket = method.getRemotePeer();
+        return retval;
+    }
+    
+    
+    private boolean isEligible(Long sid, WampRemoteMethod method, Long callerId, WampCallOptions options, String partition)
+    {
+        WampSocket socket = method.getRemotePeer();
+        if(socket == null) return false;
+        if(partition != null && !method.hasPartition(partition)) return false;
+        if(method.getOverflowPolicy() == WampRemoteMethod.OverflowPolicyEnum.redirect && method.isOverloaded()) return false;
+        if(!socket.getCalleeHealth().isAvailable(System.currentTimeMillis())) return false;   // open circuit
 
-                if(socket == null) return false;
-                if(excludedFinal != null && excludedFinal.contains(sid)) {
-                    return false;
-                }
+        Set<Long> eligibleSessionIds = options.getEligibleSessionIds();
+        if(eligibleSessionIds != null && !eligibleSessionIds.contains(sid)) return false;
+        
+        Set<Long> excludedSessionIds = options.getExcludedSessionIds();
+        if(excludedSessionIds != null && excludedSessionIds.contains(sid)) return false;
+        if(callerId != null && options.hasExcludeMe() && callerId.equals(sid)) return false;
 
-                String fqAuthId = socket.getAuthId()+"@"+socket.getAuthProvider();
-                if(options.getExcludedAuthIds() != null) {
-                    if(options.getExcludedAuthIds().contains(fqAuthId)) return false;
-                }
-                if(options.getEligibleAuthIds() != null) {
-                    if(!options.getEligibleAuthIds().contains(fqAuthId)) return false;
-                }
+        if(options.getExcludedAuthIds() != null || options.getEligibleAuthIds() != null) {
+            String fqAuthId = socket.getAuthId()+"@"+socket.getAuthProvider();
+            if(options.getExcludedAuthIds() != null) {
+                if(options.getExcludedAuthIds().contains(fqAuthId)) return false;
+            }
+            if(options.getEligibleAuthIds() != null) {
+                if(!options.getEligibleAuthIds().contains(fqAuthId)) return false;
+            }
+        }
 
-                if(options.getExcludedAuthRoles() != null) {
-                    for(String role : options.getExcludedAuthRoles()) {
-                        if(socket.hasAuthRole(role)) return false;
-                    }
-                }                
-                if(options.getEligibleAuthRoles() != null) {
-                    boolean hasEligibleRole = false;
-                    for(String role : options.getEligibleAuthRoles()) {
-                        if(socket.hasAuthRole(role)) {
-                            hasEligibleRole = true;
-                            break;
-                        }
-                    }
-                    if(!hasEligibleRole) return false;
+        if(options.getExcludedAuthRoles() != null) {
+            for(String role : options.getExcludedAuthRoles()) {
+                if(socket.hasAuthRole(role)) return false;
+            }
+        }                
+        if(options.getEligibleAuthRoles() != null) {
+            boolean hasEligibleRole = false;
+            for(String role : options.getEligibleAuthRoles()) {
+                if(socket.hasAuthRole(role)) {
+                    hasEligibleRole = true;
+                    break;
                 }
+            }
+            if(!hasEligibleRole) return false;
+        }
 
-                return true;
-            }).toArray(Long[]::new));
+        return true;
+    }
+    
+    
+    /**
+     * Immutable snapshot of the callees (in registration order),
+     * and their consistent hash ring for partitioned calls.
+     */
+    private static class Callees
+    {
+        private final Long[] sids;
+        private final WampRemoteMethod[] methods;
+        private final long[] ringHashes;
+        private final int[]  ringOwners;
         
-        for (Long sid : sids) {
-            WampRemoteMethod method = remoteMethodsBySID.get(sid);
-            if(method != null) {
-                retval.add(method);
-            }   
+        Callees(Long[] sids, WampRemoteMethod[] methods, long[] ringHashes, int[] ringOwners)
+        {
+            this.sids = sids;
+            this.methods = methods;
+            this.ringHashes = ringHashes;
+            this.ringOwners = ringOwners;
         }
-        
-        return retval;
     }
     
 }
@@ -0,0 +1,61 @@
+package org.wgs.wamp.rpc;
+
+import org.wgs.wamp.type.WampDict;
+
+
+public class WampCancelOptions
+{
+    /**
+     * skip: the caller receives the error immediately, and the invocations continue (their results are discarded).
+     * kill: the invocations are interrupted, and the caller receives the error when the callees have responded.
+     * killnowait: the invocations are interrupted, and the caller receives the error immediately.
+     */
+    public enum CancelModeEnum { skip, kill, killnowait }
+
+    private CancelModeEnum mode;
+    private WampDict options;
+
+
+    public WampCancelOptions(WampDict options)
+    {
+        this.options = new WampDict();
+        CancelModeEnum mode = CancelModeEnum.killnowait;
+
+        if(options != null) {
+            this.options.putAll(options);
+            if(options.has("mode")) {
+                try {
+                    mode = CancelModeEnum.valueOf(options.getText("mode").toLowerCase());
+                } catch(IllegalArgumentException ex) {
+                    // unknown modes keep the default
+                }
+            }
+        }
+
+        setMode(mode);
+    }
+
+
+    /**
+     * @return the cancellation mode
+     */
+    public CancelModeEnum getMode() {
+        return mode;
+    }
+
+    /**
+     * @param mode the cancellation mode to set
+     */
+    public void setMode(CancelModeEnum mode) {
+        this.mode = mode;
+        options.put("mode", mode.toString());
+    }
+
+    /**
+     * @return the options of the INTERRUPT messages sent to the callees
+     */
+    public WampDict getInterruptOptions() {
+        return options;
+    }
+
+}
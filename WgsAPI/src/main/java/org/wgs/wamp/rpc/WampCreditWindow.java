@@ -0,0 +1,95 @@
+package org.wgs.wamp.rpc;
+
+import java.util.ArrayDeque;
+import org.wgs.wamp.WampResult;
+
+
+/**
+ * Credits granted by a caller for the progressive results of a call.
+ *
+ * The results received without credits are buffered (up to maxBufferedResults)
+ * until the caller grants more credits, and the final result is held
+ * until all the buffered results have been delivered.
+ */
+public class WampCreditWindow
+{
+    public static int maxBufferedResults = 1000;
+
+    private long credits;
+    private ArrayDeque<WampResult> buffer = new ArrayDeque<WampResult>();
+    private boolean finalPending;
+
+    static {
+        String max = System.getProperty("WGS_RPC_MAX_BUFFERED_PROGRESS");
+        if(max != null) {
+            try { maxBufferedResults = Integer.parseInt(max); }
+            catch(Exception ex) { }
+        }
+    }
+
+
+    public WampCreditWindow(int credits)
+    {
+        this.credits = credits;
+    }
+
+    public synchronized void grant(int credits)
+    {
+        this.credits += credits;
+    }
+
+    /**
+     * Buffers a progressive result.
+     * @return false when the buffer is full (the callee doesn't respect the credits)
+     */
+    public synchronized boolean offer(WampResult progress)
+    {
+        if(buffer.size() >= maxBufferedResults) return false;
+        buffer.add(progress);
+        return true;
+    }
+
+    /**
+     * @return the next progressive result that can be delivered, or null when there aren't results or credits
+     */
+    public synchronized WampResult poll()
+    {
+        if(credits <= 0 || buffer.isEmpty()) return null;
+        credits--;
+        return buffer.poll();
+    }
+
+    /**
+     * @return true when the final result can be delivered (otherwise, it's held until the buffer is drained)
+     */
+    public synchronized boolean finish()
+    {
+        if(buffer.isEmpty()) return true;
+        finalPending = true;
+        return false;
+    }
+
+    /**
+     * @return true when the held final result can be delivered now
+     */
+    public synchronized boolean takeFinal()
+    {
+        if(!finalPending || !buffer.isEmpty()) return false;
+        finalPending = false;
+        return true;
+    }
+
+    /**
+     * Discards the buffered results (i.e: when the call is cancelled).
+     */
+    public synchronized void clear()
+    {
+        buffer.clear();
+    }
+
+    public synchronized int getBufferedCount()
+    {
+        return buffer.size();
+    }
+
+}
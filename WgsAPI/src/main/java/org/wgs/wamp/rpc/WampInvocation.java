@@ -30,6 +30,13 @@ public class WampInvocation
         return invocationId;
     }
 
+    /**
+     * @return the invoked method
+     */
+    public WampRemoteMethod getRemoteMethod() {
+        return method;
+    }
+
     /**
      * @return the controller
      */
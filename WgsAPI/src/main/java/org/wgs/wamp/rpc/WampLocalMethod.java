@@ -1,19 +1,24 @@
 package org.wgs.wamp.rpc;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.ArrayList;
+import java.util.concurrent.Semaphore;
 import org.jdeferred.Deferred;
 import org.jdeferred.DoneCallback;
 import org.jdeferred.FailCallback;
 import org.jdeferred.ProgressCallback;
 import org.jdeferred.Promise;
 import org.jdeferred.impl.DeferredObject;
+import org.wgs.util.ExecutorTopology;
 import org.wgs.wamp.WampApplication;
 import org.wgs.wamp.WampException;
 import org.wgs.wamp.WampModule;
 import org.wgs.wamp.WampResult;
 import org.wgs.wamp.WampSocket;
+import org.wgs.wamp.annotation.WampRegisterProcedure;
 import org.wgs.wamp.type.WampDict;
 import org.wgs.wamp.type.WampList;
 
@@ -21,9 +26,21 @@ import org.wgs.wamp.type.WampList;
 
 public class WampLocalMethod extends WampMethod
 {
+    private enum ParamKind { SOCKET, APPLICATION, CONTROLLER, OPTIONS, LIST, DICT, ENUM, VALUE }
+    
+    private static final int MAX_FIXED_ARITY = 6;
+    
     private Method method;
     private WampModule module;
     private WampApplication app;
+    private ParamKind[] paramKinds;
+    private Class<?>[] paramTypes;
+    private MethodHandle invoker;   // bound to the module: (Object,...)Object, or (Object[])Object for more than MAX_FIXED_ARITY parameters
+    private String bulkhead;
+    private String[] orderByNames;      // the key prefixes of the alternative ordering arguments (null for session order)
+    private int[] orderByArgs;
+    private String[] orderByFields;
+    private WampCallOptions.PriorityEnum defaultPriority = WampCallOptions.PriorityEnum.normal;
     
     
     public WampLocalMethod(String uri, WampModule module, Method method)
@@ -32,6 +49,86 @@ public class WampLocalMethod extends WampMethod
         this.method = method;
         this.module = module;
         this.app = module.getWampApplication();
+        
+        WampRegisterProcedure rpc = method.getAnnotation(WampRegisterProcedure.class);
+        if(rpc != null) {
+            this.bulkhead = rpc.bulkhead();
+            this.defaultPriority = WampCallOptions.PriorityEnum.valueOf(rpc.priority());
+            String orderBy = rpc.orderBy();
+            if(orderBy.length() > 0) {
+                String[] alternatives = orderBy.split(",");
+                this.orderByNames = new String[alternatives.length];
+                this.orderByArgs = new int[alternatives.length];
+                this.orderByFields = new String[alternatives.length];
+                for(int i = 0; i < alternatives.length; i++) {
+                    String alternative = alternatives[i].trim();
+                    int colon = alternative.indexOf(':');
+                    orderByNames[i] = (colon != -1)? alternative.substring(0, colon) : "group";
+                    alternative = alternative.substring(colon+1);
+                    int pos = alternative.indexOf('.');
+                    orderByArgs[i] = Integer.parseInt((pos != -1)? alternative.substring(0, pos) : alternative);
+                    if(pos != -1) orderByFields[i] = alternative.substring(pos+1);
+                }
+            }
+        }
+        
+        // the argument adapters and the method handle are created once, at registration:
+        this.paramTypes = method.getParameterTypes();
+        this.paramKinds = new ParamKind[paramTypes.length];
+        for(int i = 0; i < paramTypes.length; i++) {
+            Class<?> paramType = paramTypes[i];
+            if(paramType.isAssignableFrom(WampSocket.class) || WampSocket.class.isAssignableFrom(paramType)) {  // WampSocket parameter info
+                paramKinds[i] = ParamKind.SOCKET;
+            } else if(paramType.isAssignableFrom(WampApplication.class) || WampApplication.class.isAssignableFrom(paramType)) {    // WampApplication parameter info
+                paramKinds[i] = ParamKind.APPLICATION;
+            } else if(WampCallController.class.isAssignableFrom(paramType)) {
+                paramKinds[i] = ParamKind.CONTROLLER;
+            } else if(WampCallOptions.class.isAssignableFrom(paramType)) {
+                paramKinds[i] = ParamKind.OPTIONS;
+            } else if(WampList.class.isAssignableFrom(paramType)) {
+                paramKinds[i] = ParamKind.LIST;
+            } else if(WampDict.class.isAssignableFrom(paramType)) {
+                paramKinds[i] = ParamKind.DICT;
+            } else if(paramType.isEnum()) {
+                paramKinds[i] = ParamKind.ENUM;
+            } else {
+                paramKinds[i] = ParamKind.VALUE;
+            }
+        }
+        
+        try {
+            method.setAccessible(true);  // the module can be an anonymous or non-public class
+            // the handle isn't a constant (so it's not inlined), but its invocation avoids the access checks and boxing of reflection
+            MethodHandle handle = MethodHandles.lookup().unreflect(method).bindTo(module);
+            if(paramTypes.length <= MAX_FIXED_ARITY) {
+                this.invoker = handle.asType(MethodType.genericMethodType(paramTypes.length));
+            } else {
+                this.invoker = handle.asSpreader(Object[].class, paramTypes.length)
+                        .asType(MethodType.methodType(Object.class, Object[].class));
+            }
+        } catch(Exception ex) {
+            this.invoker = null;     // fallback to reflection
+        }
+    }
+    
+    @Override
+    public WampCallOptions.PriorityEnum getDefaultPriority()
+    {
+        return defaultPriority;
+    }
+    
+    @Override
+    public Object getOrderingKey(WampSocket clientSocket, WampList args, WampDict argsKw)
+    {
+        if(orderByNames == null) return super.getOrderingKey(clientSocket, args, argsKw);
+        
+        // the first alternative with a value identifies the group
+        for(int i = 0; i < orderByNames.length; i++) {
+            Object value = (args != null && orderByArgs[i] < args.size())? args.get(orderByArgs[i]) : null;
+            if(orderByFields[i] != null) value = (value instanceof WampDict)? ((WampDict)value).get(orderByFields[i]) : null;
+            if(value != null) return orderByNames[i] + ":" + value;
+        }
+        return super.getOrderingKey(clientSocket, args, argsKw);   // without group, the calls are ordered by session
     }
     
     @Override
@@ -43,41 +140,54 @@ public class WampLocalMethod extends WampMethod
         final DeferredObject<WampResult,WampException,WampResult> deferred = new DeferredObject<WampResult,WampException,WampResult>();
         task.setRemoteInvocationsCompletionCallback(deferred);
         
-        ArrayList<Object> params = new ArrayList<Object>();
-        for(Class paramType : method.getParameterTypes()) {
-            if(paramType.isInstance(clientSocket)) {  // WampSocket parameter info
-                params.add(clientSocket);
-            } else if(paramType.isInstance(app)) {    // WampApplication parameter info
-                params.add(app);
-            } else if(WampCallController.class.isAssignableFrom(paramType)) {
-                params.add(task);                    
-            } else if(WampCallOptions.class.isAssignableFrom(paramType)) {
-                params.add(options);
-            } else if(WampList.class.isAssignableFrom(paramType)) {
-                Object list = args.subList(argCount, args.size());
-                params.add(list);    // Only a list with the rest of the received arguments
-                argCount = args.size();                    
-            } else if(WampDict.class.isAssignableFrom(paramType)) {
-                Object nextParam = (argCount < args.size())? args.get(argCount) : null;
-                if(nextParam != null && paramType.isInstance(nextParam)) {
-                    params.add(nextParam);
-                    argCount++;
-                } else {
-                    params.add(argsKw);  
-                }
-            } else if(paramType.isEnum()) {
-                String text = (String)args.get(argCount++);
-                if(text == null) params.add(null);
-                else params.add(Enum.valueOf(paramType, text));
-            } else {
-                Object val = args.get(argCount++);
-                params.add(val);
+        Object[] params = new Object[paramKinds.length];
+        for(int i = 0; i < paramKinds.length; i++) {
+            switch(paramKinds[i]) {
+                case SOCKET:
+                    params[i] = clientSocket;
+                    break;
+                case APPLICATION:
+                    params[i] = app;
+                    break;
+                case CONTROLLER:
+                    params[i] = task;
+                    break;
+                case OPTIONS:
+                    params[i] = options;
+                    break;
+                case LIST:
+                    params[i] = args.subList(argCount, args.size());   // Only a list with the rest of the received arguments
+                    argCount = args.size();
+                    break;
+                case DICT:
+                    Object nextParam = (argCount < args.size())? args.get(argCount) : null;
+                    if(nextParam != null && paramTypes[i].isInstance(nextParam)) {
+                        params[i] = nextParam;
+                        argCount++;
+                    } else {
+                        params[i] = argsKw;
+                    }
+                    break;
+                case ENUM:
+                    String text = (String)args.get(argCount++);
+                    params[i] = (text == null)? null : toEnum(paramTypes[i], text);
+                    break;
+                default:
+                    params[i] = args.get(argCount++);
+                    break;
             }
         }
 
         
+        Semaphore permits = ExecutorTopology.getBulkhead(bulkhead);
         try {
-            Object result = method.invoke(this.module, params.toArray());
+            Object result = null;
+            if(permits != null) permits.acquire();
+            try {
+                result = (invoker != null)? invoke(params) : method.invoke(this.module, params);
+            } finally {
+                if(permits != null) permits.release();
+            }
             if(result == null || !(result instanceof Promise)) {
                 WampResult wampResult = wrapToWampResult(task.getCallID(), result);
                 deferred.resolve(wampResult);
@@ -113,13 +223,33 @@ public class WampLocalMethod extends WampMethod
 
             }
             
-        } catch(Exception ex) {
+        } catch(Throwable ex) {
             deferred.reject(wrapToWampException(task.getCallID(), ex));
         }
         
         return deferred.promise();
     }
     
+    private Object invoke(Object[] params) throws Throwable
+    {
+        switch(params.length) {
+            case 0:  return (Object)invoker.invokeExact();
+            case 1:  return (Object)invoker.invokeExact(params[0]);
+            case 2:  return (Object)invoker.invokeExact(params[0], params[1]);
+            case 3:  return (Object)invoker.invokeExact(params[0], params[1], params[2]);
+            case 4:  return (Object)invoker.invokeExact(params[0], params[1], params[2], params[3]);
+            case 5:  return (Object)invoker.invokeExact(params[0], params[1], params[2], params[3], params[4]);
+            case 6:  return (Object)invoker.invokeExact(params[0], params[1], params[2], params[3], params[4], params[5]);
+            default: return (Object)invoker.invokeExact(params);
+        }
+    }
+    
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object toEnum(Class<?> enumType, String text)
+    {
+        return Enum.valueOf((Class)enumType, text);
+    }
+    
     private WampException wrapToWampException(Long callId, Object error) 
     {
         if(error != null && error instanceof InvocationTargetException) {
@@ -22,6 +22,22 @@ public abstract class WampMethod
         return uri;
     }
     
+    /**
+     * @return the key of the calls that must be executed in their arrival order (by default, the caller session)
+     */
+    public Object getOrderingKey(WampSocket clientSocket, WampList args, WampDict argsKw)
+    {
+        return clientSocket.getWampSessionId();
+    }
+    
+    /**
+     * @return the scheduling priority of the calls without "priority" option
+     */
+    public WampCallOptions.PriorityEnum getDefaultPriority()
+    {
+        return WampCallOptions.PriorityEnum.normal;
+    }
+    
     public abstract Promise<WampResult, WampException, WampResult> invoke(WampCallController task, WampSocket clientSocket, WampList args, WampDict argsKw, WampCallOptions options)
         throws Exception;
     
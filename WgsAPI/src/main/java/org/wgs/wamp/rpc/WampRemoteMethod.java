@@ -1,5 +1,7 @@
 package org.wgs.wamp.rpc;
 
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jdeferred.Deferred;
@@ -19,13 +21,31 @@ import org.wgs.wamp.type.WampMatchType;
 
 public class WampRemoteMethod extends WampMethod
 {
+    public enum OverflowPolicyEnum { reject, redirect }
+    
     private static final Logger logger = Logger.getLogger(WampRemoteMethod.class.getName());    
     
+    public static int defaultInvocationQueueSize = 1000;
+    
     private Long registrationId;
     private WampSocket remotePeer;
     private Long calleeSessionId;
     private WampMatchType matchType;
     private WampDict regOptions;
+    private AtomicInteger outstandingInvocations = new AtomicInteger(0);
+    
+    private int maxConcurrency;
+    private int invocationQueueSize;
+    private OverflowPolicyEnum overflowPolicy;
+    private ArrayDeque<QueuedInvocation> invocationQueue = new ArrayDeque<QueuedInvocation>();
+    
+    static {
+        String queueSize = System.getProperty("WGS_RPC_INVOCATION_QUEUE_SIZE");
+        if(queueSize != null) {
+            try { defaultInvocationQueueSize = Integer.parseInt(queueSize); }
+            catch(Exception ex) { }
+        }
+    }
 
     
     public WampRemoteMethod(Long registrationId, String methodName, WampSocket remotePeer, Long clientSessionId, WampMatchType matchType, WampDict options)
@@ -36,13 +56,32 @@ public class WampRemoteMethod extends WampMethod
         this.calleeSessionId = clientSessionId;
         this.matchType = matchType;
         this.regOptions = options;
+        
+        this.maxConcurrency = 0;   // unlimited
+        this.invocationQueueSize = defaultInvocationQueueSize;
+        this.overflowPolicy = OverflowPolicyEnum.reject;
+        if(options != null) {
+            if(options.has("max_concurrency")) {
+                this.maxConcurrency = options.getLong("max_concurrency").intValue();
+            }
+            if(options.has("queue_size")) {
+                this.invocationQueueSize = options.getLong("queue_size").intValue();
+            }
+            if(options.has("overflow")) {
+                this.overflowPolicy = OverflowPolicyEnum.valueOf(options.getText("overflow").toLowerCase());
+            }
+        }
     }
     
     
+    /**
+     * Checks the optional "partition" regular expression of the registration
+     * (the partition keys are distributed between the callees by WampCalleeRegistration).
+     */
     public boolean hasPartition(String partition)
     {
         if(regOptions != null && regOptions.has("partition")) {
-            String regExp = regOptions.getText("paritition");
+            String regExp = regOptions.getText("partition");
             return partition == null || WampBroker.isUriMatchingWithRegExp(partition, regExp);
         } else {
             return true;
@@ -55,6 +94,91 @@ public class WampRemoteMethod extends WampMethod
         return remotePeer;
     }
     
+    /**
+     * @return the number of invocations of the callee that haven't been completed (including the queued invocations)
+     */
+    public int getOutstandingInvocations()
+    {
+        return outstandingInvocations.get();
+    }
+    
+    public int getMaxConcurrency()
+    {
+        return maxConcurrency;
+    }
+    
+    public OverflowPolicyEnum getOverflowPolicy()
+    {
+        return overflowPolicy;
+    }
+    
+    /**
+     * @return true when the concurrency limit is reached and the invocation queue is full
+     */
+    public synchronized boolean isOverloaded()
+    {
+        return maxConcurrency > 0 
+                && outstandingInvocations.get() - invocationQueue.size() >= maxConcurrency
+                && invocationQueue.size() >= invocationQueueSize;
+    }
+    
+    
+    /**
+     * Reserves an execution slot for an invocation, or appends it to the queue when the concurrency limit is reached.
+     * @return 1 when the invocation can be sent, 0 when it's queued, or -1 when the queue is full
+     */
+    private synchronized int acquireSlot(QueuedInvocation invocation)
+    {
+        int running = outstandingInvocations.get() - invocationQueue.size();
+        if(maxConcurrency > 0 && running >= maxConcurrency) {
+            if(invocationQueue.size() >= invocationQueueSize) return -1;
+            invocationQueue.add(invocation);
+            outstandingInvocations.incrementAndGet();
+            return 0;
+        }
+        outstandingInvocations.incrementAndGet();
+        return 1;
+    }
+    
+    /**
+     * Releases the slot of a completed invocation, transferring it to the next queued invocation.
+     */
+    private void releaseSlot()
+    {
+        QueuedInvocation next = null;
+        synchronized(this) {
+            outstandingInvocations.decrementAndGet();
+            next = invocationQueue.poll();
+        }
+        if(next != null) next.send();
+    }
+    
+    private synchronized boolean dequeue(QueuedInvocation invocation)
+    {
+        if(invocationQueue.remove(invocation)) {
+            outstandingInvocations.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+    
+    
+    /**
+     * Sends an INTERRUPT message for an invocation that was sent to the callee,
+     * that will respond with an error (or with its result).
+     * @return false when the invocation is still queued in the router (it can be discarded)
+     */
+    public boolean interrupt(Long invocationId, WampDict interruptOptions)
+    {
+        synchronized(this) {
+            for(QueuedInvocation queued : invocationQueue) {
+                if(queued.invocationId.equals(invocationId)) return false;
+            }
+        }
+        WampProtocol.sendInterruptMessage(remotePeer, invocationId, interruptOptions);
+        return true;
+    }
+    
     
     @Override
     public Promise<WampResult, WampException, WampResult> invoke(final WampCallController task, final WampSocket clientSocket, final WampList args, final WampDict argsKw, final WampCallOptions callOptions) throws Exception
@@ -63,28 +187,13 @@ public class WampRemoteMethod extends WampMethod
         
         DeferredObject<WampResult,WampException,WampResult> deferred = new DeferredObject<WampResult,WampException,WampResult>();
         Promise<WampResult,WampException,WampResult> promise = deferred.promise();
-        promise.done(new DoneCallback<WampResult>() {
-            @Override
-            public void onDone(WampResult d) {
-                remotePeer.removeInvocation(invocationId);
-            }
-        });
-        promise.fail(new FailCallback<WampException>() {
-            @Override
-            public void onFail(WampException f) {
-                remotePeer.removeInvocation(invocationId);
-                if(f.getErrorURI().equals("wgs.cancel_invocation")) {
-                    WampProtocol.sendInterruptMessage(remotePeer, f.getInvocationId(), f.getDetails());
-                }
-            }
-        });
-
         
-        task.addRemoteInvocation(remotePeer.getSocketId(), invocationId, remotePeer.addInvocation(invocationId, this, task, deferred));
-
         WampDict invocationOptions = new WampDict();
         if(matchType != WampMatchType.exact) invocationOptions.put("procedure", task.getProcedureURI());
-        if(callOptions.getRunMode() == WampCallOptions.RunModeEnum.progressive) invocationOptions.put("receive_progress", true);
+        if(callOptions.getRunMode() == WampCallOptions.RunModeEnum.progressive) {
+            invocationOptions.put("receive_progress", true);
+            if(callOptions.getCredits() > 0) invocationOptions.put("credits", callOptions.getCredits());
+        }
         if(callOptions.hasDiscloseMe() || regOptions.getBoolean("disclose_caller")) {
             if("cluster".equals(clientSocket.getRealm())) {            
                 invocationOptions.put("caller", callOptions.getCallerId());
@@ -98,30 +207,132 @@ public class WampRemoteMethod extends WampMethod
                 invocationOptions.put("authrole", clientSocket.getAuthRole());
             }
         }
-
-        if(logger.isLoggable(Level.FINEST)) logger.log(Level.FINEST, "CALL " + task.getCallID() + ": SENDING INVOCATION ID: " + invocationId + " (" + clientSocket.getWampSessionId() + " --> " + remotePeer.getWampSessionId() + ")");
-        try {
-            task.decrementPendingInvocationCount();
-            if(remotePeer.getWampSessionId() != null) {
-                WampProtocol.sendInvocationMessage(remotePeer, invocationId, registrationId, invocationOptions, args, argsKw);
-            } else {
-                throw new Exception("session closed");
+        
+        final QueuedInvocation invocation = new QueuedInvocation(task, clientSocket, invocationId, invocationOptions, args, argsKw);
+        final long slowMillis = WampCalleeHealth.getSlowInvocationMillis(callOptions);
+        
+        promise.done(new DoneCallback<WampResult>() {
+            @Override
+            public void onDone(WampResult d) {
+                remotePeer.removeInvocation(invocationId);
+                long now = System.currentTimeMillis();
+                remotePeer.getCalleeHealth().onSuccess(now - invocation.sentAt, slowMillis, now);
+                releaseSlot();
             }
-            
-            /* DEBUG: skip-invocations 
-            { 
-                WampResult wampResult = new WampResult(invocationId);
-                wampResult.setArgs(new WampList(6L));
-                deferred.resolve(wampResult);
+        });
+        promise.fail(new FailCallback<WampException>() {
+            @Override
+            public void onFail(WampException f) {
+                remotePeer.removeInvocation(invocationId);
+                if(invocation.discard()) {
+                    dequeue(invocation);   // cancelled while waiting in the router
+                } else if(invocation.isSent()) {
+                    if(f.getErrorURI().equals("wgs.cancel_invocation")) {
+                        WampProtocol.sendInterruptMessage(remotePeer, f.getInvocationId(), f.getDetails());
+                    }
+                    
+                    String reason = (f.getDetails() != null && f.getDetails().has("reason"))? f.getDetails().getText("reason") : f.getErrorURI();
+                    if(WampCalleeHealth.isCalleeFailure(reason)) {
+                        remotePeer.getCalleeHealth().onFailure(System.currentTimeMillis());
+                    } else if(f.getErrorURI().equals("wgs.cancel_invocation") || f.getErrorURI().equals(WampException.ERROR_PREFIX + ".canceled")) {
+                        remotePeer.getCalleeHealth().onAbandoned();
+                    } else {
+                        long now = System.currentTimeMillis();
+                        remotePeer.getCalleeHealth().onSuccess(now - invocation.sentAt, slowMillis, now);   // application error
+                    }
+                    releaseSlot();
+                }
             }
-            */
+        });
 
-        } catch(Exception ex) {
-            task.removeRemoteInvocation(remotePeer.getSocketId(), invocationId);
-            remotePeer.removeInvocation(invocationId);
+        
+        task.addRemoteInvocation(remotePeer.getSocketId(), invocationId, remotePeer.addInvocation(invocationId, this, task, deferred));
+        task.decrementPendingInvocationCount();
+
+        int slot = acquireSlot(invocation);
+        if(slot > 0) {
+            invocation.send();
+        } else if(slot < 0) {
+            if(logger.isLoggable(Level.FINE)) logger.log(Level.FINE, "CALL " + task.getCallID() + ": invocation queue is full for session " + remotePeer.getWampSessionId());
+            invocation.discard();
+            deferred.reject(new WampException(invocationId, null, WampException.ERROR_PREFIX + ".callee_busy", null, null));
         }
 
         return promise;
     }    
     
+    
+    private static final int QUEUED    = 0;
+    private static final int SENT      = 1;
+    private static final int DISCARDED = 2;
+    
+    private class QueuedInvocation
+    {
+        private WampCallController task;
+        private WampSocket clientSocket;
+        private Long invocationId;
+        private WampDict invocationOptions;
+        private WampList args;
+        private WampDict argsKw;
+        private AtomicInteger state = new AtomicInteger(QUEUED);
+        private long sentAt;
+        
+        QueuedInvocation(WampCallController task, WampSocket clientSocket, Long invocationId, WampDict invocationOptions, WampList args, WampDict argsKw)
+        {
+            this.task = task;
+            this.clientSocket = clientSocket;
+            this.invocationId = invocationId;
+            this.invocationOptions = invocationOptions;
+            this.args = args;
+            this.argsKw = argsKw;
+        }
+        
+        boolean isSent()
+        {
+            return state.get() == SENT;
+        }
+        
+        /**
+         * @return true when the invocation hadn't been sent yet
+         */
+        boolean discard()
+        {
+            return state.compareAndSet(QUEUED, DISCARDED);
+        }
+        
+        void send()
+        {
+            if(!state.compareAndSet(QUEUED, SENT)) {
+                releaseSlot();   // discarded while it was dequeued: transfer the slot
+                return;
+            }
+            
+            sentAt = System.currentTimeMillis();
+            remotePeer.getCalleeHealth().onInvocation(sentAt);
+            
+            if(logger.isLoggable(Level.FINEST)) logger.log(Level.FINEST, "CALL " + task.getCallID() + ": SENDING INVOCATION ID: " + invocationId + " (" + clientSocket.getWampSessionId() + " --> " + remotePeer.getWampSessionId() + ")");
+            try {
+                if(remotePeer.getWampSessionId() != null) {
+                    WampProtocol.sendInvocationMessage(remotePeer, invocationId, registrationId, invocationOptions, args, argsKw);
+                } else {
+                    throw new Exception("session closed");
+                }
+
+                /* DEBUG: skip-invocations 
+                { 
+                    WampResult wampResult = new WampResult(invocationId);
+                    wampResult.setArgs(new WampList(6L));
+                    deferred.resolve(wampResult);
+                }
+                */
+
+            } catch(Exception ex) {
+                remotePeer.getCalleeHealth().onFailure(System.currentTimeMillis());
+                task.removeRemoteInvocation(remotePeer.getSocketId(), invocationId);
+                remotePeer.removeInvocation(invocationId);
+                releaseSlot();
+            }
+        }
+    }
+    
 }
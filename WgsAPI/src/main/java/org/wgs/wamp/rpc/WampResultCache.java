@@ -0,0 +1,337 @@
+package org.wgs.wamp.rpc;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+import org.wgs.wamp.WampProtocol;
+import org.wgs.wamp.WampResult;
+import org.wgs.wamp.WampSocket;
+import org.wgs.wamp.encoding.WampEncoding;
+import org.wgs.wamp.type.WampDict;
+import org.wgs.wamp.type.WampList;
+
+
+/**
+ * Dealer cache of RPC results, enabled per procedure.
+ *
+ * The results are indexed by procedure, realm, scope (caller) and normalized arguments,
+ * and they are bounded by a TTL and by the maximum number of entries 
+ * (LRU, in independent stripes of the keys, each one with its own lock).
+ * Each procedure has a generation number that is included in the keys,
+ * so the events published to its invalidation topics discard all the cached results
+ * in O(1) (the old entries are never found again, and they are evicted by the LRU).
+ *
+ * The policies of the registered procedures are scoped to their realm (and removed with their registration);
+ * the policies of the local procedures apply to all the realms.
+ */
+public class WampResultCache
+{
+    public enum ScopeEnum { global, authid, session }
+
+    public static int maxEntries = 10000;
+
+    private static AtomicLong policySequence = new AtomicLong(0L);
+    private static ConcurrentHashMap<String,Policy> policies = new ConcurrentHashMap<String,Policy>();
+    private static CopyOnWriteArraySet<String> invalidationTopics = new CopyOnWriteArraySet<String>();
+    private static ConcurrentHashMap<String,Collection<Policy>> policiesByTopic = new ConcurrentHashMap<String,Collection<Policy>>();
+
+    private static final int STRIPES = 16;    // power of 2
+    private static Stripe[] stripes = new Stripe[STRIPES];
+
+    static {
+        String max = System.getProperty("WGS_RPC_CACHE_MAX_ENTRIES");
+        if(max != null) {
+            try { maxEntries = Integer.parseInt(max); }
+            catch(Exception ex) { }
+        }
+        
+        for(int i = 0; i < STRIPES; i++) stripes[i] = new Stripe();
+    }
+
+
+    /**
+     * Enables the cache of a local procedure (in all the realms).
+     * @param procedureURI the procedure
+     * @param ttlMillis the time to live of the results
+     * @param scope the callers that share the cached results
+     * @param topics the topics whose events invalidate the results (the names ending with ".." are prefixes)
+     */
+    public static void enable(String procedureURI, long ttlMillis, ScopeEnum scope, Collection<String> topics)
+    {
+        enable(null, procedureURI, ttlMillis, scope, topics);
+    }
+
+    /**
+     * Enables the cache of a procedure registered in a realm (null for all the realms).
+     */
+    public static synchronized void enable(String realm, String procedureURI, long ttlMillis, ScopeEnum scope, Collection<String> topics)
+    {
+        Policy policy = new Policy(ttlMillis, (scope != null)? scope : ScopeEnum.authid, topics);
+        Policy old = policies.put(getPolicyKey(realm, procedureURI), policy);
+        if(old != null) removeInvalidations(old);
+        for(String topic : policy.topics) {
+            invalidationTopics.add(topic);
+            Collection<Policy> list = policiesByTopic.get(topic);
+            if(list == null) {
+                Collection<Policy> newList = new CopyOnWriteArraySet<Policy>();
+                list = policiesByTopic.putIfAbsent(topic, newList);
+                if(list == null) list = newList;
+            }
+            list.add(policy);
+        }
+    }
+
+    public static void disable(String procedureURI)
+    {
+        disable(null, procedureURI);
+    }
+
+    public static synchronized void disable(String realm, String procedureURI)
+    {
+        Policy policy = policies.remove(getPolicyKey(realm, procedureURI));
+        if(policy != null) {
+            policy.generation.incrementAndGet();
+            removeInvalidations(policy);
+        }
+    }
+
+    private static void removeInvalidations(Policy policy)
+    {
+        for(String topic : policy.topics) {
+            Collection<Policy> list = policiesByTopic.get(topic);
+            if(list != null) {
+                list.remove(policy);
+                if(list.isEmpty()) {
+                    policiesByTopic.remove(topic);
+                    invalidationTopics.remove(topic);
+                }
+            }
+        }
+    }
+
+    public static boolean isEnabled(String realm, String procedureURI)
+    {
+        return getPolicy(realm, procedureURI) != null;
+    }
+
+    /**
+     * @return true when the cache of a procedure in a realm is enabled with the same options (or disabled in both cases)
+     */
+    public static boolean hasPolicy(String realm, String procedureURI, Long ttlMillis, ScopeEnum scope, Collection<String> topics)
+    {
+        Policy policy = policies.get(getPolicyKey(realm, procedureURI));
+        if(policy == null || ttlMillis == null) return policy == null && ttlMillis == null;
+        return policy.ttlMillis == ttlMillis 
+                && policy.scope == ((scope != null)? scope : ScopeEnum.authid)
+                && policy.topics.equals(new TreeSet<String>((topics != null)? topics : new TreeSet<String>()));
+    }
+
+    private static String getPolicyKey(String realm, String procedureURI)
+    {
+        return (realm != null)? realm + "#" + procedureURI : procedureURI;
+    }
+
+    private static Policy getPolicy(String realm, String procedureURI)
+    {
+        Policy policy = (realm != null)? policies.get(getPolicyKey(realm, procedureURI)) : null;
+        if(policy == null) policy = policies.get(procedureURI);
+        return policy;
+    }
+
+
+    /**
+     * @return the cache key of a call, or null when the results of the procedure (or the call options) aren't cacheable
+     */
+    public static String getKey(String procedureURI, WampSocket caller, WampList args, WampDict argsKw, WampCallOptions options)
+    {
+        Policy policy = getPolicy(caller.getRealm(), procedureURI);
+        if(policy == null) return null;
+        if(options != null && (options.getRunMode() == WampCallOptions.RunModeEnum.progressive || options.getRunOn() == WampCallOptions.RunOnEnum.all)) return null;
+
+        StringBuilder key = new StringBuilder(procedureURI);
+        key.append('#').append(policy.id).append('.').append(policy.generation.get());
+        appendCallKey(key, policy.scope, caller, options, args, argsKw);
+        return key.toString();
+    }
+
+    /**
+     * Appends the realm, partition, scope and normalized arguments of a call to a key.
+     */
+    static void appendCallKey(StringBuilder key, ScopeEnum scope, WampSocket caller, WampCallOptions options, WampList args, WampDict argsKw)
+    {
+        key.append('#').append(caller.getRealm()).append('#');
+        if(options != null && options.getRunOn() == WampCallOptions.RunOnEnum.partition) key.append(options.getPartition());
+        key.append('#');
+        switch(scope) {
+            case authid:
+                key.append(caller.getAuthId()).append('@').append(caller.getAuthProvider());
+                break;
+            case session:
+                key.append(caller.getWampSessionId());
+                break;
+            default:
+                break;
+        }
+        key.append('#');
+        normalize(key, args);
+        key.append('#');
+        normalize(key, argsKw);
+    }
+
+    public static WampResult get(String key)
+    {
+        Entry entry = getEntry(key);
+        if(entry == null) return null;
+
+        WampResult result = new WampResult(null);
+        result.setArgs(entry.args);
+        result.setArgsKw(entry.argsKw);
+        return result;
+    }
+
+    /**
+     * Sends the cached result of a call (serialized once per encoding for all the hits of the entry).
+     * @return false when the result isn't cached
+     */
+    public static boolean sendResult(String key, WampSocket caller, Long callID) throws Exception
+    {
+        Entry entry = getEntry(key);
+        if(entry == null) return false;
+        
+        WampProtocol.sendResultMessage(caller, callID, null, entry.args, entry.argsKw, entry.serializedParts);
+        return true;
+    }
+
+    public static void put(String key, String realm, String procedureURI, WampList args, WampDict argsKw)
+    {
+        Policy policy = getPolicy(realm, procedureURI);
+        if(policy != null) {
+            Entry entry = new Entry(System.currentTimeMillis() + policy.ttlMillis, args, argsKw);
+            Stripe stripe = getStripe(key);
+            synchronized(stripe) {
+                stripe.put(key, entry);
+            }
+        }
+    }
+
+    private static Entry getEntry(String key)
+    {
+        Stripe stripe = getStripe(key);
+        synchronized(stripe) {
+            Entry entry = stripe.get(key);
+            if(entry != null && entry.expiration < System.currentTimeMillis()) {
+                stripe.remove(key);
+                entry = null;
+            }
+            return entry;
+        }
+    }
+
+    private static Stripe getStripe(String key)
+    {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+
+    /**
+     * Invalidates the results of the procedures that depend on the topic of a publication.
+     */
+    public static void invalidateTopic(String topicName)
+    {
+        if(invalidationTopics.isEmpty()) return;
+
+        for(String topic : invalidationTopics) {
+            boolean matches = topic.endsWith("..")? topicName.startsWith(topic.substring(0, topic.length()-1)) : topic.equals(topicName);
+            Collection<Policy> list = matches? policiesByTopic.get(topic) : null;
+            if(list != null) {
+                for(Policy policy : list) {
+                    policy.generation.incrementAndGet();
+                }
+            }
+        }
+    }
+
+
+    private static void normalize(StringBuilder key, Object obj)
+    {
+        if(obj == null) {
+            key.append("null");
+        } else if(obj instanceof WampList) {
+            WampList list = (WampList)obj;
+            key.append('[');
+            for(int i = 0; i < list.size(); i++) {
+                if(i > 0) key.append(',');
+                normalize(key, list.get(i));
+            }
+            key.append(']');
+        } else if(obj instanceof WampDict) {
+            WampDict dict = (WampDict)obj;
+            Set<String> names = new TreeSet<String>(dict.keySet());
+            key.append('{');
+            for(String name : names) {
+                normalize(key, name);
+                key.append(':');
+                normalize(key, dict.get(name));
+                key.append(',');
+            }
+            key.append('}');
+        } else if(obj instanceof String) {
+            key.append('"').append(((String)obj).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        } else {
+            key.append(obj);
+        }
+    }
+
+
+    private static class Policy
+    {
+        private long id = policySequence.incrementAndGet();  // the entries of a replaced policy are never found again
+        private long ttlMillis;
+        private ScopeEnum scope;
+        private TreeSet<String> topics;
+        private AtomicLong generation = new AtomicLong(0L);
+
+        Policy(long ttlMillis, ScopeEnum scope, Collection<String> topics)
+        {
+            this.ttlMillis = ttlMillis;
+            this.scope = scope;
+            this.topics = new TreeSet<String>((topics != null)? topics : new TreeSet<String>());
+        }
+    }
+
+    private static class Stripe extends LinkedHashMap<String,Entry>
+    {
+        Stripe()
+        {
+            super(64, 0.75f, true);  // access order
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) 
+        {
+            return size() > Math.max(1, maxEntries / STRIPES);
+        }
+    }
+
+    private static class Entry
+    {
+        private long expiration;
+        private WampList args;
+        private WampDict argsKw;
+        private Object[] serializedParts = new Object[WampEncoding.values().length];
+
+        Entry(long expiration, WampList args, WampDict argsKw)
+        {
+            this.expiration = expiration;
+            this.args = args;
+            this.argsKw = argsKw;
+        }
+    }
+
+}
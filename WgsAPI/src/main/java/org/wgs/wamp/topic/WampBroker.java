@@ -3,19 +3,28 @@ package org.wgs.wamp.topic;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.NavigableMap;
 import java.util.Set;
 import java.util.StringTokenizer;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.naming.InitialContext;
 import org.wgs.util.Storage;
+import org.wgs.util.TimingWheel;
 
 import org.wgs.wamp.WampApplication;
 import org.wgs.wamp.WampCluster;
 import org.wgs.wamp.WampModule;
 import org.wgs.wamp.WampProtocol;
 import org.wgs.wamp.WampSocket;
+import org.wgs.wamp.rpc.WampResultCache;
 import org.wgs.wamp.type.WampDict;
 import org.wgs.wamp.type.WampList;
 import org.wgs.wamp.type.WampMatchType;
@@ -25,11 +34,58 @@ public class WampBroker
 {
     private static final Logger logger = Logger.getLogger(WampBroker.class.getName());
     
-    private static TreeMap<String,WampTopic> topics = new TreeMap<String,WampTopic>();
+    private static ConcurrentSkipListMap<String,WampTopic> topics = new ConcurrentSkipListMap<String,WampTopic>();
     
-    private static TreeMap<Long,WampSubscription>   topicSubscriptionsById = new TreeMap<Long,WampSubscription>();
-    private static TreeMap<String,WampSubscription> topicSubscriptionsByTopicURI = new TreeMap<String,WampSubscription>();
-    private static TreeMap<String,WampSubscription> topicPatterns = new TreeMap<String,WampSubscription>();
+    // the subscription registries are read without locks, and modified with the lock of topicSubscriptionsByTopicURI
+    private static ConcurrentSkipListMap<Long,WampSubscription>   topicSubscriptionsById = new ConcurrentSkipListMap<Long,WampSubscription>();
+    private static ConcurrentSkipListMap<String,WampSubscription> topicSubscriptionsByTopicURI = new ConcurrentSkipListMap<String,WampSubscription>();
+    private static ConcurrentSkipListMap<String,WampSubscription> topicPatterns = new ConcurrentSkipListMap<String,WampSubscription>();
+    
+    public  static long topicIdleEvictionMillis = 15L * 60L * 1000L;
+    public  static int  topicEvictionBatchSize = 500;
+    public  static int  topicRetransmitBufferSize = 256;
+    public  static long topicRetransmitRetentionMillis = 15L * 60L * 1000L;
+    private static ScheduledExecutorService topicEvictionScheduler = null;
+    
+    public  static long publishDedupWindowMillis = 5L * 60L * 1000L;
+    private static ConcurrentHashMap<String,WampDeduplicationWindow> publisherDedupWindows = new ConcurrentHashMap<String,WampDeduplicationWindow>();
+    
+    private static WampGroupDirectory groupDirectory = new WampGroupDirectory(WampCluster.brokerId);
+    
+    private static TimingWheel publicationTimer = null;
+    private static ConcurrentHashMap<Long,WampScheduledPublication> scheduledPublications = new ConcurrentHashMap<Long,WampScheduledPublication>();
+    
+    static {
+        String idleMillis = System.getProperty("WGS_TOPIC_IDLE_EVICTION_MILLIS");
+        if(idleMillis != null) {
+            try { topicIdleEvictionMillis = Long.parseLong(idleMillis); }
+            catch(Exception ex) { }
+        }
+        
+        String bufferSize = System.getProperty("WGS_TOPIC_RETRANSMIT_BUFFER_SIZE");
+        if(bufferSize != null) {
+            try { topicRetransmitBufferSize = Integer.parseInt(bufferSize); }
+            catch(Exception ex) { }
+        }
+        
+        String retentionMillis = System.getProperty("WGS_TOPIC_RETRANSMIT_RETENTION_MILLIS");
+        if(retentionMillis != null) {
+            try { topicRetransmitRetentionMillis = Long.parseLong(retentionMillis); }
+            catch(Exception ex) { }
+        }
+        
+        String dedupMillis = System.getProperty("WGS_PUBLISH_DEDUP_WINDOW_MILLIS");
+        if(dedupMillis != null) {
+            try { publishDedupWindowMillis = Long.parseLong(dedupMillis); }
+            catch(Exception ex) { }
+        }
+        
+        String batchSize = System.getProperty("WGS_TOPIC_EVICTION_BATCH_SIZE");
+        if(batchSize != null) {
+            try { topicEvictionBatchSize = Integer.parseInt(batchSize); }
+            catch(Exception ex) { }
+        }
+    }
     
 
     public static WampTopic createTopic(WampApplication app, String topicFQname, WampTopicOptions options)
@@ -38,10 +94,12 @@ public class WampBroker
         if(topic == null) {
             topic = new WampTopic(topicFQname, options);
             topic = Storage.saveEntity(topic);
-            topics.put(topicFQname, topic);
+            synchronized(topics) {
+                topics.put(topicFQname, topic);
+            }
 
             for(WampSubscription subscription : topicPatterns.values()) {
-                if(isUriMatchingWithRegExp(topicFQname, subscription.getTopicRegExp())) {
+                if(subscription.matchesTopic(topicFQname)) {
                     subscription.getTopics().add(topic);
 
                     try { 
@@ -51,6 +109,7 @@ public class WampBroker
                             exactTopicOpt.setMatchType(WampMatchType.exact);
                             exactTopicOpt.setEventsEnabled(subscription.getOptions().hasEventsEnabled());
                             exactTopicOpt.setMetaTopics(subscription.getOptions().getMetaTopics());
+                            exactTopicOpt.setReliable(subscription.getOptions().isReliable());
                             
                             WampModule module = app.getWampModule(topic.getTopicName(), app.getDefaultWampModule());
                             module.onSubscribe(socket, topic, subscription, exactTopicOpt);
@@ -69,7 +128,10 @@ public class WampBroker
     
     public static WampTopic removeTopic(WampApplication app, String topicFQname)
     {
-        WampTopic topic = topics.remove(topicFQname);
+        WampTopic topic = null;
+        synchronized(topics) {
+            topic = topics.remove(topicFQname);
+        }
         if(topic != null) {
             for(WampSubscription subscription : topic.getSubscriptions()) {
                 for(Long sid : subscription.getSessionIds(null)) {
@@ -81,7 +143,7 @@ public class WampBroker
                     }                      
                 }
                 
-                if(isUriMatchingWithRegExp(topicFQname, subscription.getTopicRegExp())) {
+                if(subscription.matchesTopic(topicFQname)) {
                     subscription.getTopics().remove(topic);
                 }                
             }
@@ -93,6 +155,169 @@ public class WampBroker
     }
     
     
+    /**
+     * Starts the background eviction of idle topics, and the purge of the expired
+     * deduplication windows of the publishers (when they are enabled).
+     */
+    public static synchronized void startTopicEviction()
+    {
+        if(topicEvictionScheduler == null && (topicIdleEvictionMillis > 0 || publishDedupWindowMillis > 0)) {
+            try {
+                InitialContext ctx = new InitialContext();
+                topicEvictionScheduler = (ScheduledExecutorService)ctx.lookup("java:comp/DefaultManagedScheduledExecutorService");
+            } catch(Exception ex) { }
+            
+            if(topicEvictionScheduler == null) {
+                topicEvictionScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "wgs-topic-eviction");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            
+            if(topicIdleEvictionMillis > 0) {
+                long period = Math.max(1000L, topicIdleEvictionMillis / 2);
+                topicEvictionScheduler.scheduleWithFixedDelay(() -> {
+                    try { 
+                        int count = evictIdleTopics(topicIdleEvictionMillis);
+                        if(count > 0) logger.log(Level.FINE, "Idle topics evicted: {0}", count);
+                    } catch(Exception ex) {
+                        logger.log(Level.WARNING, "Error evicting idle topics", ex);
+                    }
+                }, period, period, TimeUnit.MILLISECONDS);
+            }
+            
+            if(publishDedupWindowMillis > 0) {
+                long period = Math.max(1000L, publishDedupWindowMillis / 2);
+                topicEvictionScheduler.scheduleWithFixedDelay(() -> {
+                    try { 
+                        purgeDeduplicationWindows();
+                    } catch(Exception ex) {
+                        logger.log(Level.WARNING, "Error purging deduplication windows", ex);
+                    }
+                }, period, period, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+    
+    
+    /**
+     * Checks the idempotency key of a publication against the deduplication window of its publisher
+     * (identified by its authid, or by its session when it's anonymous, in the realm).
+     * @return the ID of the previous publication with the same key, or null when it must be published
+     */
+    public static Long registerIdempotencyKey(WampSocket publisher, String idempotencyKey, Long publicationId)
+    {
+        if(idempotencyKey == null || publishDedupWindowMillis <= 0) return null;
+        
+        String publisherKey = publisher.getRealm() + "#" + ((publisher.getAuthId() != null)? "authid:" + publisher.getAuthId() : "session:" + publisher.getWampSessionId());
+        WampDeduplicationWindow window = publisherDedupWindows.get(publisherKey);
+        if(window == null) {
+            WampDeduplicationWindow newWindow = new WampDeduplicationWindow(publishDedupWindowMillis, 8);
+            window = publisherDedupWindows.putIfAbsent(publisherKey, newWindow);
+            if(window == null) window = newWindow;
+        }
+        
+        return window.putIfAbsent(idempotencyKey, publicationId, System.currentTimeMillis());
+    }
+    
+    
+    private static void purgeDeduplicationWindows()
+    {
+        long now = System.currentTimeMillis();
+        Iterator<WampDeduplicationWindow> iter = publisherDedupWindows.values().iterator();
+        while(iter.hasNext()) {
+            if(iter.next().isEmpty(now)) iter.remove();
+        }
+    }
+    
+    
+    private static boolean isEvictableTopic(WampTopic topic, long now, long idleMillis)
+    {
+        WampRetransmitBuffer retransmitBuffer = topic.getRetransmitBuffer();
+        long idle = now - topic.getLastActivityTime();
+        return topic.getSubscriptionCount() == 0 
+                && !topic.hasRetainedState()
+                && idle >= idleMillis
+                && (retransmitBuffer == null || retransmitBuffer.isEmpty() || idle >= topicRetransmitRetentionMillis);   // the buffered events can be requested after a reconnection, during the retention period
+    }
+    
+    
+    /**
+     * Removes the topics without subscribers nor retained state that have been idle 
+     * for the specified period, and unlinks them from the subscription registries.
+     * 
+     * The candidates are found without locks, and they are evicted in batches 
+     * (of topicEvictionBatchSize topics) with the lock of the subscription registries
+     * (the subscribers are added to the subscriptions with the same lock),
+     * so the publications and subscriptions are only blocked during a batch.
+     * 
+     * @return the number of evicted topics
+     */
+    public static int evictIdleTopics(long idleMillis)
+    {
+        long now = System.currentTimeMillis();
+        int batchSize = Math.max(1, topicEvictionBatchSize);
+        int count = 0;
+        
+        ArrayList<WampTopic> candidates = new ArrayList<WampTopic>(Math.min(batchSize, 1024));
+        for(WampTopic topic : topics.values()) {
+            if(isEvictableTopic(topic, now, idleMillis)) {
+                candidates.add(topic);
+                if(candidates.size() == batchSize) {
+                    count += evictTopics(candidates, now, idleMillis);
+                    candidates.clear();
+                }
+            }
+        }
+        if(candidates.size() > 0) count += evictTopics(candidates, now, idleMillis);
+        
+        return count;
+    }
+    
+    
+    private static int evictTopics(List<WampTopic> candidates, long now, long idleMillis)
+    {
+        ArrayList<String> names = new ArrayList<String>(candidates.size());
+        
+        synchronized(topicSubscriptionsByTopicURI) {
+            synchronized(topics) {
+                for(WampTopic topic : candidates) {
+                    String topicName = topic.getTopicName();
+                    WampSubscription subscription = topicSubscriptionsByTopicURI.get(topicName);
+                    if(topics.get(topicName) == topic
+                            && isEvictableTopic(topic, now, idleMillis)   // checked again with the locks
+                            && (subscription == null || subscription.getSocketsCount() == 0)) {
+                        topics.remove(topicName);
+                        names.add(topicName);
+                        
+                        if(subscription != null) {
+                            topicSubscriptionsByTopicURI.remove(topicName);
+                            topicSubscriptionsById.remove(subscription.getId());
+                        }
+
+                        for(WampSubscription patternSubscription : topicPatterns.values()) {
+                            if(patternSubscription.matchesTopic(topicName)) {
+                                patternSubscription.getTopics().remove(topic);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        
+        if(names.size() > 0) {
+            try { 
+                Storage.executeUpdate("wgs.deleteTopics", names);
+            } catch(Exception ex) {
+                logger.log(Level.WARNING, "Error removing evicted topics from storage", ex);
+            }
+        }
+        
+        return names.size();
+    }
+    
+    
     public static String getPatternRegExp(WampMatchType matchType, String pattern)
     {
         String regexp = pattern.replace("..", "%").replace(".","\\.");
@@ -149,6 +374,18 @@ public class WampBroker
     
     public static void processPublishMessage(WampApplication app, WampSocket clientSocket, WampList request) throws Exception 
     {
+        WampDict publicationDetails = (WampDict)request.get(2);
+        if(publicationDetails.has("topics") || publicationDetails.has("batch")) {
+            processBulkPublishMessage(app, clientSocket, request);
+            return;
+        }
+        
+        if(publicationDetails.has("_cluster_group_members") && "cluster".equals(clientSocket.getRealm())) {
+            try { groupDirectory.setMembers(publicationDetails.getText("_cluster_broker"), (WampDict)publicationDetails.get("_cluster_group_members")); }
+            catch(Exception ex) { logger.log(Level.FINE, "Error updating the members of shared subscription groups", ex); }
+            return;
+        }
+        
         String topicName = request.getText(3);
         WampTopic topic = WampBroker.getTopic(topicName);
         if(topic == null) topic = WampBroker.createTopic(app, topicName, null);
@@ -161,11 +398,126 @@ public class WampBroker
         }  
     }
     
+    
+    /**
+     * Publishes the same payload to the list of topics of the "topics" option
+     * (besides the topic of the request, when it's not empty), 
+     * or the list of payloads in the arguments of a "batch" request to its topic:
+     *   [PUBLISH, Request|id, {"batch": true}, Topic|uri, [[Arguments|list, ArgumentsKw|dict], ...]]
+     * All the publications are acknowledged with a single PUBLISHED message.
+     */
+    private static void processBulkPublishMessage(WampApplication app, WampSocket clientSocket, WampList request) throws Exception 
+    {
+        Long requestId = request.getLong(1);
+        WampDict publicationDetails = (WampDict)request.get(2);
+        WampList topicNames = (WampList)publicationDetails.remove("topics");
+        boolean  batch = Boolean.TRUE.equals(publicationDetails.remove("batch"));
+        boolean  ack = new WampPublishOptions(publicationDetails).hasAck();
+        publicationDetails.remove("acknowledge");
+        publicationDetails.remove("acknowledgement");
+
+        String topicName = request.getText(3);
+        WampList payload   = (request.size() >= 5)? (WampList)request.get(4) : null;
+        WampDict payloadKw = (request.size() >= 6)? (WampDict)request.get(5) : null;
+        
+        ArrayList<WampList> publications = new ArrayList<WampList>();
+        if(batch) {
+            for(int i = 0; payload != null && i < payload.size(); i++) {
+                WampList entry = (WampList)payload.get(i);
+                WampList entryPayload   = (entry.size() > 0)? (WampList)entry.get(0) : null;
+                WampDict entryPayloadKw = (entry.size() > 1)? (WampDict)entry.get(1) : null;
+                publications.add(new WampList(topicName, entryPayload, entryPayloadKw));
+            }
+        } else {
+            if(topicName != null && topicName.length() > 0) publications.add(new WampList(topicName, payload, payloadKw));
+            for(int i = 0; topicNames != null && i < topicNames.size(); i++) {
+                publications.add(new WampList(topicNames.getText(i), payload, payloadKw));
+            }
+        }
+        
+        String idempotencyKey = publicationDetails.getText("idempotency_key");
+        WampList publicationIds = new WampList();
+        for(WampList publication : publications) {
+            WampDict details = new WampDict();
+            details.putAll(publicationDetails);  // onPublish consumes the internal options
+            if(idempotencyKey != null) details.put("idempotency_key", idempotencyKey + "#" + publicationIds.size());
+            
+            WampList singleRequest = new WampList();
+            singleRequest.add(WampProtocol.PUBLISH);
+            singleRequest.add(requestId);
+            singleRequest.add(details);
+            singleRequest.add(publication.get(0));
+            singleRequest.add(publication.get(1));
+            singleRequest.add(publication.get(2));
+            
+            try {
+                WampTopic topic = createTopic(app, publication.getText(0), null);
+                WampModule module = app.getWampModule(topic.getTopicName(), app.getDefaultWampModule());
+                publicationIds.add(module.onPublish(clientSocket, topic, singleRequest));
+            } catch(Exception ex) {
+                logger.log(Level.FINE, "Error in publishing to topic", ex);
+                publicationIds.add(null);
+            }
+        }
+        
+        if(ack) {
+            WampProtocol.sendPublishedMessage(clientSocket, requestId, publicationIds);
+        }
+    }
+    
+
+    public static WampGroupDirectory getGroupDirectory()
+    {
+        return groupDirectory;
+    }
+    
+    
+    /**
+     * Updates the number of local members of a shared subscription group,
+     * and notifies it to the other cluster nodes.
+     */
+    public static void onGroupMembersChanged(String groupKey, int delta)
+    {
+        int count = groupDirectory.addLocalMember(groupKey, delta);
+        if(WampCluster.getNodes().size() > 0) {
+            WampDict members = new WampDict();
+            members.put(groupKey, (long)count);
+            for(WampCluster.Node node : WampCluster.getNodes()) {
+                sendGroupMembers(node.getWampClient().getWampSocket(), members);
+            }
+        }
+    }
+    
+    /**
+     * Sends the number of members of the shared subscription groups of this node to other cluster node.
+     */
+    public static void sendGroupMembers(WampSocket nodeSocket, WampDict members)
+    {
+        if(members == null) members = groupDirectory.getLocalMembers();
+        WampDict details = new WampDict();
+        details.put("_cluster_broker", WampCluster.brokerId);
+        details.put("_cluster_group_members", members);
+        try { 
+            WampProtocol.sendPublishMessage(nodeSocket, WampProtocol.newGlobalScopeId(), "wgs.cluster.group_members", null, null, details);
+        } catch(Exception ex) {
+            logger.log(Level.FINE, "Error sending the members of shared subscription groups", ex);
+        }
+    }
+    
 
     public static void publishEvent(String realm, Long id, WampTopic topic, WampList payload, WampDict payloadKw, WampPublishOptions options, WampDict eventDetails, boolean broadcastToClusterNodes) throws Exception
     {
+        // the node of the publisher selects the cluster node that delivers the event to each shared subscription group
+        WampDict groupNodes = null;
+        if(!broadcastToClusterNodes) {
+            groupNodes = (eventDetails != null)? (WampDict)eventDetails.remove("_cluster_groups") : null;
+            if(groupNodes == null) groupNodes = new WampDict();
+        }
+        
         if(broadcastToClusterNodes && WampCluster.getNodes().size() > 0) {
+            groupNodes = groupDirectory.selectNodes(realm, topic.getTopicName());
             if(eventDetails == null) eventDetails = new WampDict();
+            eventDetails.put("_cluster_groups", groupNodes);
             eventDetails.put("_cluster_publication_id", id);
             eventDetails.put("_cluster_realm", realm);
             eventDetails.put("_cluster_authid", eventDetails.getText("authid"));
@@ -176,6 +528,7 @@ public class WampBroker
                 WampProtocol.sendPublishMessage(node.getWampClient().getWampSocket(), id, topic.getTopicName(), payload, payloadKw, eventDetails);
             }
             
+            eventDetails.remove("_cluster_groups");
             eventDetails.remove("_cluster_publication_id");
             eventDetails.remove("_cluster_realm");
             eventDetails.remove("_cluster_authid");
@@ -183,10 +536,75 @@ public class WampBroker
             eventDetails.remove("_cluster_authrole");
         }
         
-        WampProtocol.sendEvents(realm, id, topic, payload, payloadKw, options, eventDetails);        
+        topic.touch();
+        WampResultCache.invalidateTopic(topic.getTopicName());
+        
+        WampRetransmitBuffer retransmitBuffer = topic.getRetransmitBuffer();
+        if(retransmitBuffer != null) {
+            // the events of a reliable topic are delivered in the order of their sequence numbers
+            synchronized(retransmitBuffer) {
+                Long sequence = retransmitBuffer.append(realm, id, options, eventDetails, payload, payloadKw);
+                WampProtocol.sendEvents(realm, id, topic, payload, payloadKw, options, eventDetails, sequence, groupNodes);
+            }
+        } else {
+            WampProtocol.sendEvents(realm, id, topic, payload, payloadKw, options, eventDetails, null, groupNodes);
+        }
         
     }
 
+    private static synchronized TimingWheel getPublicationTimer()
+    {
+        if(publicationTimer == null) {
+            publicationTimer = new TimingWheel("wgs-scheduled-publications", 10L, 8, 4);
+        }
+        return publicationTimer;
+    }
+    
+    
+    /**
+     * Stores a publication in the timing wheel until its delivery time, 
+     * when it will be dispatched with publishEvent.
+     */
+    public static WampScheduledPublication schedulePublication(final WampApplication app, final String realm, final Long id, WampTopic topic, final WampList payload, final WampDict payloadKw, final WampPublishOptions options, final WampDict eventDetails, Long publisherSessionId)
+    {
+        final String topicName = topic.getTopicName();
+        WampScheduledPublication publication = new WampScheduledPublication(id, realm, topicName, publisherSessionId, options.getDeliveryTime());
+        scheduledPublications.put(id, publication);
+        
+        TimingWheel.Timeout timeout = getPublicationTimer().scheduleAt(() -> {
+            if(scheduledPublications.remove(id) != null) {
+                try {
+                    WampTopic target = createTopic(app, topicName, null);  // the topic may have been evicted
+                    publishEvent(realm, id, target, payload, payloadKw, options, eventDetails, true);
+                } catch(Exception ex) {
+                    logger.log(Level.WARNING, "Error dispatching scheduled publication " + id, ex);
+                }
+            }
+        }, options.getDeliveryTime());
+        
+        publication.setTimeout(timeout);
+        return publication;
+    }
+    
+    
+    public static WampScheduledPublication getScheduledPublication(Long publicationId)
+    {
+        return scheduledPublications.get(publicationId);
+    }
+    
+    
+    public static boolean cancelScheduledPublication(Long publicationId)
+    {
+        WampScheduledPublication publication = scheduledPublications.remove(publicationId);
+        if(publication != null) {
+            TimingWheel.Timeout timeout = publication.getTimeout();
+            if(timeout != null) timeout.cancel();
+            return true;
+        }
+        return false;
+    }
+    
+    
     public static void publishMetaEvent(String realm, Long id, WampTopic topic, String metaTopic, WampDict metaEventDetails, Long toClient, boolean broadcastToClusterNodes) throws Exception
     {
         if(broadcastToClusterNodes) {
@@ -220,9 +638,85 @@ public class WampBroker
     public static Collection<WampTopic> subscribeClientWithTopic(WampApplication app, WampSocket clientSocket, Long requestId, String topicUriOrPattern, WampSubscriptionOptions options)
     {
         if(options == null) options = new WampSubscriptionOptions(null);
+
+        WampSubscription subscription = null;
+        boolean added = false;
+        try {
+            synchronized(topicSubscriptionsByTopicURI) {
+                subscription = getOrCreateSubscription(app, topicUriOrPattern, options);
+                if(!subscription.hasGroupPolicy(options)) {
+                    WampProtocol.sendErrorMessage(clientSocket, WampProtocol.SUBSCRIBE, requestId, null, "wamp.error.subscription_exists_with_different_group_policy", null, null);
+                    return null;
+                }
+                WampProtocol.sendSubscribedMessage(clientSocket, requestId, subscription.getId());
+                added = subscription.addSocket(clientSocket, options);
+            }
+            if(added) onSubscribed(app, clientSocket, subscription, options);
+        } catch(Exception ex) {
+            WampProtocol.sendErrorMessage(clientSocket, WampProtocol.SUBSCRIBE, requestId, null, "wamp.error.subscription_error", null, null);
+        }
+
+        return (subscription != null)? subscription.getTopics() : null;
+    }
+    
+    
+    /**
+     * Subscribes the client to a list of topics (with the same options),
+     * resolving all the subscriptions in a single pass over the registry, 
+     * and replies with one SUBSCRIBED message with all the subscription IDs.
+     */
+    public static List<WampSubscription> subscribeClientWithTopics(WampApplication app, WampSocket clientSocket, Long requestId, List<String> topicUrisOrPatterns, WampSubscriptionOptions options)
+    {
+        if(options == null) options = new WampSubscriptionOptions(null);
+
+        ArrayList<WampSubscription> subscriptions = new ArrayList<WampSubscription>(topicUrisOrPatterns.size());
+        ArrayList<WampSubscription> added = new ArrayList<WampSubscription>(topicUrisOrPatterns.size());
+        try {
+            synchronized(topicSubscriptionsByTopicURI) {
+                // all the topics are validated before creating any subscription
+                for(String topicUriOrPattern : topicUrisOrPatterns) {
+                    WampSubscription subscription = topicSubscriptionsByTopicURI.get(getSubscriptionURI(topicUriOrPattern, options));
+                    if(subscription != null && !subscription.hasGroupPolicy(options)) {
+                        WampProtocol.sendErrorMessage(clientSocket, WampProtocol.SUBSCRIBE, requestId, null, "wamp.error.subscription_exists_with_different_group_policy", null, null);
+                        return subscriptions;
+                    }
+                }
+                
+                WampList subscriptionIds = new WampList();
+                for(String topicUriOrPattern : topicUrisOrPatterns) {
+                    WampSubscription subscription = getOrCreateSubscription(app, topicUriOrPattern, options);
+                    subscriptions.add(subscription);
+                    subscriptionIds.add(subscription.getId());
+                }
+                WampProtocol.sendSubscribedMessage(clientSocket, requestId, subscriptionIds);
+
+                for(WampSubscription subscription : subscriptions) {
+                    if(subscription.addSocket(clientSocket, options)) added.add(subscription);
+                }
+            }
+            
+            for(WampSubscription subscription : added) {
+                onSubscribed(app, clientSocket, subscription, options);
+            }
+        } catch(Exception ex) {
+            WampProtocol.sendErrorMessage(clientSocket, WampProtocol.SUBSCRIBE, requestId, null, "wamp.error.subscription_error", null, null);
+        }
+
+        return subscriptions;
+    }
+    
+    
+    private static String getSubscriptionURI(String topicUriOrPattern, WampSubscriptionOptions options)
+    {
         if(options.getMatchType() == WampMatchType.prefix && !topicUriOrPattern.endsWith("..")) {
             topicUriOrPattern = topicUriOrPattern + "..";
         }
+        return topicUriOrPattern;
+    }
+    
+    private static WampSubscription getOrCreateSubscription(WampApplication app, String topicUriOrPattern, WampSubscriptionOptions options)
+    {
+        topicUriOrPattern = getSubscriptionURI(topicUriOrPattern, options);
         
         WampSubscription subscription = topicSubscriptionsByTopicURI.get(topicUriOrPattern);
         if(subscription == null) {
@@ -232,24 +726,21 @@ public class WampBroker
             topicSubscriptionsById.put(subscriptionId, subscription);
             topicSubscriptionsByTopicURI.put(topicUriOrPattern, subscription);
             if(options.getMatchType() != WampMatchType.exact) topicPatterns.put(topicUriOrPattern, subscription);
-        }        
-
-        
-        try {
-            WampProtocol.sendSubscribedMessage(clientSocket, requestId, subscription.getId());
-
-            if(subscription.addSocket(clientSocket)) {
-                for(WampTopic topic : subscription.getTopics()) {
-                    WampModule module = app.getWampModule(topic.getTopicName(), app.getDefaultWampModule());
-                    module.onSubscribe(clientSocket, topic, subscription, options);
-                }
-            }
-            
-        } catch(Exception ex) {
-            WampProtocol.sendErrorMessage(clientSocket, WampProtocol.SUBSCRIBE, requestId, null, "wamp.error.subscription_error", null, null);
         }
-
-        return subscription.getTopics();
+        return subscription;
+    }
+    
+    
+    /**
+     * Notifies the modules of the topics of a new subscriber 
+     * (added to the subscription with the lock of the registries, so it can't be evicted).
+     */
+    private static void onSubscribed(WampApplication app, WampSocket clientSocket, WampSubscription subscription, WampSubscriptionOptions options) throws Exception
+    {
+        for(WampTopic topic : subscription.getTopics()) {
+            WampModule module = app.getWampModule(topic.getTopicName(), app.getDefaultWampModule());
+            module.onSubscribe(clientSocket, topic, subscription, options);
+        }
     }
     
     
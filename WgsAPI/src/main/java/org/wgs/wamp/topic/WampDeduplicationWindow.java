@@ -0,0 +1,144 @@
+package org.wgs.wamp.topic;
+
+import java.util.Arrays;
+
+
+/**
+ * Time-bounded set of the idempotency keys used by a publisher.
+ *
+ * The keys are stored as 64-bit hashes (with the ID of their publication)
+ * in open-addressing tables, one for each time bucket of the window.
+ * When the clock moves to a new bucket, the oldest one is cleared in a whole,
+ * so there aren't per-entry timers nor expiration timestamps.
+ */
+public class WampDeduplicationWindow
+{
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long bucketMillis;
+    private Bucket[] buckets;
+    private long currentBucket;
+
+
+    /**
+     * @param windowMillis the minimum time that a key is remembered
+     * @param bucketCount the number of time buckets of the window
+     */
+    public WampDeduplicationWindow(long windowMillis, int bucketCount)
+    {
+        bucketCount = Math.max(1, bucketCount);
+        this.bucketMillis = Math.max(1L, (windowMillis + bucketCount - 1) / bucketCount);
+        this.buckets = new Bucket[bucketCount + 1];   // the current bucket is partially filled
+        for(int i = 0; i < buckets.length; i++) buckets[i] = new Bucket();
+        this.currentBucket = System.currentTimeMillis() / bucketMillis;
+    }
+
+
+    /**
+     * Registers the idempotency key of a publication.
+     * @return the ID of the previous publication with the same key, or null when it's a new key
+     */
+    public synchronized Long putIfAbsent(String key, long publicationId, long now)
+    {
+        rotate(now);
+
+        long hash = hash(key);
+        for(Bucket bucket : buckets) {
+            Long previous = bucket.get(hash);
+            if(previous != null) return previous;
+        }
+
+        buckets[(int)(currentBucket % buckets.length)].put(hash, publicationId);
+        return null;
+    }
+
+    public synchronized boolean isEmpty(long now)
+    {
+        rotate(now);
+        for(Bucket bucket : buckets) {
+            if(bucket.size > 0) return false;
+        }
+        return true;
+    }
+
+
+    private void rotate(long now)
+    {
+        long bucket = now / bucketMillis;
+        if(bucket > currentBucket) {
+            long steps = Math.min(bucket - currentBucket, buckets.length);
+            for(long i = 1; i <= steps; i++) {
+                buckets[(int)((currentBucket + i) % buckets.length)].clear();
+            }
+            currentBucket = bucket;
+        }
+    }
+
+    private static long hash(String key)
+    {
+        long hash = 0xcbf29ce484222325L;   // FNV-1a
+        for(int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return (hash == 0L)? 1L : hash;    // 0 marks the free slots
+    }
+
+
+    private static class Bucket
+    {
+        private long[] keys = new long[INITIAL_CAPACITY];
+        private long[] values = new long[INITIAL_CAPACITY];
+        private int size = 0;
+
+        Long get(long key)
+        {
+            if(size == 0) return null;
+            int mask = keys.length - 1;
+            for(int i = mix(key) & mask; keys[i] != 0L; i = (i + 1) & mask) {
+                if(keys[i] == key) return values[i];
+            }
+            return null;
+        }
+
+        void put(long key, long value)
+        {
+            if((size + 1) * 2 > keys.length) resize(keys.length * 2);
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while(keys[i] != 0L && keys[i] != key) i = (i + 1) & mask;
+            if(keys[i] == 0L) size++;
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        void clear()
+        {
+            if(keys.length > INITIAL_CAPACITY) {
+                keys = new long[INITIAL_CAPACITY];
+                values = new long[INITIAL_CAPACITY];
+            } else if(size > 0) {
+                Arrays.fill(keys, 0L);
+            }
+            size = 0;
+        }
+
+        private void resize(int capacity)
+        {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new long[capacity];
+            values = new long[capacity];
+            size = 0;
+            for(int i = 0; i < oldKeys.length; i++) {
+                if(oldKeys[i] != 0L) put(oldKeys[i], oldValues[i]);
+            }
+        }
+
+        private static int mix(long key)
+        {
+            return (int)(key ^ (key >>> 32));
+        }
+    }
+
+}
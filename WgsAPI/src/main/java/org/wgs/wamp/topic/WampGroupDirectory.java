@@ -0,0 +1,155 @@
+package org.wgs.wamp.topic;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import org.wgs.wamp.type.WampDict;
+import org.wgs.wamp.type.WampMatchType;
+
+
+/**
+ * Number of members of the shared subscription groups in each cluster node.
+ *
+ * The node of the publisher selects the node that will deliver the event to each group
+ * (weighted by its members), and the selected node chooses one of its local members
+ * with the policy of the group.
+ *
+ * The groups are identified by the realm of the members, the subscription and the group name.
+ */
+public class WampGroupDirectory
+{
+    private String localNode;
+
+    private ConcurrentHashMap<String,GroupEntry> entries = new ConcurrentHashMap<String,GroupEntry>();
+
+
+    public WampGroupDirectory(String localNode)
+    {
+        this.localNode = localNode;
+    }
+
+    public String getLocalNode()
+    {
+        return localNode;
+    }
+
+    public static String getGroupKey(String realm, WampMatchType matchType, String topicUriOrPattern, String group)
+    {
+        return realm + " " + matchType + " " + topicUriOrPattern + " " + group;
+    }
+
+
+    /**
+     * Updates the number of members of a group in the local node.
+     * @return the new number of local members of the group
+     */
+    public int addLocalMember(String groupKey, int delta)
+    {
+        int[] members = new int[1];
+        entries.compute(groupKey, (key, entry) -> {
+            Integer count = (entry != null)? entry.membersByNode.get(localNode) : null;
+            members[0] = Math.max(0, ((count != null)? count : 0) + delta);
+            return updateEntry(key, entry, localNode, members[0]);
+        });
+        return members[0];
+    }
+
+    /**
+     * @return the number of members of each group in the local node
+     */
+    public WampDict getLocalMembers()
+    {
+        WampDict retval = new WampDict();
+        for(Map.Entry<String,GroupEntry> entry : entries.entrySet()) {
+            Integer count = entry.getValue().membersByNode.get(localNode);
+            if(count != null) retval.put(entry.getKey(), count.longValue());
+        }
+        return retval;
+    }
+
+    /**
+     * Updates the number of members of the groups in other node.
+     * @param members the number of members by group key (0 when there aren't members)
+     */
+    public void setMembers(String node, WampDict members)
+    {
+        if(node == null || node.equals(localNode)) return;
+        for(String groupKey : members.keySet()) {
+            Long count = members.getLong(groupKey);
+            int  nodeMembers = (count != null)? count.intValue() : 0;
+            entries.compute(groupKey, (key, entry) -> updateEntry(key, entry, node, nodeMembers));
+        }
+    }
+
+    public void removeNode(String node)
+    {
+        for(String groupKey : entries.keySet()) {
+            entries.computeIfPresent(groupKey, (key, entry) -> updateEntry(key, entry, node, 0));
+        }
+    }
+
+
+    /**
+     * Selects the node that will deliver an event to each group of the topic.
+     * @return the selected node by group key
+     */
+    public WampDict selectNodes(String realm, String topicName)
+    {
+        WampDict retval = new WampDict();
+        for(Map.Entry<String,GroupEntry> item : entries.entrySet()) {
+            GroupEntry entry = item.getValue();
+            if(entry.realm.equals(realm) && entry.topicPattern.matcher(topicName).matches()) {
+                String node = entry.selectNode();
+                if(node != null) retval.put(item.getKey(), node);
+            }
+        }
+        return retval;
+    }
+
+
+    // the entries are removed when there aren't members in any node
+    private static GroupEntry updateEntry(String groupKey, GroupEntry entry, String node, int members)
+    {
+        if(entry == null) {
+            if(members <= 0) return null;
+            entry = new GroupEntry(groupKey);
+        }
+        if(members > 0) entry.membersByNode.put(node, members);
+        else entry.membersByNode.remove(node);
+        return entry.membersByNode.isEmpty()? null : entry;
+    }
+
+
+    private static class GroupEntry
+    {
+        private String  realm;
+        private Pattern topicPattern;
+        private ConcurrentSkipListMap<String,Integer> membersByNode = new ConcurrentSkipListMap<String,Integer>();
+        private AtomicLong nextMember = new AtomicLong();
+
+        GroupEntry(String groupKey)
+        {
+            String[] parts = groupKey.split(" ", 4);
+            this.realm = parts[0];
+            this.topicPattern = Pattern.compile(WampBroker.getPatternRegExp(WampMatchType.valueOf(parts[1]), parts[2]));
+        }
+
+        // round-robin over the members of all the nodes
+        String selectNode()
+        {
+            int total = 0;
+            for(Integer count : membersByNode.values()) total += count;
+            if(total == 0) return null;
+
+            long index = Math.floorMod(nextMember.getAndIncrement(), (long)total);
+            for(Map.Entry<String,Integer> member : membersByNode.entrySet()) {
+                index -= member.getValue();
+                if(index < 0) return member.getKey();
+            }
+            return null;
+        }
+    }
+
+}
@@ -18,6 +18,8 @@ public class WampPublishOptions
     private Set<String> eligibleAuthIds;
     private Set<String> eligibleAuthRoles;    
     private boolean     ack;
+    private long        deliveryTime;
+    private String      idempotencyKey;
         
     public WampPublishOptions() { 
         init(null);
@@ -77,6 +79,18 @@ public class WampPublishOptions
                 setAck(node.getBoolean("acknowledge"));
             }            
             
+            if(node.has("deliver_at")) {
+                setDeliveryTime(node.getLong("deliver_at"));
+            }
+            
+            if(node.has("delay_ms")) {
+                setDeliveryTime(System.currentTimeMillis() + node.getLong("delay_ms"));
+            }
+            
+            if(node.has("idempotency_key")) {
+                setIdempotencyKey(node.getText("idempotency_key"));
+            }
+            
         }
     }
 
@@ -276,10 +290,45 @@ public class WampPublishOptions
     }    
     
     
+    /**
+     * @return the delivery time of a scheduled publication (in milliseconds since epoch), or 0
+     */
+    public long getDeliveryTime() {
+        return deliveryTime;
+    }
+
+    /**
+     * @param deliveryTime the deliveryTime to set
+     */
+    public void setDeliveryTime(long deliveryTime) {
+        this.deliveryTime = deliveryTime;
+    }
+    
+    public boolean isScheduled() {
+        return deliveryTime > System.currentTimeMillis();
+    }
+    
+    /**
+     * @return the key used by the publisher to deduplicate the retries of a publication
+     */
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    /**
+     * @param idempotencyKey the idempotencyKey to set
+     */
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+    
+    
     public WampDict toWampObject()
     {
         WampDict options = new WampDict();
         if(ack) options.put("acknowledge", ack);
+        if(deliveryTime > 0L) options.put("deliver_at", deliveryTime);
+        if(idempotencyKey != null) options.put("idempotency_key", idempotencyKey);
         if(discloseMe) options.put("disclose_me", discloseMe);
         if(!excludeMe) options.put("exclude_me", excludeMe);
  
@@ -0,0 +1,120 @@
+package org.wgs.wamp.topic;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.wgs.wamp.type.WampDict;
+import org.wgs.wamp.type.WampList;
+
+
+/**
+ * Bounded buffer with the last events published to a reliable topic,
+ * indexed by their sequence number.
+ */
+public class WampRetransmitBuffer
+{
+    private Event[] ring;
+    private volatile long lastSequence;     // read without the lock of the buffer (by the eviction of idle topics)
+
+
+    public WampRetransmitBuffer(int size)
+    {
+        this.ring = new Event[Math.max(1, size)];
+        this.lastSequence = 0L;
+    }
+
+
+    public synchronized long append(String realm, Long publicationId, WampPublishOptions options, WampDict details, WampList payload, WampDict payloadKw)
+    {
+        long sequence = ++lastSequence;
+        WampDict detailsCopy = new WampDict();
+        detailsCopy.putAll(details);
+        ring[(int)(sequence % ring.length)] = new Event(sequence, realm, publicationId, options, detailsCopy, payload, payloadKw);
+        return sequence;
+    }
+
+    /**
+     * @return true when no event has been buffered
+     */
+    public boolean isEmpty()
+    {
+        return lastSequence == 0L;
+    }
+
+    public synchronized long getLastSequence()
+    {
+        return lastSequence;
+    }
+
+    public synchronized long getFirstSequence()
+    {
+        return Math.max(1L, lastSequence - ring.length + 1);
+    }
+
+    /**
+     * @return the buffered events with sequence numbers between fromSequence and toSequence (both included)
+     */
+    public synchronized List<Event> getEvents(long fromSequence, long toSequence)
+    {
+        fromSequence = Math.max(fromSequence, getFirstSequence());
+        toSequence = Math.min(toSequence, lastSequence);
+
+        List<Event> retval = new ArrayList<Event>();
+        for(long sequence = fromSequence; sequence <= toSequence; sequence++) {
+            Event event = ring[(int)(sequence % ring.length)];
+            if(event != null && event.getSequence() == sequence) retval.add(event);
+        }
+        return retval;
+    }
+
+
+    public static class Event
+    {
+        private long sequence;
+        private String realm;
+        private Long publicationId;
+        private WampPublishOptions options;
+        private WampDict details;
+        private WampList payload;
+        private WampDict payloadKw;
+
+        public Event(long sequence, String realm, Long publicationId, WampPublishOptions options, WampDict details, WampList payload, WampDict payloadKw)
+        {
+            this.sequence = sequence;
+            this.realm = realm;
+            this.publicationId = publicationId;
+            this.options = options;
+            this.details = details;
+            this.payload = payload;
+            this.payloadKw = payloadKw;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getRealm() {
+            return realm;
+        }
+
+        public Long getPublicationId() {
+            return publicationId;
+        }
+
+        public WampPublishOptions getOptions() {
+            return options;
+        }
+
+        public WampDict getDetails() {
+            return details;
+        }
+
+        public WampList getPayload() {
+            return payload;
+        }
+
+        public WampDict getPayloadKw() {
+            return payloadKw;
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package org.wgs.wamp.topic;
+
+import org.wgs.util.TimingWheel;
+
+
+public class WampScheduledPublication
+{
+    private Long publicationId;
+    private String realm;
+    private String topicName;
+    private Long publisherSessionId;
+    private long deliveryTime;
+    private TimingWheel.Timeout timeout;
+
+
+    public WampScheduledPublication(Long publicationId, String realm, String topicName, Long publisherSessionId, long deliveryTime)
+    {
+        this.publicationId = publicationId;
+        this.realm = realm;
+        this.topicName = topicName;
+        this.publisherSessionId = publisherSessionId;
+        this.deliveryTime = deliveryTime;
+    }
+
+    public Long getPublicationId() {
+        return publicationId;
+    }
+
+    public String getRealm() {
+        return realm;
+    }
+
+    public String getTopicName() {
+        return topicName;
+    }
+
+    public Long getPublisherSessionId() {
+        return publisherSessionId;
+    }
+
+    public long getDeliveryTime() {
+        return deliveryTime;
+    }
+
+    public TimingWheel.Timeout getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(TimingWheel.Timeout timeout) {
+        this.timeout = timeout;
+    }
+
+}
@@ -1,12 +1,17 @@
 
 package org.wgs.wamp.topic;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 import org.wgs.util.RefCount;
 import org.wgs.wamp.WampSocket;
+import org.wgs.wamp.type.WampDict;
 import org.wgs.wamp.type.WampMatchType;
 
 
@@ -14,12 +19,20 @@ public class WampSubscription
 {
     private Long subscriptionId;
     
+    private WampMatchType matchType;
+    
+    private String topicUriOrPattern;
+    
     private String topicRegExp;
     
+    private Pattern topicPattern;
+    
     private WampSubscriptionOptions options;
 
     private HashMap<Long, RefCount<WampSocket>> sockets = new HashMap<Long, RefCount<WampSocket>>();
     private HashMap<String, HashSet<Long>> sessionIdsByRealm = new HashMap<String, HashSet<Long>>();
+    private HashMap<String, WampSubscriptionGroup> groups = new HashMap<String, WampSubscriptionGroup>();
+    private HashMap<Long, WampSubscriptionGroup> groupBySessionId = new HashMap<Long, WampSubscriptionGroup>();
     
     private Collection<WampTopic> topics = null;
     
@@ -27,8 +40,12 @@ public class WampSubscription
     public WampSubscription(Long subscriptionId, WampMatchType matchType, String topicUriOrPattern, Collection<WampTopic> topics, WampSubscriptionOptions options) 
     {
         this.subscriptionId = subscriptionId;
+        this.matchType = matchType;
+        this.topicUriOrPattern = topicUriOrPattern;
         this.topicRegExp = WampBroker.getPatternRegExp(matchType, topicUriOrPattern);        
-        this.topics  = topics;
+        this.topicPattern = Pattern.compile(topicRegExp);
+        this.topics  = ConcurrentHashMap.newKeySet();   // the topics of the patterns are added and evicted concurrently with their iteration
+        this.topics.addAll(topics);
         this.options = (options != null)? options : new WampSubscriptionOptions(null);
     }
     
@@ -44,7 +61,12 @@ public class WampSubscription
     }
 
     
-    public synchronized boolean addSocket(WampSocket socket)
+    public boolean addSocket(WampSocket socket)
+    {
+        return addSocket(socket, null);
+    }
+    
+    public synchronized boolean addSocket(WampSocket socket, WampSubscriptionOptions socketOptions)
     {
         String realm = socket.getRealm();
         HashSet<Long> realmSessions = sessionIdsByRealm.get(realm);
@@ -59,6 +81,16 @@ public class WampSubscription
             ref = new RefCount<WampSocket>(socket, 1);
             sockets.put(socket.getWampSessionId(), ref);
             realmSessions.add(socket.getWampSessionId());
+            if(socketOptions != null && socketOptions.getGroup() != null) {
+                WampSubscriptionGroup group = groups.get(socketOptions.getGroup());
+                if(group == null) {
+                    group = new WampSubscriptionGroup(socketOptions.getGroup(), socketOptions.getGroupPolicy());
+                    groups.put(group.getName(), group);
+                }
+                group.addMember(socket.getWampSessionId());
+                groupBySessionId.put(socket.getWampSessionId(), group);
+                WampBroker.onGroupMembersChanged(getGroupKey(realm, group.getName()), +1);
+            }
             return true;
         } else {
             ref.refCount(+1);
@@ -76,6 +108,11 @@ public class WampSubscription
             HashSet<Long> realmSessions = sessionIdsByRealm.get(socket.getRealm());
             if(realmSessions != null) realmSessions.remove(sessionId);
             else System.out.println("WARN: no sessionId " + sessionId + " in realm " + socket.getRealm());
+            WampSubscriptionGroup group = groupBySessionId.remove(sessionId);
+            if(group != null) {
+                if(group.removeMember(sessionId)) groups.remove(group.getName());
+                WampBroker.onGroupMembersChanged(getGroupKey(socket.getRealm(), group.getName()), -1);
+            }
             return true;
         } else {
             return false;
@@ -111,11 +148,61 @@ public class WampSubscription
         }
     }
     
+    public boolean hasGroups()
+    {
+        return !groups.isEmpty();
+    }
+    
+    /**
+     * @return false when the shared subscription group of the options exists with a different policy
+     */
+    public synchronized boolean hasGroupPolicy(WampSubscriptionOptions socketOptions)
+    {
+        if(socketOptions == null || socketOptions.getGroup() == null) return true;
+        WampSubscriptionGroup group = groups.get(socketOptions.getGroup());
+        return group == null || group.getPolicy() == socketOptions.getGroupPolicy();
+    }
+    
+    /**
+     * Reduces the eligible sessions of the shared subscription groups
+     * to only one member per group (the other sessions are kept).
+     * @param realm the realm of the eligible sessions
+     * @param groupNodes the cluster node selected for each group by the node of the publisher 
+     *                   (or null when the groups are only selected locally)
+     * @param localNode the ID of this cluster node
+     */
+    public synchronized List<Long> selectGroupMembers(List<Long> sids, String realm, WampDict groupNodes, String localNode)
+    {
+        if(groups.isEmpty()) return sids;
+        
+        List<Long> retval = new ArrayList<Long>(sids.size());
+        HashSet<Long> eligible = new HashSet<Long>(sids);
+        for(Long sid : sids) {
+            if(!groupBySessionId.containsKey(sid)) retval.add(sid);
+        }
+        for(WampSubscriptionGroup group : groups.values()) {
+            if(groupNodes != null && !localNode.equals(groupNodes.getText(getGroupKey(realm, group.getName())))) continue;
+            Long selected = group.selectMember(this, eligible);
+            if(selected != null) retval.add(selected);
+        }
+        return retval;
+    }
+    
+    public String getGroupKey(String realm, String group)
+    {
+        return WampGroupDirectory.getGroupKey(realm, matchType, topicUriOrPattern, group);
+    }
+    
     public String getTopicRegExp() 
     {
         return topicRegExp;
     }
     
+    public boolean matchesTopic(String topicName)
+    {
+        return topicPattern.matcher(topicName).matches();
+    }
+    
     public WampSubscriptionOptions getOptions()
     {
         return options;
@@ -0,0 +1,92 @@
+package org.wgs.wamp.topic;
+
+import java.util.ArrayList;
+import java.util.Set;
+import org.wgs.wamp.WampSocket;
+
+
+public class WampSubscriptionGroup
+{
+    private String name;
+
+    private WampSubscriptionOptions.GroupPolicyEnum policy;
+
+    private ArrayList<Long> members = new ArrayList<Long>();
+
+    private int nextMemberIndex = 0;
+
+
+    public WampSubscriptionGroup(String name, WampSubscriptionOptions.GroupPolicyEnum policy)
+    {
+        this.name = name;
+        this.policy = (policy != null)? policy : WampSubscriptionOptions.GroupPolicyEnum.roundrobin;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public WampSubscriptionOptions.GroupPolicyEnum getPolicy()
+    {
+        return policy;
+    }
+
+    public synchronized void addMember(Long sessionId)
+    {
+        if(!members.contains(sessionId)) members.add(sessionId);
+    }
+
+    public synchronized boolean removeMember(Long sessionId)
+    {
+        members.remove(sessionId);
+        return members.isEmpty();
+    }
+
+    public synchronized int getMemberCount()
+    {
+        return members.size();
+    }
+
+
+    /**
+     * Selects the member of the group that will receive the next event.
+     * @param subscription the subscription of the group members
+     * @param eligible the session IDs that are eligible for the publication
+     * @return the selected session ID, or null when no member is eligible
+     */
+    public synchronized Long selectMember(WampSubscription subscription, Set<Long> eligible)
+    {
+        Long selected = null;
+        int count = members.size();
+
+        if(policy == WampSubscriptionOptions.GroupPolicyEnum.least_queued) {
+            int minQueued = Integer.MAX_VALUE;
+            for(int i = 0; i < count; i++) {
+                Long sid = members.get((nextMemberIndex + i) % count);
+                WampSocket socket = subscription.getSocket(sid);
+                if(socket != null && eligible.contains(sid)) {
+                    int queued = socket.getPendingMessageCount();
+                    if(queued < minQueued) {
+                        minQueued = queued;
+                        selected = sid;
+                    }
+                }
+            }
+            if(count > 0) nextMemberIndex = (nextMemberIndex + 1) % count;  // break ties fairly
+
+        } else {
+            for(int i = 0; i < count && selected == null; i++) {
+                int index = (nextMemberIndex + i) % count;
+                Long sid = members.get(index);
+                if(eligible.contains(sid)) {
+                    selected = sid;
+                    nextMemberIndex = (index + 1) % count;
+                }
+            }
+        }
+
+        return selected;
+    }
+
+}
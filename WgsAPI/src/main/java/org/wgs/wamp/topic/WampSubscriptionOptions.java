@@ -9,9 +9,14 @@ import org.wgs.wamp.type.WampList;
 
 public class WampSubscriptionOptions 
 {
+    public enum GroupPolicyEnum { roundrobin, least_queued }
+    
     private WampMatchType   matchType;
     private HashSet<String> metaTopics;
     private boolean         eventsEnabled;
+    private String          group;
+    private GroupPolicyEnum groupPolicy;
+    private boolean         reliable;
     
 
     public WampSubscriptionOptions(WampDict node) 
@@ -19,6 +24,7 @@ public class WampSubscriptionOptions
         this.matchType = WampMatchType.exact;
         this.eventsEnabled = true;
         this.metaTopics = new HashSet<String>();
+        this.groupPolicy = GroupPolicyEnum.roundrobin;
         
         if(node != null) {
             if(node.has("match")) {
@@ -32,6 +38,18 @@ public class WampSubscriptionOptions
             if(node.has("metaonly")) {
                 setEventsEnabled(!node.getBoolean("metaonly").booleanValue());
             }     
+            
+            if(node.has("group")) {
+                setGroup(node.getText("group"));
+            }
+            
+            if(node.has("reliable")) {
+                setReliable(node.getBoolean("reliable"));
+            }
+            
+            if(node.has("group_policy")) {
+                setGroupPolicy(GroupPolicyEnum.valueOf(node.getText("group_policy").toLowerCase()));
+            }
 
         }
     }
@@ -101,6 +119,50 @@ public class WampSubscriptionOptions
     }    
     
     
+    /**
+     * @return the name of the shared subscription group (or null)
+     */
+    public String getGroup() {
+        return group;
+    }
+
+    /**
+     * @param group the shared subscription group to set
+     */
+    public void setGroup(String group) {
+        this.group = group;
+    }
+    
+    /**
+     * @return the policy to select the group member that receives each event
+     */
+    public GroupPolicyEnum getGroupPolicy() {
+        return groupPolicy;
+    }
+
+    /**
+     * @param groupPolicy the groupPolicy to set
+     */
+    public void setGroupPolicy(GroupPolicyEnum groupPolicy) {
+        this.groupPolicy = groupPolicy;
+    }
+    
+    
+    /**
+     * @return true when the events must be stamped with sequence numbers for gap recovery
+     */
+    public boolean isReliable() {
+        return reliable;
+    }
+
+    /**
+     * @param reliable the reliable to set
+     */
+    public void setReliable(boolean reliable) {
+        this.reliable = reliable;
+    }
+    
+    
     public void updateOptions(WampSubscriptionOptions opts)
     {
         this.eventsEnabled = this.eventsEnabled || opts.eventsEnabled;
@@ -112,6 +174,11 @@ public class WampSubscriptionOptions
         WampDict dict = new WampDict();
         dict.put("match", getMatchType().toString());
         if(!eventsEnabled) dict.put("metaonly", true);
+        if(reliable) dict.put("reliable", true);
+        if(group != null) {
+            dict.put("group", group);
+            dict.put("group_policy", groupPolicy.toString());
+        }
         if(metaTopics != null && metaTopics.size() > 0) {
             WampList metas = new WampList(metaTopics.toArray());
             dict.put("metatopics", metas);
@@ -19,7 +19,8 @@ import org.wgs.util.Storage;
 @Entity(name="Topic")
 @Table(name="TOPIC")
 @NamedQueries({
-    @NamedQuery(name="wgs.findAllTopics",query="SELECT OBJECT(t) FROM Topic t")
+    @NamedQuery(name="wgs.findAllTopics",query="SELECT OBJECT(t) FROM Topic t"),
+    @NamedQuery(name="wgs.deleteTopics",query="DELETE FROM Topic t WHERE t.topicName IN ?1")
 })
 public class WampTopic implements Topic, TemporaryTopic
 {
@@ -31,6 +32,12 @@ public class WampTopic implements Topic, TemporaryTopic
 
     @Transient
     private Map<Long,WampSubscription> subscriptions = new ConcurrentHashMap<Long,WampSubscription>();
+    
+    @Transient
+    private volatile WampRetransmitBuffer retransmitBuffer;
+    
+    @Transient
+    private volatile long lastActivityTime = System.currentTimeMillis();
 
     public WampTopic() { }
     
@@ -72,12 +79,14 @@ public class WampTopic implements Topic, TemporaryTopic
      */
     public void addSubscription(WampSubscription subscription) {
         subscriptions.put(subscription.getId(), subscription);
+        touch();
     }
 
     /**
      * @param socket the sockets to set
      */
     public WampSubscription removeSubscription(Long subscriptionId) {
+        touch();
         return subscriptions.remove(subscriptionId);
     }
     
@@ -96,6 +105,42 @@ public class WampTopic implements Topic, TemporaryTopic
         return subscriptions.size();
     }    
     
+    /**
+     * Starts stamping the events with sequence numbers, and buffering them for retransmission.
+     */
+    public synchronized void enableReliableDelivery(int bufferSize)
+    {
+        if(retransmitBuffer == null) {
+            retransmitBuffer = new WampRetransmitBuffer(bufferSize);
+        }
+    }
+    
+    public WampRetransmitBuffer getRetransmitBuffer()
+    {
+        return retransmitBuffer;
+    }
+    
+    /**
+     * Updates the time of the last subscription change or publication.
+     */
+    public void touch()
+    {
+        lastActivityTime = System.currentTimeMillis();
+    }
+    
+    public long getLastActivityTime()
+    {
+        return lastActivityTime;
+    }
+    
+    /**
+     * @return true when the topic keeps state that can't be recreated on demand
+     */
+    public boolean hasRetainedState()
+    {
+        return options != null && (options.hasEventPersistence() || options.getMaxHistoricEvents() > 0);
+    }
+    
     @Override
     public int hashCode()
     {
@@ -4,7 +4,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -28,7 +27,7 @@ import org.wgs.wamp.type.WampList;
 public class WampLongPollingServlet extends HttpServlet implements AsyncListener
 {
     private static ConcurrentHashMap<Long, AsyncContext> asyncContexts = new ConcurrentHashMap<Long, AsyncContext>();
-    private static ConcurrentHashMap<Long, LinkedBlockingQueue<Object>> messageQueues = new ConcurrentHashMap<Long, LinkedBlockingQueue<Object>>();
+    private static ConcurrentHashMap<Long, WampLongPollingSocket.OutboundQueue> messageQueues = new ConcurrentHashMap<Long, WampLongPollingSocket.OutboundQueue>();
     private static ConcurrentHashMap<Long, Long> socketIdByTransport = new ConcurrentHashMap<Long, Long>();
 
     private WampApplication application;
@@ -87,7 +86,7 @@ public class WampLongPollingServlet extends HttpServlet implements AsyncListener
   
         WampSocket socket = application.getSocketById(socketId);
         if(path.endsWith("/open")) {
-            LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+            WampLongPollingSocket.OutboundQueue queue = new WampLongPollingSocket.OutboundQueue();
             socket = new WampLongPollingSocket(application, request, queue);
             socket.init();   
             
@@ -107,7 +106,7 @@ public class WampLongPollingServlet extends HttpServlet implements AsyncListener
                 obj.put("transport", transport);
                 
                 Object msg = WampEncoding.JSON.getSerializer().serialize(obj);
-                queue.put(msg);
+                queue.offer(msg);
                 
             } catch (Exception ex) {
                 Logger.getLogger(WampLongPollingServlet.class.getName()).log(Level.SEVERE, "Error serializing data", ex);
@@ -208,7 +207,7 @@ public class WampLongPollingServlet extends HttpServlet implements AsyncListener
         System.out.println("WampLongPollingServlet: timeout (" + req.getPathInfo() + ")");
         
         Long transport = getWampTransport(req);
-        LinkedBlockingQueue<Object> queue = messageQueues.get(transport);
+        WampLongPollingSocket.OutboundQueue queue = messageQueues.get(transport);
         if(queue != null) {
             Object msg = queue.poll();
             if(msg != null) sendMsg(transport, msg);
@@ -297,10 +296,10 @@ public class WampLongPollingServlet extends HttpServlet implements AsyncListener
     class MessageSender implements Runnable
     {
         private Long transport;
-        private LinkedBlockingQueue<Object> queue;
+        private WampLongPollingSocket.OutboundQueue queue;
         
         
-        MessageSender(Long transport, AsyncContext asyncContext, LinkedBlockingQueue<Object> queue)
+        MessageSender(Long transport, AsyncContext asyncContext, WampLongPollingSocket.OutboundQueue queue)
         {
             this.transport = transport;
             this.queue = queue;
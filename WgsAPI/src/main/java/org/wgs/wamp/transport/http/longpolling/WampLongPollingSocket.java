@@ -3,8 +3,12 @@ package org.wgs.wamp.transport.http.longpolling;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.StringReader;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonObject;
@@ -13,17 +17,19 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 import javax.websocket.CloseReason;
 import org.wgs.wamp.WampApplication;
+import org.wgs.wamp.WampRealm;
+import org.wgs.wamp.WampSlowConsumerPolicy;
 import org.wgs.wamp.WampSocket;
 
 
 public class WampLongPollingSocket extends WampSocket
 {
-    private LinkedBlockingQueue<Object> queue;
+    private OutboundQueue queue;
     private HttpSession session;
     private String negotiatedSubprotocol;
     
     
-    public WampLongPollingSocket(WampApplication app, HttpServletRequest request, LinkedBlockingQueue<Object> queue) 
+    public WampLongPollingSocket(WampApplication app, HttpServletRequest request, OutboundQueue queue) 
     {
         this.queue = queue;
         this.session = request.getSession();
@@ -98,7 +104,50 @@ public class WampLongPollingSocket extends WampSocket
     @Override
     public void sendObject(Object msg) throws Exception
     {
-        queue.add(msg);
+        if(!queue.offer(msg)) {
+            // the hard limit of the queue is reached: the peer isn't polling
+            WampRealm realm = (getRealm() != null) ? WampRealm.getRealm(getRealm()) : null;
+            if(realm != null && realm.getSlowConsumerPolicy() != null) realm.getSlowConsumerPolicy().onDisconnectedSession();
+            discardPendingMessages();
+            close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, WampSlowConsumerPolicy.CLOSE_REASON));
+        }
+    }
+    
+    @Override
+    protected void queueEvent(Object msg) throws Exception
+    {
+        sendObject(new QueuedEvent(msg));
+    }
+    
+    @Override
+    protected boolean dropOldestEvent()
+    {
+        return queue.removeOldestEvent();
+    }
+    
+    @Override
+    protected void discardPendingMessages()
+    {
+        queue.clear();
+    }
+    
+    @Override
+    protected void drainPendingMessages(Collection<Object> target)
+    {
+        Object msg;
+        while((msg = queue.poll()) != null) target.add(msg);
+    }
+    
+    @Override
+    public int getPendingMessageCount()
+    {
+        return queue.size();
+    }
+    
+    @Override
+    public long getPendingBytes()
+    {
+        return queue.getPendingBytes();
     }
     
     
@@ -114,4 +163,81 @@ public class WampLongPollingSocket extends WampSocket
     }
     
     
+    /**
+     * Bounded queue of the messages waiting for the "/receive" requests
+     * ("WGS_LONGPOLL_MAX_QUEUED_MESSAGES" is the hard limit, beyond the slow-consumer policy of the realm).
+     * The EVENT messages are unwrapped when they are polled.
+     */
+    public static class OutboundQueue extends LinkedBlockingQueue<Object>
+    {
+        private static int maxQueuedMessages = 100000;
+        
+        private AtomicLong pendingBytes = new AtomicLong(0L);
+        
+        static {
+            try {
+                String value = System.getProperty("WGS_LONGPOLL_MAX_QUEUED_MESSAGES");
+                if(value != null) maxQueuedMessages = Integer.parseInt(value);
+            } catch(Exception ex) { }
+        }
+        
+        public OutboundQueue()
+        {
+            super(maxQueuedMessages);
+        }
+        
+        @Override
+        public boolean offer(Object msg)
+        {
+            if(!super.offer(msg)) return false;
+            pendingBytes.addAndGet(getMessageSize(QueuedEvent.unwrap(msg)));
+            return true;
+        }
+        
+        @Override
+        public Object poll()
+        {
+            return dequeued(super.poll());
+        }
+        
+        @Override
+        public Object poll(long timeout, TimeUnit unit) throws InterruptedException
+        {
+            return dequeued(super.poll(timeout, unit));
+        }
+        
+        @Override
+        public void clear()
+        {
+            super.clear();
+            pendingBytes.set(0L);
+        }
+        
+        public long getPendingBytes()
+        {
+            return pendingBytes.get();
+        }
+        
+        boolean removeOldestEvent()
+        {
+            Iterator<Object> iter = iterator();
+            while(iter.hasNext()) {
+                Object queued = iter.next();
+                if(queued instanceof QueuedEvent) {
+                    iter.remove();
+                    pendingBytes.addAndGet(-getMessageSize(((QueuedEvent)queued).getMessage()));
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        private Object dequeued(Object queued)
+        {
+            Object msg = QueuedEvent.unwrap(queued);
+            if(msg != null) pendingBytes.addAndGet(-getMessageSize(msg));
+            return msg;
+        }
+    }
+    
 }
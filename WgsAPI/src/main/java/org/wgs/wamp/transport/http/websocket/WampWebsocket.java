@@ -1,19 +1,55 @@
 package org.wgs.wamp.transport.http.websocket;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.Principal;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.websocket.CloseReason;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
 import javax.websocket.Session;
 import org.wgs.wamp.WampApplication;
 import org.wgs.wamp.WampSocket;
+import org.wgs.wamp.encoding.WampEncoding;
 import org.wgs.wamp.type.WampConnectionState;
 
 
+/**
+ * WebSocket transport with an asynchronous outbound pipeline:
+ * the messages are queued, and written with a single write in flight,
+ * so the routing threads don't wait for slow peers.
+ *
+ * With the batched subprotocols, the messages queued while a write is in flight
+ * are coalesced in the next frame (up to "WGS_WEBSOCKET_MAX_COALESCED_BYTES").
+ */
 public class WampWebsocket extends WampSocket
 {
+    private static final Logger logger = Logger.getLogger(WampWebsocket.class.getName());
+
+    private static int maxCoalescedBytes = 65536;
+
     private Session session;
-    
+    private ArrayDeque<Object> outbox = new ArrayDeque<Object>();
+    private long outboxBytes;           // guarded by outbox
+    private boolean writing;            // guarded by outbox
+    private boolean writeFailed;        // guarded by outbox
+    private CloseReason pendingClose;   // guarded by outbox
+
+    static {
+        try {
+            String value = System.getProperty("WGS_WEBSOCKET_MAX_COALESCED_BYTES");
+            if(value != null) maxCoalescedBytes = Integer.parseInt(value);
+        } catch(Exception ex) { }
+    }
+
+
     public WampWebsocket(Session session) 
     {
         this.session = session;
@@ -54,35 +90,224 @@ public class WampWebsocket extends WampSocket
     @Override
     public void sendObject(Object msg) throws Exception
     {
-        switch(getEncoding()) {
-            case JSON:
-                session.getBasicRemote().sendText(msg.toString());
-                break;
-            case MsgPack:
-                session.getBasicRemote().sendBinary(ByteBuffer.wrap((byte[])msg));
-                break;
-            default:
-                session.getBasicRemote().sendObject(msg);
+        enqueue(msg, msg);
+    }
+
+    @Override
+    protected void queueEvent(Object msg) throws Exception
+    {
+        enqueue(new QueuedEvent(msg), msg);
+    }
+
+    private void enqueue(Object queued, Object msg) throws Exception
+    {
+        synchronized(outbox) {
+            if(writeFailed) throw new IOException("WebSocket connection lost");
+            outbox.add(queued);
+            outboxBytes += getMessageSize(msg);
+            if(writing) return;   // it will be written when the current write completes
+            writing = true;
         }
+        writeNext();
     }
-    
-    
+
+    @Override
+    protected boolean dropOldestEvent()
+    {
+        synchronized(outbox) {
+            Iterator<Object> iter = outbox.iterator();
+            while(iter.hasNext()) {
+                Object queued = iter.next();
+                if(queued instanceof QueuedEvent) {
+                    iter.remove();
+                    outboxBytes -= getMessageSize(((QueuedEvent)queued).getMessage());
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    @Override
+    protected void discardPendingMessages()
+    {
+        synchronized(outbox) {
+            outbox.clear();
+            outboxBytes = 0L;
+        }
+    }
+
+    @Override
+    protected void drainPendingMessages(Collection<Object> target)
+    {
+        synchronized(outbox) {
+            Object msg;
+            while((msg = pollMessage()) != null) target.add(msg);
+        }
+    }
+
+    @Override
+    public int getPendingMessageCount()
+    {
+        synchronized(outbox) {
+            return outbox.size();
+        }
+    }
+
+    @Override
+    public long getPendingBytes()
+    {
+        synchronized(outbox) {
+            return outboxBytes;
+        }
+    }
+
+
+    /**
+     * Writes the queued messages, one frame at a time.
+     * The writes that are completed on the calling thread continue in this loop (without recursion).
+     */
+    private void writeNext()
+    {
+        while(true) {
+            Object frame;
+            CloseReason closeReason = null;
+            synchronized(outbox) {
+                frame = nextFrame();
+                if(frame == null) {
+                    writing = false;
+                    closeReason = pendingClose;
+                    pendingClose = null;
+                }
+            }
+
+            if(frame == null) {
+                if(closeReason != null) closeSession(closeReason);
+                return;
+            }
+
+            WriteHandler handler = new WriteHandler();
+            try {
+                RemoteEndpoint.Async remote = session.getAsyncRemote();
+                if(frame instanceof String) remote.sendText((String)frame, handler);
+                else remote.sendBinary(ByteBuffer.wrap((byte[])frame), handler);
+            } catch(Exception ex) {
+                onWriteError(ex);
+                return;
+            }
+
+            if(!handler.isCompletedOnSend()) return;  // the handler continues with the next frame
+        }
+    }
+
+    private Object nextFrame()
+    {
+        Object msg = pollMessage();
+        if(msg == null || outbox.isEmpty()) return msg;
+
+        WampEncoding encoding = getEncoding();
+        if(encoding == WampEncoding.BatchedJSON) {
+            StringBuilder frame = new StringBuilder((String)msg);
+            while(!outbox.isEmpty() && frame.length() + ((String)QueuedEvent.unwrap(outbox.peek())).length() <= maxCoalescedBytes) {
+                frame.append((String)pollMessage());
+            }
+            return frame.toString();
+
+        } else if(encoding == WampEncoding.BatchedMsgPack) {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            frame.write((byte[])msg, 0, ((byte[])msg).length);
+            while(!outbox.isEmpty() && frame.size() + ((byte[])QueuedEvent.unwrap(outbox.peek())).length <= maxCoalescedBytes) {
+                byte[] part = (byte[])pollMessage();
+                frame.write(part, 0, part.length);
+            }
+            return frame.toByteArray();
+        }
+
+        return msg;
+    }
+
+    private Object pollMessage()
+    {
+        Object msg = QueuedEvent.unwrap(outbox.poll());
+        if(msg != null) outboxBytes -= getMessageSize(msg);
+        return msg;
+    }
+
+    private void onWriteError(Throwable ex)
+    {
+        if(logger.isLoggable(Level.FINE)) logger.log(Level.FINE, "WebSocket write error", ex);
+        CloseReason closeReason;
+        synchronized(outbox) {
+            writeFailed = true;
+            writing = false;
+            closeReason = pendingClose;
+            pendingClose = null;
+            outbox.clear();
+            outboxBytes = 0L;
+        }
+        if(closeReason != null) closeSession(closeReason);   // the session was closed while the failed write was in flight
+    }
+
+    private void closeSession(CloseReason reason)
+    {
+        try { session.close(reason); }
+        catch(Exception ex) { }
+    }
+
+
+    private class WriteHandler implements SendHandler
+    {
+        private boolean sending = true;
+        private boolean completed;
+
+        /**
+         * @return true when the write was completed before the send method returned
+         */
+        synchronized boolean isCompletedOnSend()
+        {
+            sending = false;
+            return completed;
+        }
+
+        @Override
+        public void onResult(SendResult result)
+        {
+            if(!result.isOK()) {
+                onWriteError(result.getException());
+                return;
+            }
+
+            boolean continueOnSender;
+            synchronized(this) {
+                completed = true;
+                continueOnSender = sending;
+            }
+            if(!continueOnSender) writeNext();
+        }
+    }
+
+
     @Override
     public boolean close(CloseReason reason)
     {
         if(super.close(reason)) {
-            try { session.close(reason); } 
-            catch(Exception ex) { }    
+            synchronized(outbox) {
+                if(writing) {
+                    pendingClose = reason;   // after the GOODBYE message and the queued messages
+                    return true;
+                }
+            }
+            closeSession(reason);
             return true;
         }
         return false;
     }
-    
-    
+
+
     @Override
     public boolean isOpen() 
     {
-        return super.isOpen() && session.isOpen();
+        return super.isOpen() && (isTransportDetached() || session.isOpen());
     }    
     
     
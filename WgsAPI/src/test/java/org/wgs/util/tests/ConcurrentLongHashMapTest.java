@@ -0,0 +1,64 @@
+package org.wgs.util.tests;
+
+import java.util.HashMap;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.wgs.util.ConcurrentLongHashMap;
+
+
+public class ConcurrentLongHashMapTest {
+
+    public ConcurrentLongHashMapTest() {
+    }
+
+
+    @Test
+    public void testPairKeys() {
+        ConcurrentLongHashMap<String> map = new ConcurrentLongHashMap<String>();
+        map.put(1L, 1L, "a");
+        map.put(2L, 1L, "b");
+        map.put(1L, 2L, "c");
+
+        assertEquals(3, map.size());
+        assertEquals("a", map.get(1L, 1L));
+        assertEquals("b", map.get(2L, 1L));
+        assertEquals("c", map.get(1L, 2L));
+        assertNull(map.get(1L));
+
+        assertEquals("a", map.remove(1L, 1L));
+        assertNull(map.remove(1L, 1L));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void testRandomOperations() {
+        // compares the results with a HashMap, forcing resizes and backward shift deletions
+        testRandomOperations(new ConcurrentLongHashMap<Long>());
+        testRandomOperations(new ConcurrentLongHashMap<Long>(1));
+    }
+
+    private static void testRandomOperations(ConcurrentLongHashMap<Long> map) {
+        HashMap<Long,Long> expected = new HashMap<Long,Long>();
+        Random random = new Random(1234L);
+        assertNull(map.remove(1L));
+        assertEquals(0, map.values().size());
+
+        for(int i = 0; i < 200000; i++) {
+            long key = random.nextInt(5000);
+            if(random.nextBoolean()) {
+                assertEquals(expected.put(key, (long)i), map.put(key, (long)i));
+            } else {
+                assertEquals(expected.remove(key), map.remove(key));
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected.size(), map.keys().length);
+        for(long key = 0; key < 5000; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+
+}
@@ -0,0 +1,80 @@
+package org.wgs.util.tests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.wgs.util.KeyedSerialExecutor;
+
+
+public class KeyedSerialExecutorTest {
+
+    public KeyedSerialExecutorTest() {
+    }
+
+
+    @Test
+    public void testOrderPerKey() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        KeyedSerialExecutor executor = new KeyedSerialExecutor(pool);
+
+        final int keys = 10;
+        final int tasksPerKey = 1000;
+        final List<List<Integer>> results = new ArrayList<List<Integer>>();
+        final AtomicInteger running[] = new AtomicInteger[keys];
+        final AtomicInteger overlaps = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(keys * tasksPerKey);
+
+        for(int k = 0; k < keys; k++) {
+            results.add(Collections.synchronizedList(new ArrayList<Integer>()));
+            running[k] = new AtomicInteger(0);
+        }
+
+        for(int i = 0; i < tasksPerKey; i++) {
+            for(int k = 0; k < keys; k++) {
+                final int key = k;
+                final int value = i;
+                executor.execute(key, () -> {
+                    if(running[key].incrementAndGet() > 1) overlaps.incrementAndGet();
+                    results.get(key).add(value);
+                    running[key].decrementAndGet();
+                    done.countDown();
+                });
+            }
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        pool.shutdown();
+
+        assertEquals(0, overlaps.get());
+        for(int k = 0; k < keys; k++) {
+            List<Integer> list = results.get(k);
+            assertEquals(tasksPerKey, list.size());
+            for(int i = 0; i < tasksPerKey; i++) assertEquals(i, list.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testCallerRunsWithoutDelegate() {
+        final KeyedSerialExecutor executor = new KeyedSerialExecutor(null);
+        final List<String> trace = new ArrayList<String>();
+
+        executor.execute("a", () -> {
+            trace.add("a1");
+            executor.execute("a", () -> trace.add("a2"));  // queued until a1 completes
+            executor.execute("b", () -> trace.add("b1"));  // another key runs immediately
+            trace.add("a1-end");
+        });
+
+        assertEquals(java.util.Arrays.asList("a1", "b1", "a1-end", "a2"), trace);
+        assertEquals(0, executor.getActiveKeyCount());
+    }
+
+}
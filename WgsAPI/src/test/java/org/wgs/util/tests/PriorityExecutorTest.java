@@ -0,0 +1,50 @@
+package org.wgs.util.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.wgs.util.PriorityExecutor;
+
+
+public class PriorityExecutorTest {
+
+    public PriorityExecutorTest() {
+    }
+
+
+    @Test
+    public void testPriorityAndAging() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        PriorityExecutor executor = new PriorityExecutor(pool, 3, 1, 200L);
+
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+        final List<String> trace = Collections.synchronizedList(new ArrayList<String>());
+
+        executor.execute(() -> {
+            try { gate.await(); } catch(InterruptedException ex) { }
+        }, 1);
+
+        executor.execute(() -> { trace.add("batch"); done.countDown(); }, 2);
+        Thread.sleep(300L);  // the batch task exceeds the aging time
+        executor.execute(() -> { trace.add("normal"); done.countDown(); }, 1);
+        executor.execute(() -> { trace.add("interactive1"); done.countDown(); }, 0);
+        executor.execute(() -> { trace.add("interactive2"); done.countDown(); }, 0);
+        assertEquals(4, executor.getQueuedCount());
+
+        gate.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        pool.shutdown();
+
+        assertEquals(Arrays.asList("batch", "interactive1", "interactive2", "normal"), trace);
+    }
+
+}
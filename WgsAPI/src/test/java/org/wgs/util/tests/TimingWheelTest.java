@@ -0,0 +1,59 @@
+package org.wgs.util.tests;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.wgs.util.TimingWheel;
+
+
+public class TimingWheelTest {
+    
+    private TimingWheel wheel;
+    
+    public TimingWheelTest() {
+    }
+    
+    @Before
+    public void setUp() {
+        // small wheels to force cascading between levels
+        wheel = new TimingWheel("timing-wheel-test", 1L, 2, 4);
+    }
+    
+    @After
+    public void tearDown() {
+        wheel.stop();
+    }
+
+    @Test
+    public void testExpiration() throws Exception {
+        CountDownLatch latch = new CountDownLatch(3);
+        long start = System.currentTimeMillis();
+        wheel.schedule(latch::countDown, 0L);
+        wheel.schedule(latch::countDown, 20L);
+        wheel.schedule(latch::countDown, 150L);    // beyond the span of the first levels
+        
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 150L);
+        assertEquals(0, wheel.getPendingCount());
+    }
+    
+    @Test
+    public void testCancellation() throws Exception {
+        AtomicInteger counter = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(1);
+        TimingWheel.Timeout cancelled = wheel.schedule(counter::incrementAndGet, 30L);
+        wheel.schedule(latch::countDown, 60L);
+        
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(cancelled.isCancelled());
+        assertEquals(0, counter.get());
+    }
+    
+}
@@ -0,0 +1,105 @@
+package org.wgs.wamp.rpc.tests;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.wgs.wamp.WampResult;
+import org.wgs.wamp.rpc.WampCallAggregator;
+import org.wgs.wamp.rpc.WampCallOptions;
+import org.wgs.wamp.type.WampDict;
+import org.wgs.wamp.type.WampList;
+
+
+public class WampCallAggregatorTest {
+
+    public WampCallAggregatorTest() {
+    }
+
+    private static WampResult result(Object ... args) {
+        WampResult result = new WampResult(1L);
+        result.setArgs(new WampList(args));
+        return result;
+    }
+
+
+    @Test
+    public void testNumericFolds() {
+        WampCallAggregator sum = new WampCallAggregator(WampCallOptions.AggregateEnum.sum, 0, 3);
+        sum.add(result(2L, 3L));
+        assertEquals(5L, sum.getResult().get(0));
+        sum.add(result(1.5));
+        sum.add(result(4L));
+        assertEquals(10.5, sum.getResult().getDouble(0), 0.0);
+
+        WampCallAggregator min = new WampCallAggregator(WampCallOptions.AggregateEnum.min, 0, 3);
+        min.add(result(5L));
+        min.add(result(2.5));
+        min.add(result(3L));
+        assertEquals(2.5, min.getResult().getDouble(0), 0.0);
+
+        WampCallAggregator max = new WampCallAggregator(WampCallOptions.AggregateEnum.max, 0, 3);
+        max.add(result(1.5));
+        max.add(result(7L));
+        max.add(result("not a number"));
+        assertEquals(7.0, max.getResult().getDouble(0), 0.0);
+
+        WampCallAggregator empty = new WampCallAggregator(WampCallOptions.AggregateEnum.sum, 0, 1);
+        empty.add(result());
+        assertEquals(0, empty.getResult().size());
+    }
+
+    @Test
+    public void testThresholds() {
+        WampCallAggregator first = new WampCallAggregator(WampCallOptions.AggregateEnum.first, 0, 3);
+        assertTrue(first.add(result(1L)));
+
+        WampCallAggregator firstTwo = new WampCallAggregator(WampCallOptions.AggregateEnum.first, 2, 3);
+        assertFalse(firstTwo.add(result(1L)));
+        assertTrue(firstTwo.add(result(2L)));
+
+        // the default quorum is the majority of the callees
+        WampCallAggregator quorum = new WampCallAggregator(WampCallOptions.AggregateEnum.quorum, 0, 4);
+        assertFalse(quorum.add(result(1L)));
+        assertFalse(quorum.add(result(2L)));
+        assertTrue(quorum.add(result(3L)));
+
+        // an aggregate_count greater than the number of callees is limited to the callees
+        WampCallAggregator bounded = new WampCallAggregator(WampCallOptions.AggregateEnum.quorum, 5, 2);
+        assertFalse(bounded.add(result(1L)));
+        assertTrue(bounded.add(result(2L)));
+
+        // the other modes wait for all the callees
+        WampCallAggregator list = new WampCallAggregator(WampCallOptions.AggregateEnum.list, 1, 2);
+        assertFalse(list.add(result(1L)));
+        assertFalse(list.add(result(2L)));
+        assertEquals(2, list.getResult().size());
+    }
+
+    @Test
+    public void testLateResultsDiscarded() {
+        WampCallAggregator first = new WampCallAggregator(WampCallOptions.AggregateEnum.first, 1, 3);
+        WampResult winner = result("a");
+        WampDict winnerKw = new WampDict();
+        winnerKw.put("node", "a");
+        winner.setArgsKw(winnerKw);
+        assertTrue(first.add(winner));
+
+        WampResult late = result("b");
+        WampDict lateKw = new WampDict();
+        lateKw.put("node", "b");
+        late.setArgsKw(lateKw);
+        assertFalse(first.add(late));
+
+        assertEquals(1, first.getReceivedCount());
+        assertEquals(1, first.getResult().size());
+        assertEquals("a", ((WampList)first.getResult().get(0)).getText(0));
+        assertEquals("a", first.getResultKw().getText("node"));
+
+        WampCallAggregator sum = new WampCallAggregator(WampCallOptions.AggregateEnum.sum, 0, 2);
+        sum.add(result(1L));
+        sum.add(result(2L));
+        sum.add(result(100L));
+        assertEquals(3L, sum.getResult().get(0));
+    }
+
+}
@@ -0,0 +1,81 @@
+package org.wgs.wamp.rpc.tests;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.wgs.wamp.rpc.WampCallOptions;
+import org.wgs.wamp.rpc.WampCalleeHealth;
+
+
+public class WampCalleeHealthTest {
+
+    public WampCalleeHealthTest() {
+    }
+
+
+    @Test
+    public void testCircuitBreaker() {
+        WampCalleeHealth health = new WampCalleeHealth();
+        long now = 1000000L;
+
+        for(int i = 0; i < WampCalleeHealth.minimumInvocations; i++) {
+            health.onInvocation(now);
+            health.onSuccess(5L, now);
+        }
+        assertEquals(WampCalleeHealth.StateEnum.closed, health.getState());
+
+        while(health.getState() == WampCalleeHealth.StateEnum.closed) {
+            health.onInvocation(now);
+            health.onFailure(now);
+        }
+        assertEquals(WampCalleeHealth.StateEnum.open, health.getState());
+        assertFalse(health.isAvailable(now));
+
+        // half-open: a single probe, that fails and doubles the open interval
+        now += WampCalleeHealth.openMillis;
+        assertTrue(health.isAvailable(now));
+        health.onInvocation(now);
+        assertEquals(WampCalleeHealth.StateEnum.half_open, health.getState());
+        assertFalse(health.isAvailable(now));
+        health.onFailure(now);
+        assertFalse(health.isAvailable(now + WampCalleeHealth.openMillis));
+
+        // a successful probe closes the circuit
+        now += 2 * WampCalleeHealth.openMillis;
+        health.onInvocation(now);
+        health.onSuccess(5L, now);
+        assertEquals(WampCalleeHealth.StateEnum.closed, health.getState());
+        assertTrue(health.isAvailable(now));
+    }
+
+    @Test
+    public void testSlowInvocations() {
+        WampCallOptions options = new WampCallOptions(null);
+        assertEquals(WampCalleeHealth.slowInvocationMillis, WampCalleeHealth.getSlowInvocationMillis(options));
+        options.setTimeout(60000);
+        assertEquals(60000L, WampCalleeHealth.getSlowInvocationMillis(options));
+        options.setRunMode(WampCallOptions.RunModeEnum.progressive);
+        options.setCredits(10);
+        assertEquals(0L, WampCalleeHealth.getSlowInvocationMillis(options));
+
+        // a long invocation within the timeout of its call isn't a failure
+        WampCalleeHealth health = new WampCalleeHealth();
+        long now = 1000000L;
+        for(int i = 0; i < 2 * WampCalleeHealth.minimumInvocations; i++) {
+            health.onInvocation(now);
+            health.onSuccess(30000L, 60000L, now);
+        }
+        assertEquals(0.0, health.getFailureRate(), 0.0);
+        health.onSuccess(30000L, 20000L, now);
+        assertTrue(health.getFailureRate() > 0.0);
+    }
+
+    @Test
+    public void testFailureClassification() {
+        assertTrue(WampCalleeHealth.isCalleeFailure("wamp.error.timeout"));
+        assertTrue(WampCalleeHealth.isCalleeFailure("wamp.error.runtime_error"));
+        assertFalse(WampCalleeHealth.isCalleeFailure("wamp.error.invalid_argument"));
+        assertFalse(WampCalleeHealth.isCalleeFailure("wgs.incorrect_user_member"));
+    }
+
+}
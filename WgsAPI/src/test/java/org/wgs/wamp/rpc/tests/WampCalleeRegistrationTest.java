@@ -0,0 +1,110 @@
+package org.wgs.wamp.rpc.tests;
+
+import java.util.HashMap;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.wgs.wamp.WampSocket;
+import org.wgs.wamp.rpc.WampCallOptions;
+import org.wgs.wamp.rpc.WampCalleeRegistration;
+import org.wgs.wamp.rpc.WampRemoteMethod;
+import org.wgs.wamp.type.WampDict;
+import org.wgs.wamp.type.WampList;
+import org.wgs.wamp.type.WampMatchType;
+
+
+public class WampCalleeRegistrationTest {
+
+    private static final int KEYS = 2000;
+
+    public WampCalleeRegistrationTest() {
+    }
+
+
+    @Test
+    public void testPartitionRing() {
+        WampCalleeRegistration registration = new WampCalleeRegistration("realm1", 1L, WampMatchType.exact, "test.partitioned");
+        TestSocket[] callees = new TestSocket[5];
+        for(int i = 0; i < callees.length; i++) {
+            callees[i] = new TestSocket(101L + i);
+            registration.addRemoteMethod(callees[i], new WampRemoteMethod(1L, "test.partitioned", callees[i], callees[i].getWampSessionId(), WampMatchType.exact, null));
+        }
+
+        Long[] owners = selectOwners(registration, null);
+        for(TestSocket callee : callees) {
+            int count = 0;
+            for(Long owner : owners) {
+                if(callee.getWampSessionId().equals(owner)) count++;
+            }
+            assertTrue("callee without keys: " + callee.getWampSessionId(), count > 0);
+        }
+
+        // the owners that aren't eligible fall through to the next owner of the ring
+        WampDict exclude = new WampDict();
+        exclude.put("exclude", new WampList(103L));
+        Long[] fallbacks = selectOwners(registration, new WampCallOptions(exclude));
+
+        // removing a callee only moves its own keys (to the same callees of the fallback)
+        registration.removeRemoteMethod(callees[2]);
+        Long[] remaining = selectOwners(registration, null);
+        int moved = 0;
+        for(int k = 0; k < KEYS; k++) {
+            assertFalse(Long.valueOf(103L).equals(remaining[k]));
+            assertFalse(Long.valueOf(103L).equals(fallbacks[k]));
+            if(owners[k].equals(103L)) moved++;
+            else assertEquals(owners[k], remaining[k]);
+            assertEquals(remaining[k], fallbacks[k]);
+        }
+        assertTrue(moved > 0);
+    }
+
+
+    private static Long[] selectOwners(WampCalleeRegistration registration, WampCallOptions options) {
+        Long[] owners = new Long[KEYS];
+        for(int k = 0; k < KEYS; k++) {
+            WampRemoteMethod method = registration.selectRemoteMethod(null, options, "key." + k);
+            owners[k] = method.getRemotePeer().getWampSessionId();
+        }
+        return owners;
+    }
+
+
+    private static class TestSocket extends WampSocket {
+        private HashMap<String,Object> sessionData = new HashMap<String,Object>();
+
+        TestSocket(Long sessionId) {
+            init();
+            setWampSessionId(sessionId);
+        }
+
+        @Override
+        public void sendObject(Object msg) {
+        }
+
+        @Override
+        public String getNegotiatedSubprotocol() {
+            return "wamp.2.json";
+        }
+
+        @Override
+        public Object getSessionData(String key) {
+            return sessionData.get(key);
+        }
+
+        @Override
+        public void putSessionData(String key, Object val) {
+            sessionData.put(key, val);
+        }
+
+        @Override
+        public Object removeSessionData(String key) {
+            return sessionData.remove(key);
+        }
+
+        @Override
+        public boolean containsSessionData(String key) {
+            return sessionData.containsKey(key);
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+package org.wgs.wamp.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.wgs.wamp.WampProtocol;
+import org.wgs.wamp.WampSocket;
+import org.wgs.wamp.encoding.WampEncoding;
+import org.wgs.wamp.type.WampDict;
+import org.wgs.wamp.type.WampList;
+
+
+public class WampProtocolTest {
+
+    public WampProtocolTest() {
+    }
+
+
+    @Test
+    public void testSharedResultMessage() throws Exception {
+        WampList args = new WampList(1L, "text", 2.5);
+        WampDict argsKw = new WampDict();
+        argsKw.put("key", "value");
+        Object[] serializedResult = new Object[WampEncoding.values().length];
+
+        for(WampEncoding encoding : WampEncoding.values()) {
+            for(long requestId : new long[] { 7L, 1L << 40 }) {
+                TestSocket expected = new TestSocket(encoding);
+                WampProtocol.sendResultMessage(expected, requestId, null, args, argsKw);
+                TestSocket shared = new TestSocket(encoding);
+                WampProtocol.sendResultMessage(shared, requestId, null, args, argsKw, serializedResult);
+                assertMessageEquals(encoding, expected.messages.get(0), shared.messages.get(0));
+            }
+
+            // without arguments
+            TestSocket expected = new TestSocket(encoding);
+            WampProtocol.sendResultMessage(expected, 3L, null, null, null);
+            TestSocket shared = new TestSocket(encoding);
+            WampProtocol.sendResultMessage(shared, 3L, null, null, null, new Object[WampEncoding.values().length]);
+            assertMessageEquals(encoding, expected.messages.get(0), shared.messages.get(0));
+        }
+    }
+
+    private static void assertMessageEquals(WampEncoding encoding, Object expected, Object actual) {
+        if(expected instanceof byte[]) assertTrue(encoding.toString(), Arrays.equals((byte[])expected, (byte[])actual));
+        else assertEquals(encoding.toString(), expected, actual);
+    }
+
+
+    private static class TestSocket extends WampSocket {
+        private List<Object> messages = new ArrayList<Object>();
+        private HashMap<String,Object> sessionData = new HashMap<String,Object>();
+
+        TestSocket(WampEncoding encoding) {
+            init();
+            setEncoding(encoding);
+        }
+
+        @Override
+        public synchronized void sendObject(Object msg) {
+            messages.add(msg);
+        }
+
+        @Override
+        public String getNegotiatedSubprotocol() {
+            return "wamp.2.json";
+        }
+
+        @Override
+        public Object getSessionData(String key) {
+            return sessionData.get(key);
+        }
+
+        @Override
+        public void putSessionData(String key, Object val) {
+            sessionData.put(key, val);
+        }
+
+        @Override
+        public Object removeSessionData(String key) {
+            return sessionData.remove(key);
+        }
+
+        @Override
+        public boolean containsSessionData(String key) {
+            return sessionData.containsKey(key);
+        }
+    }
+
+}
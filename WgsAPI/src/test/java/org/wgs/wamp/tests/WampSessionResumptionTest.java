@@ -0,0 +1,150 @@
+package org.wgs.wamp.tests;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import javax.websocket.CloseReason;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.wgs.wamp.WampApplication;
+import org.wgs.wamp.WampProtocol;
+import org.wgs.wamp.WampSocket;
+import org.wgs.wamp.encoding.WampEncoding;
+import org.wgs.wamp.type.WampDict;
+import org.wgs.wamp.type.WampList;
+
+
+public class WampSessionResumptionTest {
+
+    public WampSessionResumptionTest() {
+    }
+
+
+    @Test
+    public void testResumeAfterTransportLoss() throws Exception {
+        WampApplication app = new WampApplication(WampApplication.WAMPv2, "/resumption-test");
+
+        TestSocket socket = new TestSocket();
+        app.onWampOpen(socket);
+        WampDict helloDetails = new WampDict();
+        helloDetails.put("_resumable", true);
+        app.onWampMessage(socket, hello(helloDetails));
+
+        WampList welcome = socket.getMessage(0);
+        assertEquals(WampProtocol.WELCOME, welcome.getLong(0).intValue());
+        Long sessionId = welcome.getLong(1);
+        String token = ((WampDict)welcome.get(2)).getText("_resume_token");
+        assertNotNull(token);
+
+        // abrupt close: the session is parked, and its messages are buffered
+        app.onWampClose(socket, new CloseReason(CloseReason.CloseCodes.CLOSED_ABNORMALLY, "wamp.close.error"));
+        assertTrue(socket.isOpen());
+        assertSame(socket, app.getSocketById(sessionId));
+        WampProtocol.sendErrorMessage(socket, WampProtocol.CALL, 1L, null, "wamp.error.missed", null, null);
+        assertEquals(1, socket.getMessageCount());
+
+        // resumption: WELCOME with the same session ID, and the replay of the missed message
+        TestSocket transport = new TestSocket();
+        app.onWampOpen(transport);
+        WampDict resumeDetails = new WampDict();
+        resumeDetails.put("_resume_token", token);
+        app.onWampMessage(transport, hello(resumeDetails));
+
+        assertEquals(2, transport.getMessageCount());
+        WampList resumed = transport.getMessage(0);
+        assertEquals(WampProtocol.WELCOME, resumed.getLong(0).intValue());
+        assertEquals(sessionId, resumed.getLong(1));
+        WampDict resumedDetails = (WampDict)resumed.get(2);
+        assertEquals(Boolean.TRUE, resumedDetails.getBoolean("_resumed"));
+        assertFalse(token.equals(resumedDetails.getText("_resume_token")));
+        assertEquals("wamp.error.missed", transport.getMessage(1).getText(4));
+
+        // a token can only be used once
+        TestSocket other = new TestSocket();
+        app.onWampOpen(other);
+        app.onWampMessage(other, hello(resumeDetails));
+        assertFalse(sessionId.equals(other.getMessage(0).getLong(1)));
+
+        // the messages of the session are delivered by the new transport
+        WampProtocol.sendErrorMessage(socket, WampProtocol.CALL, 2L, null, "wamp.error.delivered", null, null);
+        assertEquals("wamp.error.delivered", transport.getMessage(2).getText(4));
+
+        // a normal close ends the session
+        app.onWampClose(transport, new CloseReason(CloseReason.CloseCodes.NORMAL_CLOSURE, "wamp.close.normal"));
+        assertNull(socket.getWampSessionId());
+        assertNull(app.getSocketById(sessionId));
+    }
+
+    @Test
+    public void testNotResumable() throws Exception {
+        WampApplication app = new WampApplication(WampApplication.WAMPv2, "/resumption-test2");
+
+        TestSocket socket = new TestSocket();
+        app.onWampOpen(socket);
+        app.onWampMessage(socket, hello(new WampDict()));
+        assertFalse(((WampDict)socket.getMessage(0).get(2)).has("_resume_token"));
+
+        app.onWampClose(socket, new CloseReason(CloseReason.CloseCodes.CLOSED_ABNORMALLY, "wamp.close.error"));
+        assertNull(socket.getWampSessionId());
+    }
+
+
+    private static WampList hello(WampDict details) {
+        WampList hello = new WampList();
+        hello.add(WampProtocol.HELLO);
+        hello.add("realm1");
+        hello.add(details);
+        return hello;
+    }
+
+
+    private static class TestSocket extends WampSocket {
+        private List<Object> messages = new ArrayList<Object>();
+        private HashMap<String,Object> sessionData = new HashMap<String,Object>();
+
+        TestSocket() {
+            init();
+        }
+
+        synchronized int getMessageCount() {
+            return messages.size();
+        }
+
+        synchronized WampList getMessage(int index) throws Exception {
+            String msg = (String)messages.get(index);
+            return (WampList)WampEncoding.JSON.getSerializer().deserialize(msg, 0, msg.length());
+        }
+
+        @Override
+        public synchronized void sendObject(Object msg) {
+            messages.add(msg);
+        }
+
+        @Override
+        public String getNegotiatedSubprotocol() {
+            return "wamp.2.json";
+        }
+
+        @Override
+        public Object getSessionData(String key) {
+            return sessionData.get(key);
+        }
+
+        @Override
+        public void putSessionData(String key, Object val) {
+            sessionData.put(key, val);
+        }
+
+        @Override
+        public Object removeSessionData(String key) {
+            return sessionData.remove(key);
+        }
+
+        @Override
+        public boolean containsSessionData(String key) {
+            return sessionData.containsKey(key);
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+package org.wgs.wamp.topic.tests;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.wgs.wamp.WampSocket;
+import org.wgs.wamp.topic.WampGroupDirectory;
+import org.wgs.wamp.topic.WampSubscription;
+import org.wgs.wamp.topic.WampSubscriptionOptions;
+import org.wgs.wamp.type.WampDict;
+import org.wgs.wamp.type.WampMatchType;
+
+
+public class WampGroupDirectoryTest {
+
+    private static final String REALM = "realm1";
+    private static final String TOPIC = "test.jobs";
+
+    public WampGroupDirectoryTest() {
+    }
+
+
+    @Test
+    public void testMembersInRemoteNode() {
+        WampGroupDirectory nodeA = new WampGroupDirectory("A");
+        WampGroupDirectory nodeB = new WampGroupDirectory("B");
+
+        // node A (the publisher) only has a subscriber without group
+        WampSubscription subscriptionA = newSubscription();
+        subscriptionA.addSocket(new TestSocket(1L), new WampSubscriptionOptions(null));
+
+        // all the members of the group are in node B
+        WampSubscription subscriptionB = newSubscription();
+        WampSubscriptionOptions groupOptions = new WampSubscriptionOptions(null);
+        groupOptions.setGroup("workers");
+        String groupKey = subscriptionB.getGroupKey(REALM, "workers");
+        for(long sid = 11L; sid <= 13L; sid++) {
+            subscriptionB.addSocket(new TestSocket(sid), groupOptions);
+            nodeB.addLocalMember(groupKey, +1);
+        }
+        nodeA.setMembers("B", nodeB.getLocalMembers());
+
+        HashSet<Long> receivers = new HashSet<Long>();
+        for(int i = 0; i < 6; i++) {
+            WampDict groupNodes = nodeA.selectNodes(REALM, TOPIC);
+            assertEquals("B", groupNodes.getText(groupKey));
+
+            List<Long> sidsA = subscriptionA.selectGroupMembers(sids(1L), REALM, groupNodes, "A");
+            assertEquals(1, sidsA.size());
+            assertEquals(Long.valueOf(1L), sidsA.get(0));
+
+            List<Long> sidsB = subscriptionB.selectGroupMembers(sids(11L, 12L, 13L), REALM, groupNodes, "B");
+            assertEquals(1, sidsB.size());
+            receivers.add(sidsB.get(0));
+        }
+        assertEquals(3, receivers.size());
+
+        // other realms don't share the group
+        assertEquals(0, nodeA.selectNodes("realm2", TOPIC).size());
+
+        // the nodes are selected by their number of members
+        nodeA.addLocalMember(groupKey, +1);
+        int selectedA = 0;
+        for(int i = 0; i < 8; i++) {
+            if("A".equals(nodeA.selectNodes(REALM, TOPIC).getText(groupKey))) selectedA++;
+        }
+        assertEquals(2, selectedA);
+
+        nodeA.removeNode("B");
+        assertEquals("A", nodeA.selectNodes(REALM, TOPIC).getText(groupKey));
+        nodeA.addLocalMember(groupKey, -1);
+        assertEquals(0, nodeA.selectNodes(REALM, TOPIC).size());
+    }
+
+
+    private static WampSubscription newSubscription() {
+        return new WampSubscription(1L, WampMatchType.exact, TOPIC, new ArrayList<>(), null);
+    }
+
+    private static List<Long> sids(Long ... ids) {
+        List<Long> sids = new ArrayList<Long>();
+        for(Long id : ids) sids.add(id);
+        return sids;
+    }
+
+
+    private static class TestSocket extends WampSocket {
+        private HashMap<String,Object> sessionData = new HashMap<String,Object>();
+
+        TestSocket(Long sessionId) {
+            init();
+            setWampSessionId(sessionId);
+            setRealm(REALM);
+        }
+
+        @Override
+        public void sendObject(Object msg) {
+        }
+
+        @Override
+        public String getNegotiatedSubprotocol() {
+            return "wamp.2.json";
+        }
+
+        @Override
+        public Object getSessionData(String key) {
+            return sessionData.get(key);
+        }
+
+        @Override
+        public void putSessionData(String key, Object val) {
+            sessionData.put(key, val);
+        }
+
+        @Override
+        public Object removeSessionData(String key) {
+            return sessionData.remove(key);
+        }
+
+        @Override
+        public boolean containsSessionData(String key) {
+            return sessionData.containsKey(key);
+        }
+    }
+
+}